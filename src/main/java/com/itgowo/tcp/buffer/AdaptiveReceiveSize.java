@@ -0,0 +1,122 @@
+package com.itgowo.tcp.buffer;
+
+/**
+ * @author lujianchao
+ * 根据最近的read()字节数调整下次读取大小，每个连接一个，只在事件循环线程更新
+ * 读满时翻倍，连续两次读取不超过一半时减半，范围为[minSize, maxSize]
+ * 突发数据时很快增大，减少每个包的select次数，空闲后逐步缩小，不长期占用大缓冲区
+ */
+public class AdaptiveReceiveSize {
+    public static final int DEFAULT_MIN_SIZE = 64;
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+    private final int minSize;
+    private final int maxSize;
+    private final int initialSize;
+    private volatile int size;
+    /**
+     * 上次读取是否不超过一半，连续两次才减半，避免大小来回抖动
+     */
+    private boolean shrinkNext = false;
+    private volatile long growCount = 0;
+    private volatile long shrinkCount = 0;
+
+    public AdaptiveReceiveSize() {
+        this(DEFAULT_MIN_SIZE, 1024, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param minSize     最小读取大小
+     * @param initialSize 连接开始时的读取大小，超出范围时取边界值
+     * @param maxSize     最大读取大小，与minSize相同时不调整
+     */
+    public AdaptiveReceiveSize(int minSize, int initialSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("minSize: " + minSize + ", maxSize: " + maxSize);
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.initialSize = Math.max(minSize, Math.min(initialSize, maxSize));
+        this.size = this.initialSize;
+    }
+
+    /**
+     * 下次读取大小
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 记录一次读取的字节数，调整下次读取大小
+     *
+     * @param bytesRead
+     */
+    public void record(int bytesRead) {
+        int current = size;
+        if (bytesRead >= current) {
+            shrinkNext = false;
+            if (current < maxSize) {
+                size = (int) Math.min(current * 2L, maxSize);
+                growCount++;
+            }
+        } else if (bytesRead <= current >>> 1 && current > minSize) {
+            if (shrinkNext) {
+                shrinkNext = false;
+                size = Math.max(current >>> 1, minSize);
+                shrinkCount++;
+            } else {
+                shrinkNext = true;
+            }
+        } else {
+            shrinkNext = false;
+        }
+    }
+
+    /**
+     * 恢复到初始大小，重新连接时调用
+     */
+    public void reset() {
+        size = initialSize;
+        shrinkNext = false;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 累计增大次数
+     *
+     * @return
+     */
+    public long getGrowCount() {
+        return growCount;
+    }
+
+    /**
+     * 累计减小次数
+     *
+     * @return
+     */
+    public long getShrinkCount() {
+        return shrinkCount;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("AdaptiveReceiveSize{");
+        sb.append("size=").append(size);
+        sb.append(", minSize=").append(minSize);
+        sb.append(", maxSize=").append(maxSize);
+        sb.append(", growCount=").append(growCount);
+        sb.append(", shrinkCount=").append(shrinkCount);
+        sb.append('}');
+        return sb.toString();
+    }
+}
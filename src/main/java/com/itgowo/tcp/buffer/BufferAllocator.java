@@ -0,0 +1,112 @@
+package com.itgowo.tcp.buffer;
+
+/**
+ * @author lujianchao
+ * 缓冲区分配器，分为堆内和堆外(direct)两个池化区域
+ * Socket读写使用堆外缓冲区可以省去JDK内部的一次临时复制，需要访问array()的场景使用堆内缓冲区
+ * 分配得到的PooledBuffer用完必须release()，getActiveCount()持续增长说明有泄漏
+ */
+public class BufferAllocator {
+    public static final int DEFAULT_MIN_SIZE = 64;
+    public static final int DEFAULT_MAX_POOLED_SIZE = 64 * 1024;
+    public static final int DEFAULT_THREAD_CACHE_SIZE = 32;
+    public static final int DEFAULT_SHARED_POOL_SIZE = 256;
+    /**
+     * 默认分配器，优先使用堆外缓冲区
+     */
+    public static final BufferAllocator DEFAULT = new BufferAllocator();
+
+    private final PoolArena heapArena;
+    private final PoolArena directArena;
+    private final boolean preferDirect;
+
+    public BufferAllocator() {
+        this(true);
+    }
+
+    public BufferAllocator(boolean preferDirect) {
+        this(preferDirect, DEFAULT_MAX_POOLED_SIZE, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_POOL_SIZE);
+    }
+
+    /**
+     * @param preferDirect    buffer()是否优先分配堆外缓冲区
+     * @param maxPooledSize   池化上限，2的幂，超过的直接分配不归还
+     * @param threadCacheSize 每个线程每个大小等级缓存数量
+     * @param sharedPoolSize  共享池每个大小等级缓存数量
+     */
+    public BufferAllocator(boolean preferDirect, int maxPooledSize, int threadCacheSize, int sharedPoolSize) {
+        this.preferDirect = preferDirect;
+        this.heapArena = new PoolArena(false, DEFAULT_MIN_SIZE, maxPooledSize, threadCacheSize, sharedPoolSize);
+        this.directArena = new PoolArena(true, DEFAULT_MIN_SIZE, maxPooledSize, threadCacheSize, sharedPoolSize);
+    }
+
+    /**
+     * 按preferDirect分配缓冲区
+     *
+     * @param capacity
+     * @return
+     */
+    public PooledBuffer buffer(int capacity) {
+        return preferDirect ? directBuffer(capacity) : heapBuffer(capacity);
+    }
+
+    /**
+     * 分配堆内缓冲区，支持array()
+     *
+     * @param capacity
+     * @return
+     */
+    public PooledBuffer heapBuffer(int capacity) {
+        return heapArena.allocate(capacity);
+    }
+
+    /**
+     * 分配堆外缓冲区
+     *
+     * @param capacity
+     * @return
+     */
+    public PooledBuffer directBuffer(int capacity) {
+        return directArena.allocate(capacity);
+    }
+
+    public boolean isPreferDirect() {
+        return preferDirect;
+    }
+
+    public PoolArena getHeapArena() {
+        return heapArena;
+    }
+
+    public PoolArena getDirectArena() {
+        return directArena;
+    }
+
+    /**
+     * 未归还缓冲区数量
+     *
+     * @return
+     */
+    public long getActiveCount() {
+        return heapArena.getActiveCount() + directArena.getActiveCount();
+    }
+
+    /**
+     * 未归还缓冲区字节数
+     *
+     * @return
+     */
+    public long getActiveBytes() {
+        return heapArena.getActiveBytes() + directArena.getActiveBytes();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("BufferAllocator{");
+        sb.append("preferDirect=").append(preferDirect);
+        sb.append(", heapArena=").append(heapArena);
+        sb.append(", directArena=").append(directArena);
+        sb.append('}');
+        return sb.toString();
+    }
+}
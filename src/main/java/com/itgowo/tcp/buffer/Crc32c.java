@@ -0,0 +1,153 @@
+package com.itgowo.tcp.buffer;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * @author lujianchao
+ * CRC32C(Castagnoli)校验
+ * JDK9及以上使用java.util.zip.CRC32C，由JVM内建为CPU指令；JDK8使用本类的查表实现，结果相同
+ */
+public final class Crc32c implements Checksum {
+    private static final int POLY = 0x82F63B78;
+    /**
+     * 一次处理8 byte的查表实现，TABLE[k][b]为字节b后面跟k个0字节的CRC
+     */
+    private static final int[][] TABLE = new int[8][256];
+    /**
+     * JDK9及以上java.util.zip.CRC32C的构造方法，JDK8为null
+     */
+    private static final Constructor<? extends Checksum> JDK_CONSTRUCTOR;
+    private static final ThreadLocal<Checksum> CHECKSUM = new ThreadLocal<Checksum>() {
+        @Override
+        protected Checksum initialValue() {
+            return newChecksum();
+        }
+    };
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? crc >>> 1 ^ POLY : crc >>> 1;
+            }
+            TABLE[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int k = 1; k < 8; k++) {
+                TABLE[k][i] = TABLE[k - 1][i] >>> 8 ^ TABLE[0][TABLE[k - 1][i] & 0xFF];
+            }
+        }
+        Constructor<? extends Checksum> jdkConstructor = null;
+        try {
+            jdkConstructor = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getDeclaredConstructor();
+        } catch (ClassNotFoundException e) {
+            //JDK8
+        } catch (NoSuchMethodException e) {
+            //使用查表实现
+        }
+        JDK_CONSTRUCTOR = jdkConstructor;
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    /**
+     * 创建CRC32C，优先使用JDK实现
+     *
+     * @return
+     */
+    public static Checksum newChecksum() {
+        if (JDK_CONSTRUCTOR != null) {
+            try {
+                return JDK_CONSTRUCTOR.newInstance();
+            } catch (Exception e) {
+                //使用查表实现
+            }
+        }
+        return new Crc32c();
+    }
+
+    /**
+     * 是否使用JDK内建实现
+     *
+     * @return
+     */
+    public static boolean isIntrinsic() {
+        return JDK_CONSTRUCTOR != null;
+    }
+
+    /**
+     * 计算数组一段数据的CRC32C，使用线程本地实例，不分配对象
+     *
+     * @param b
+     * @param off
+     * @param len
+     * @return
+     */
+    public static int compute(byte[] b, int off, int len) {
+        Checksum checksum = CHECKSUM.get();
+        checksum.reset();
+        checksum.update(b, off, len);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * 计算ByteBuffer剩余数据的CRC32C，不移动position
+     *
+     * @param byteBuffer
+     * @return
+     */
+    public static int compute(ByteBuffer byteBuffer) {
+        if (byteBuffer.hasArray()) {
+            return compute(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+        }
+        Checksum checksum = CHECKSUM.get();
+        checksum.reset();
+        byte[] scratch = SCRATCH.get();
+        ByteBuffer duplicate = byteBuffer.duplicate();
+        while (duplicate.hasRemaining()) {
+            int count = Math.min(scratch.length, duplicate.remaining());
+            duplicate.get(scratch, 0, count);
+            checksum.update(scratch, 0, count);
+        }
+        return (int) checksum.getValue();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = crc >>> 8 ^ TABLE[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int crc = this.crc;
+        int end = off + len;
+        while (end - off >= 8) {
+            int lo = crc ^ (b[off] & 0xFF | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+            crc = TABLE[7][lo & 0xFF] ^ TABLE[6][lo >>> 8 & 0xFF] ^ TABLE[5][lo >>> 16 & 0xFF] ^ TABLE[4][lo >>> 24]
+                    ^ TABLE[3][b[off + 4] & 0xFF] ^ TABLE[2][b[off + 5] & 0xFF] ^ TABLE[1][b[off + 6] & 0xFF] ^ TABLE[0][b[off + 7] & 0xFF];
+            off += 8;
+        }
+        while (off < end) {
+            crc = crc >>> 8 ^ TABLE[0][(crc ^ b[off++]) & 0xFF];
+        }
+        this.crc = crc;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
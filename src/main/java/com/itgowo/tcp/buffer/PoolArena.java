@@ -0,0 +1,233 @@
+package com.itgowo.tcp.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author lujianchao
+ * 池化区域，堆内和堆外各一个
+ * 大小等级从minSize开始按2的倍数递增到maxPooledSize，超过上限的直接分配且不归还
+ * 分配顺序：线程本地缓存 -> 共享池 -> 新分配
+ */
+public class PoolArena {
+    private final boolean direct;
+    private final int minSize;
+    private final int minSizeShift;
+    private final int sizeClassCount;
+    private final int threadCacheSize;
+    private final int sharedPoolSize;
+    private final ConcurrentLinkedQueue<PooledBuffer>[] sharedPools;
+    private final AtomicInteger[] sharedPoolCounts;
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+    private final AtomicLong allocationCount = new AtomicLong();
+    private final AtomicLong releaseCount = new AtomicLong();
+    private final AtomicLong newAllocationCount = new AtomicLong();
+    private final AtomicLong unpooledAllocationCount = new AtomicLong();
+    private final AtomicLong threadCacheHitCount = new AtomicLong();
+    private final AtomicLong sharedPoolHitCount = new AtomicLong();
+    private final AtomicLong activeBytes = new AtomicLong();
+
+    PoolArena(boolean direct, int minSize, int maxPooledSize, int threadCacheSize, int sharedPoolSize) {
+        if (Integer.bitCount(minSize) != 1 || Integer.bitCount(maxPooledSize) != 1 || minSize > maxPooledSize) {
+            throw new IllegalArgumentException("minSize and maxPooledSize must be power of 2, minSize <= maxPooledSize");
+        }
+        this.direct = direct;
+        this.minSize = minSize;
+        this.minSizeShift = Integer.numberOfTrailingZeros(minSize);
+        this.sizeClassCount = Integer.numberOfTrailingZeros(maxPooledSize) - minSizeShift + 1;
+        this.threadCacheSize = threadCacheSize;
+        this.sharedPoolSize = sharedPoolSize;
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<PooledBuffer>[] sharedPools = (ConcurrentLinkedQueue<PooledBuffer>[]) new ConcurrentLinkedQueue<?>[sizeClassCount];
+        this.sharedPools = sharedPools;
+        this.sharedPoolCounts = new AtomicInteger[sizeClassCount];
+        for (int i = 0; i < sizeClassCount; i++) {
+            sharedPools[i] = new ConcurrentLinkedQueue<>();
+            sharedPoolCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * 计算大小等级
+     *
+     * @param capacity
+     * @return 超过池化上限返回-1
+     */
+    private int sizeClass(int capacity) {
+        if (capacity <= minSize) {
+            return 0;
+        }
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(capacity - 1) - minSizeShift;
+        return sizeClass < sizeClassCount ? sizeClass : -1;
+    }
+
+    PooledBuffer allocate(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity < 0");
+        }
+        allocationCount.incrementAndGet();
+        int sizeClass = sizeClass(capacity);
+        PooledBuffer pooledBuffer = null;
+        if (sizeClass < 0) {
+            unpooledAllocationCount.incrementAndGet();
+            pooledBuffer = new PooledBuffer(this, -1, newByteBuffer(capacity));
+        } else {
+            pooledBuffer = threadCache.get().poll(sizeClass);
+            if (pooledBuffer != null) {
+                threadCacheHitCount.incrementAndGet();
+            } else {
+                pooledBuffer = sharedPools[sizeClass].poll();
+                if (pooledBuffer != null) {
+                    sharedPoolCounts[sizeClass].decrementAndGet();
+                    sharedPoolHitCount.incrementAndGet();
+                } else {
+                    newAllocationCount.incrementAndGet();
+                    pooledBuffer = new PooledBuffer(this, sizeClass, newByteBuffer(minSize << sizeClass));
+                }
+            }
+        }
+        pooledBuffer.init(capacity);
+        activeBytes.addAndGet(pooledBuffer.capacity());
+        return pooledBuffer;
+    }
+
+    void free(PooledBuffer pooledBuffer) {
+        releaseCount.incrementAndGet();
+        activeBytes.addAndGet(-pooledBuffer.capacity());
+        int sizeClass = pooledBuffer.sizeClass();
+        if (sizeClass < 0) {
+            return;
+        }
+        if (threadCache.get().offer(sizeClass, pooledBuffer)) {
+            return;
+        }
+        if (sharedPoolCounts[sizeClass].incrementAndGet() <= sharedPoolSize) {
+            sharedPools[sizeClass].offer(pooledBuffer);
+        } else {
+            sharedPoolCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    private ByteBuffer newByteBuffer(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * 累计分配次数
+     *
+     * @return
+     */
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    /**
+     * 累计归还次数
+     *
+     * @return
+     */
+    public long getReleaseCount() {
+        return releaseCount.get();
+    }
+
+    /**
+     * 未归还数量，持续增长说明有泄漏
+     *
+     * @return
+     */
+    public long getActiveCount() {
+        return allocationCount.get() - releaseCount.get();
+    }
+
+    /**
+     * 未归还的字节数，按大小等级计算
+     *
+     * @return
+     */
+    public long getActiveBytes() {
+        return activeBytes.get();
+    }
+
+    /**
+     * 池中没有可用缓冲区，实际新分配内存的次数
+     *
+     * @return
+     */
+    public long getNewAllocationCount() {
+        return newAllocationCount.get();
+    }
+
+    /**
+     * 超过池化上限的分配次数
+     *
+     * @return
+     */
+    public long getUnpooledAllocationCount() {
+        return unpooledAllocationCount.get();
+    }
+
+    public long getThreadCacheHitCount() {
+        return threadCacheHitCount.get();
+    }
+
+    public long getSharedPoolHitCount() {
+        return sharedPoolHitCount.get();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("PoolArena{");
+        sb.append("direct=").append(direct);
+        sb.append(", allocationCount=").append(getAllocationCount());
+        sb.append(", releaseCount=").append(getReleaseCount());
+        sb.append(", activeCount=").append(getActiveCount());
+        sb.append(", activeBytes=").append(getActiveBytes());
+        sb.append(", newAllocationCount=").append(getNewAllocationCount());
+        sb.append(", unpooledAllocationCount=").append(getUnpooledAllocationCount());
+        sb.append(", threadCacheHitCount=").append(getThreadCacheHitCount());
+        sb.append(", sharedPoolHitCount=").append(getSharedPoolHitCount());
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * 线程本地缓存，每个大小等级一个栈，只有所属线程访问，不需要同步
+     */
+    private class ThreadCache {
+        private final PooledBuffer[][] stacks = new PooledBuffer[sizeClassCount][threadCacheSize];
+        private final int[] counts = new int[sizeClassCount];
+
+        private PooledBuffer poll(int sizeClass) {
+            int count = counts[sizeClass];
+            if (count == 0) {
+                return null;
+            }
+            count--;
+            counts[sizeClass] = count;
+            PooledBuffer pooledBuffer = stacks[sizeClass][count];
+            stacks[sizeClass][count] = null;
+            return pooledBuffer;
+        }
+
+        private boolean offer(int sizeClass, PooledBuffer pooledBuffer) {
+            int count = counts[sizeClass];
+            if (count >= threadCacheSize) {
+                return false;
+            }
+            stacks[sizeClass][count] = pooledBuffer;
+            counts[sizeClass] = count + 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.itgowo.tcp.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author lujianchao
+ * 池化缓冲区，由BufferAllocator分配，引用计数归零时归还到所属区域
+ * 归还后不可再使用buffer()得到的ByteBuffer，它会被分配给其他使用者
+ */
+public class PooledBuffer {
+    private final PoolArena arena;
+    /**
+     * 大小等级，-1表示超过池化上限，不归还
+     */
+    private final int sizeClass;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt = new AtomicInteger();
+
+    PooledBuffer(PoolArena arena, int sizeClass, ByteBuffer buffer) {
+        this.arena = arena;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    /**
+     * 内部方法
+     * 分配出去前重置状态
+     *
+     * @param capacity 申请的容量，作为limit
+     */
+    void init(int capacity) {
+        refCnt.set(1);
+        buffer.clear();
+        buffer.limit(capacity);
+    }
+
+    int sizeClass() {
+        return sizeClass;
+    }
+
+    /**
+     * 获取实际缓冲区，limit为申请的容量，capacity为所在大小等级
+     *
+     * @return
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public boolean isDirect() {
+        return buffer.isDirect();
+    }
+
+    public boolean hasArray() {
+        return buffer.hasArray();
+    }
+
+    /**
+     * 堆内缓冲区的数组，堆外缓冲区不支持
+     *
+     * @return
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    /**
+     * 增加引用计数
+     *
+     * @return
+     */
+    public PooledBuffer retain() {
+        while (true) {
+            int count = refCnt.get();
+            if (count <= 0) {
+                throw new IllegalStateException("refCnt: 0");
+            }
+            if (refCnt.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 减少引用计数，归零时归还
+     *
+     * @return 是否已归还
+     */
+    public boolean release() {
+        int count = refCnt.decrementAndGet();
+        if (count == 0) {
+            arena.free(this);
+            return true;
+        }
+        if (count < 0) {
+            refCnt.incrementAndGet();
+            throw new IllegalStateException("refCnt: 0");
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("PooledBuffer{");
+        sb.append("direct=").append(buffer.isDirect());
+        sb.append(", capacity=").append(buffer.capacity());
+        sb.append(", refCnt=").append(refCnt.get());
+        sb.append(", buffer=").append(buffer);
+        sb.append('}');
+        return sb.toString();
+    }
+}
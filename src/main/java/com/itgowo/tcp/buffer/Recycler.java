@@ -0,0 +1,76 @@
+package com.itgowo.tcp.buffer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author lujianchao
+ * 线程本地对象池，用于复用解码出的消息对象
+ * 对象归还到调用recycle()的线程，每个线程最多缓存maxCapacity个，超过的交给GC
+ *
+ * @param <T>
+ */
+public abstract class Recycler<T> {
+    public static final int DEFAULT_MAX_CAPACITY = 256;
+    private final int maxCapacity;
+    private final ThreadLocal<ArrayDeque<T>> pool = new ThreadLocal<ArrayDeque<T>>() {
+        @Override
+        protected ArrayDeque<T> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+    private final AtomicLong newObjectCount = new AtomicLong();
+
+    public Recycler() {
+        this(DEFAULT_MAX_CAPACITY);
+    }
+
+    public Recycler(int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+    }
+
+    /**
+     * 池中没有可用对象时创建新对象
+     *
+     * @return
+     */
+    protected abstract T newObject();
+
+    /**
+     * 从当前线程的池中获取对象
+     *
+     * @return
+     */
+    public T get() {
+        T t = pool.get().pollLast();
+        if (t == null) {
+            newObjectCount.incrementAndGet();
+            t = newObject();
+        }
+        return t;
+    }
+
+    /**
+     * 归还对象到当前线程的池，调用方负责先重置对象状态
+     *
+     * @param t
+     * @return 是否已放入池中
+     */
+    public boolean recycle(T t) {
+        ArrayDeque<T> deque = pool.get();
+        if (deque.size() >= maxCapacity) {
+            return false;
+        }
+        deque.addLast(t);
+        return true;
+    }
+
+    /**
+     * 累计新建对象数量，稳定后不再增长说明复用生效
+     *
+     * @return
+     */
+    public long getNewObjectCount() {
+        return newObjectCount.get();
+    }
+}
@@ -0,0 +1,32 @@
+package com.itgowo.tcp.codec;
+
+/**
+ * @author lujianchao
+ * 编解码方案，创建MiniTCPClient时指定，每次连接开始时创建一个解码器，编码器所有连接共用
+ * 内置PackageMessageCodec、PackageMessageForNioCodec和RawCodec，自定义协议实现此接口即可
+ *
+ * @param <T> 解码出的消息类型，即onMiniTCPClientListener的泛型类型
+ */
+public interface Codec<T> {
+    /**
+     * 创建解码器，解码器保存半包数据，每个连接一个
+     *
+     * @return
+     */
+    FrameDecoder<T> newDecoder();
+
+    /**
+     * 获取编码器，编码器不保存状态，可以共用
+     *
+     * @return
+     */
+    FrameEncoder<T> getEncoder();
+
+    /**
+     * 接收缓冲区是否需要使用堆内缓冲区
+     * 解码器需要访问array()，或者直接把接收缓冲区交给回调时返回true，否则使用分配器偏好的缓冲区(默认堆外)
+     *
+     * @return
+     */
+    boolean isHeapReceiveBuffer();
+}
@@ -0,0 +1,381 @@
+package com.itgowo.tcp.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author lujianchao
+ * PackageMessage和PackageMessageForNio的data压缩，使用JDK的Deflater/Inflater
+ * 压缩后的包dataType带DATA_TYPE_FLAG_COMPRESSED标记，data为varint原始长度 + deflate数据
+ * 数据小于阈值的不压缩，压缩效果差时自动提高阈值，效果好时逐步降回minThreshold
+ * 编码端Deflater由编解码方案共用，解码端每个连接一个Inflater
+ */
+public class FrameCompressor {
+    /**
+     * dataType中表示data已压缩的位，压缩的包dataType需要小于0x40
+     */
+    public static final int DATA_TYPE_FLAG_COMPRESSED = 0x40;
+    public static final int DEFAULT_MIN_THRESHOLD = 64;
+    public static final int MAX_THRESHOLD = 4096;
+    public static final int DEFAULT_MAX_DECOMPRESSED_LENGTH = 16 * 1024 * 1024;
+    /**
+     * 共用压缩缓冲区的容量上限，更大的数据使用临时数组，避免偶尔的大包让缓冲区一直占用内存
+     */
+    private static final int MAX_DEFLATE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * 数据类型，文本，与PackageMessage.DATA_TYPE_TEXT相同
+     */
+    private static final int DATA_TYPE_TEXT = 4;
+    /**
+     * 数据类型，Json文本，与PackageMessage.DATA_TYPE_JSON相同
+     */
+    private static final int DATA_TYPE_JSON = 5;
+    private final int level;
+    private final int minThreshold;
+    private volatile int threshold;
+    private int maxDecompressedLength = DEFAULT_MAX_DECOMPRESSED_LENGTH;
+    /**
+     * 需要压缩的数据类型，为null时全部压缩
+     */
+    private int[] dataTypes = {DATA_TYPE_TEXT, DATA_TYPE_JSON};
+    /**
+     * 编码端共用，使用时锁定this
+     */
+    private Deflater deflater;
+    /**
+     * 编码端共用，使用时锁定this，不超过MAX_DEFLATE_BUFFER_SIZE
+     */
+    private byte[] deflateBuffer = new byte[MAX_THRESHOLD];
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong uncompressibleCount = new AtomicLong();
+    private final AtomicLong inputBytes = new AtomicLong();
+    private final AtomicLong outputBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressedCount = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    public FrameCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_THRESHOLD);
+    }
+
+    /**
+     * @param level        压缩级别，0-9，带宽紧张时可以用Deflater.BEST_COMPRESSION
+     * @param minThreshold data小于此长度时不压缩，自适应阈值的下限
+     */
+    public FrameCompressor(int level, int minThreshold) {
+        this.level = level;
+        this.minThreshold = Math.max(1, minThreshold);
+        this.threshold = this.minThreshold;
+    }
+
+    /**
+     * 设置需要压缩的数据类型，默认DATA_TYPE_TEXT和DATA_TYPE_JSON，为null时全部类型都尝试压缩
+     *
+     * @param dataTypes
+     * @return
+     */
+    public FrameCompressor setDataTypes(int... dataTypes) {
+        this.dataTypes = dataTypes;
+        return this;
+    }
+
+    /**
+     * 解压后的长度上限，超过时认为数据错误
+     *
+     * @param maxDecompressedLength
+     * @return
+     */
+    public FrameCompressor setMaxDecompressedLength(int maxDecompressedLength) {
+        this.maxDecompressedLength = maxDecompressedLength;
+        return this;
+    }
+
+    /**
+     * 当前自适应阈值
+     *
+     * @return
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * 是否需要尝试压缩，小于阈值的计入skippedCount
+     *
+     * @param dataType
+     * @param dataLength
+     * @return
+     */
+    public boolean isCompressible(int dataType, int dataLength) {
+        if ((dataType & DATA_TYPE_FLAG_COMPRESSED) != 0 || dataType < 0) {
+            return false;
+        }
+        if (dataTypes != null) {
+            boolean match = false;
+            for (int i = 0; i < dataTypes.length; i++) {
+                if (dataTypes[i] == dataType) {
+                    match = true;
+                    break;
+                }
+            }
+            if (!match) {
+                return false;
+            }
+        }
+        if (dataLength < threshold) {
+            skippedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 压缩ByteBuffer的剩余数据，不移动position
+     *
+     * @param byteBuffer
+     * @return 压缩后的数据，压缩后不比原数据小时返回null
+     */
+    public byte[] compress(ByteBuffer byteBuffer) {
+        if (byteBuffer.hasArray()) {
+            return compress(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+        }
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.duplicate().get(bytes);
+        return compress(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 压缩数据
+     *
+     * @param src
+     * @param offset
+     * @param length
+     * @return 压缩后的数据，压缩后不比原数据小时返回null
+     */
+    public synchronized byte[] compress(byte[] src, int offset, int length) {
+        long start = System.nanoTime();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        byte[] deflateBuffer = this.deflateBuffer;
+        if (deflateBuffer.length < length) {
+            deflateBuffer = new byte[length];
+            if (length <= MAX_DEFLATE_BUFFER_SIZE) {
+                this.deflateBuffer = deflateBuffer;
+            }
+        }
+        //先写原始长度，压缩后总长度达到原数据长度就放弃
+        int count = 0;
+        int value = length;
+        while ((value & ~0x7F) != 0) {
+            deflateBuffer[count++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        deflateBuffer[count++] = (byte) value;
+        deflater.reset();
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+        while (!deflater.finished() && count < length) {
+            count += deflater.deflate(deflateBuffer, count, length - count);
+        }
+        boolean compressed = deflater.finished() && count < length;
+        inputBytes.addAndGet(length);
+        adjustThreshold(length, compressed ? count : length);
+        byte[] result = null;
+        if (compressed) {
+            compressedCount.incrementAndGet();
+            outputBytes.addAndGet(count);
+            result = Arrays.copyOf(deflateBuffer, count);
+        } else {
+            uncompressibleCount.incrementAndGet();
+            outputBytes.addAndGet(length);
+        }
+        compressNanos.addAndGet(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * 阈值附近的数据压缩节省不到10%时提高阈值，节省明显时逐步降低
+     *
+     * @param length
+     * @param compressedLength
+     */
+    private void adjustThreshold(int length, int compressedLength) {
+        int current = threshold;
+        if (length >= current * 2) {
+            return;
+        }
+        if (compressedLength * 10L >= length * 9L) {
+            threshold = Math.min(current * 2, MAX_THRESHOLD);
+        } else if (current > minThreshold) {
+            threshold = Math.max(minThreshold, current - current / 4);
+        }
+    }
+
+    /**
+     * 每个连接创建一个，连接结束时调用end()
+     *
+     * @return
+     */
+    public Inflater newInflater() {
+        return new Inflater(true);
+    }
+
+    /**
+     * 解压ByteBuffer的剩余数据，不移动position
+     *
+     * @param inflater
+     * @param byteBuffer
+     * @return
+     * @throws IOException 数据错误
+     */
+    public byte[] decompress(Inflater inflater, ByteBuffer byteBuffer) throws IOException {
+        if (byteBuffer.hasArray()) {
+            return decompress(inflater, byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+        }
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.duplicate().get(bytes);
+        return decompress(inflater, bytes, 0, bytes.length);
+    }
+
+    /**
+     * 解压数据
+     *
+     * @param inflater
+     * @param src
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException 数据错误
+     */
+    public byte[] decompress(Inflater inflater, byte[] src, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        int rawLength = 0;
+        int count = 0;
+        while (true) {
+            if (count >= length || count == 5) {
+                throw new IOException("invalid compressed data header");
+            }
+            int b = src[offset + count];
+            rawLength |= (b & 0x7F) << (count * 7);
+            count++;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (rawLength < 0 || rawLength > maxDecompressedLength) {
+            throw new IOException("decompressed length out of range: " + rawLength);
+        }
+        byte[] result = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(src, offset + count, length - count);
+        int n = 0;
+        try {
+            while (n < rawLength) {
+                int c = inflater.inflate(result, n, rawLength - n);
+                if (c == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated compressed data");
+                }
+                n += c;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        decompressedCount.incrementAndGet();
+        decompressNanos.addAndGet(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * 压缩成功的包数量
+     *
+     * @return
+     */
+    public long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    /**
+     * 小于阈值跳过的包数量
+     *
+     * @return
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * 尝试压缩但没有变小、按原数据发送的包数量
+     *
+     * @return
+     */
+    public long getUncompressibleCount() {
+        return uncompressibleCount.get();
+    }
+
+    /**
+     * 尝试压缩的原始字节数
+     *
+     * @return
+     */
+    public long getInputBytes() {
+        return inputBytes.get();
+    }
+
+    /**
+     * 尝试压缩的数据实际发送字节数
+     *
+     * @return
+     */
+    public long getOutputBytes() {
+        return outputBytes.get();
+    }
+
+    /**
+     * 压缩比，实际发送字节数/原始字节数，越小越好
+     *
+     * @return
+     */
+    public double getCompressionRatio() {
+        long input = inputBytes.get();
+        return input == 0 ? 1 : (double) outputBytes.get() / input;
+    }
+
+    /**
+     * 压缩累计耗时，包括压缩失败的
+     *
+     * @return
+     */
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getDecompressedCount() {
+        return decompressedCount.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("FrameCompressor{");
+        sb.append("threshold=").append(threshold);
+        sb.append(", compressedCount=").append(getCompressedCount());
+        sb.append(", skippedCount=").append(getSkippedCount());
+        sb.append(", uncompressibleCount=").append(getUncompressibleCount());
+        sb.append(", compressionRatio=").append(getCompressionRatio());
+        sb.append(", compressNanos=").append(getCompressNanos());
+        sb.append(", decompressedCount=").append(getDecompressedCount());
+        sb.append(", decompressNanos=").append(getDecompressNanos());
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,35 @@
+package com.itgowo.tcp.codec;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author lujianchao
+ * 解码器，只在连接所在事件循环线程调用
+ *
+ * @param <T>
+ */
+public interface FrameDecoder<T> {
+    /**
+     * 解码接收到的数据，每解码出一个完整消息调用一次frameHandler
+     * byteBuffer是连接复用的接收缓冲区，读模式，不完整的数据需要解码器自行保存
+     *
+     * @param byteBuffer
+     * @param frameHandler
+     * @throws Exception frameHandler抛出异常时继续处理本次已解码的其他消息，最后抛出第一个异常
+     */
+    void decode(ByteBuffer byteBuffer, FrameHandler<T> frameHandler) throws Exception;
+
+    /**
+     * 连接开始时设置分配器，解码器需要的缓冲区从这里租用
+     *
+     * @param allocator
+     */
+    void setBufferAllocator(BufferAllocator allocator);
+
+    /**
+     * 连接停止后调用，归还解码器持有的缓冲区，丢弃半包数据
+     */
+    void releaseDecoder();
+}
@@ -0,0 +1,30 @@
+package com.itgowo.tcp.codec;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+
+/**
+ * @author lujianchao
+ * 编码器，可以在任意线程调用，不保存状态
+ *
+ * @param <T>
+ */
+public interface FrameEncoder<T> {
+    /**
+     * 编码消息，返回的缓冲区交给MiniTCPClient.write(PooledBuffer)发送，发送后自动归还
+     *
+     * @param message
+     * @param allocator
+     * @return 读模式的缓冲区，不能编码时返回null
+     * @throws Exception
+     */
+    PooledBuffer encode(T message, BufferAllocator allocator) throws Exception;
+
+    /**
+     * 编码心跳包，自动重连时定时发送
+     *
+     * @param allocator
+     * @return 协议没有心跳包时返回null
+     */
+    PooledBuffer encodeHeart(BufferAllocator allocator);
+}
@@ -0,0 +1,17 @@
+package com.itgowo.tcp.codec;
+
+/**
+ * @author lujianchao
+ * 接收解码出的完整消息
+ *
+ * @param <T>
+ */
+public interface FrameHandler<T> {
+    /**
+     * 解码出一个完整消息
+     *
+     * @param message
+     * @throws Exception
+     */
+    void onFrame(T message) throws Exception;
+}
@@ -0,0 +1,413 @@
+package com.itgowo.tcp.codec;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author lujianchao
+ * 通用长度字段协议，按配置的包头格式处理粘包分包
+ * 包总长度 = lengthFieldOffset + 长度字段字节数 + 长度字段值 + lengthAdjustment
+ * 例如：
+ * 2 byte长度，长度不含包头：new LengthFieldCodec(0, 2, 0, 2)
+ * 4 byte长度，长度含包头：new LengthFieldCodec(0, 4, -4, 4)
+ * 1 byte类型 + varint长度：new LengthFieldCodec(1, LENGTH_FIELD_VARINT, 0, 0)
+ * <p>
+ * 解码出的消息是数据的只读切片，去掉了前initialBytesToStrip个字节，只在onReadable回调内有效，需要保留请复制
+ * 接收缓冲区中的完整包直接切片，只有不完整的包才复制到解码器缓冲区
+ */
+public class LengthFieldCodec implements Codec<ByteBuffer> {
+    /**
+     * 长度字段为varint，每个字节低7位为数据，最高位为1表示后面还有，低位在前，最多5字节
+     */
+    public static final int LENGTH_FIELD_VARINT = 0;
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 256;
+    private int lengthFieldOffset = 0;
+    private int lengthFieldLength = 4;
+    private int lengthAdjustment = 0;
+    private int initialBytesToStrip = 0;
+    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    private int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+
+    /**
+     * 编码时在数据前加长度字段，只支持lengthFieldOffset为0的格式，其他格式请自行拼装包头
+     */
+    private final FrameEncoder<ByteBuffer> encoder = new FrameEncoder<ByteBuffer>() {
+        @Override
+        public PooledBuffer encode(ByteBuffer message, BufferAllocator allocator) {
+            if (lengthFieldOffset != 0) {
+                return null;
+            }
+            int dataLength = message.remaining();
+            long length = (long) dataLength - lengthAdjustment;
+            if (length < 0 || (lengthFieldLength != LENGTH_FIELD_VARINT && lengthFieldLength < 8 && length >= 1L << (lengthFieldLength * 8))
+                    || (lengthFieldLength == LENGTH_FIELD_VARINT && length > Integer.MAX_VALUE)) {
+                throw new IllegalArgumentException("length out of range: " + length);
+            }
+            int fieldBytes = lengthFieldLength == LENGTH_FIELD_VARINT ? varintSize((int) length) : lengthFieldLength;
+            PooledBuffer pooledBuffer = allocator.buffer(fieldBytes + dataLength);
+            ByteBuffer byteBuffer = pooledBuffer.buffer();
+            if (lengthFieldLength == LENGTH_FIELD_VARINT) {
+                int value = (int) length;
+                while ((value & ~0x7F) != 0) {
+                    byteBuffer.put((byte) (value & 0x7F | 0x80));
+                    value >>>= 7;
+                }
+                byteBuffer.put((byte) value);
+            } else if (byteOrder == ByteOrder.BIG_ENDIAN) {
+                for (int i = lengthFieldLength - 1; i >= 0; i--) {
+                    byteBuffer.put((byte) (length >>> (i * 8)));
+                }
+            } else {
+                for (int i = 0; i < lengthFieldLength; i++) {
+                    byteBuffer.put((byte) (length >>> (i * 8)));
+                }
+            }
+            byteBuffer.put(message.duplicate()).flip();
+            return pooledBuffer;
+        }
+
+        @Override
+        public PooledBuffer encodeHeart(BufferAllocator allocator) {
+            return null;
+        }
+    };
+
+    /**
+     * 4 byte大端长度，长度不含包头，消息保留长度字段
+     */
+    public LengthFieldCodec() {
+    }
+
+    /**
+     * @param lengthFieldOffset   长度字段在包中的位置
+     * @param lengthFieldLength   长度字段字节数，1、2、3、4、8或者LENGTH_FIELD_VARINT
+     * @param lengthAdjustment    长度字段值的修正，长度包含包头时为负数
+     * @param initialBytesToStrip 交给回调前去掉的包头字节数
+     */
+    public LengthFieldCodec(int lengthFieldOffset, int lengthFieldLength, int lengthAdjustment, int initialBytesToStrip) {
+        setLengthFieldOffset(lengthFieldOffset);
+        setLengthFieldLength(lengthFieldLength);
+        setLengthAdjustment(lengthAdjustment);
+        setInitialBytesToStrip(initialBytesToStrip);
+    }
+
+    public int getLengthFieldOffset() {
+        return lengthFieldOffset;
+    }
+
+    public LengthFieldCodec setLengthFieldOffset(int lengthFieldOffset) {
+        if (lengthFieldOffset < 0) {
+            throw new IllegalArgumentException("lengthFieldOffset < 0");
+        }
+        this.lengthFieldOffset = lengthFieldOffset;
+        return this;
+    }
+
+    public int getLengthFieldLength() {
+        return lengthFieldLength;
+    }
+
+    public LengthFieldCodec setLengthFieldLength(int lengthFieldLength) {
+        switch (lengthFieldLength) {
+            case LENGTH_FIELD_VARINT:
+            case 1:
+            case 2:
+            case 3:
+            case 4:
+            case 8:
+                break;
+            default:
+                throw new IllegalArgumentException("lengthFieldLength must be 1, 2, 3, 4, 8 or LENGTH_FIELD_VARINT: " + lengthFieldLength);
+        }
+        this.lengthFieldLength = lengthFieldLength;
+        return this;
+    }
+
+    public int getLengthAdjustment() {
+        return lengthAdjustment;
+    }
+
+    public LengthFieldCodec setLengthAdjustment(int lengthAdjustment) {
+        this.lengthAdjustment = lengthAdjustment;
+        return this;
+    }
+
+    public int getInitialBytesToStrip() {
+        return initialBytesToStrip;
+    }
+
+    public LengthFieldCodec setInitialBytesToStrip(int initialBytesToStrip) {
+        if (initialBytesToStrip < 0) {
+            throw new IllegalArgumentException("initialBytesToStrip < 0");
+        }
+        this.initialBytesToStrip = initialBytesToStrip;
+        return this;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * 长度字段字节序，varint不受影响
+     *
+     * @param byteOrder
+     * @return
+     */
+    public LengthFieldCodec setByteOrder(ByteOrder byteOrder) {
+        this.byteOrder = byteOrder;
+        return this;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * 包总长度上限，超过时认为数据错误，丢弃已接收数据并抛出IOException
+     *
+     * @param maxFrameLength 大于0
+     * @return
+     */
+    public LengthFieldCodec setMaxFrameLength(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength <= 0");
+        }
+        this.maxFrameLength = maxFrameLength;
+        return this;
+    }
+
+    @Override
+    public FrameDecoder<ByteBuffer> newDecoder() {
+        return new LengthFieldDecoder();
+    }
+
+    @Override
+    public FrameEncoder<ByteBuffer> getEncoder() {
+        return encoder;
+    }
+
+    @Override
+    public boolean isHeapReceiveBuffer() {
+        return false;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * 每个连接一个，只在事件循环线程调用
+     */
+    private class LengthFieldDecoder implements FrameDecoder<ByteBuffer> {
+        private BufferAllocator allocator;
+        /**
+         * 不完整包的数据，读模式，没有未处理数据时为null
+         */
+        private ByteBuffer cumulation;
+        private PooledBuffer cumulationPooled;
+        /**
+         * 已读取到的长度字段字节数，varint时在读取长度时计算
+         */
+        private int fieldBytes;
+
+        @Override
+        public void decode(ByteBuffer byteBuffer, FrameHandler<ByteBuffer> frameHandler) throws Exception {
+            if (cumulation == null) {
+                //没有半包数据，直接在接收缓冲区上切分，剩余的不完整包再复制
+                try {
+                    decodeFrames(byteBuffer, frameHandler);
+                } finally {
+                    if (byteBuffer.hasRemaining()) {
+                        appendCumulation(byteBuffer);
+                    }
+                }
+                return;
+            }
+            appendCumulation(byteBuffer);
+            try {
+                decodeFrames(cumulation, frameHandler);
+            } finally {
+                if (!cumulation.hasRemaining()) {
+                    releaseCumulation();
+                }
+            }
+        }
+
+        /**
+         * 切分完整包，position移动到第一个不完整包的开始位置
+         *
+         * @param byteBuffer
+         * @param frameHandler
+         * @throws Exception
+         */
+        private void decodeFrames(ByteBuffer byteBuffer, FrameHandler<ByteBuffer> frameHandler) throws Exception {
+            //回调异常时继续切分后面已到达的包，最后抛出第一个异常
+            Exception error = null;
+            while (true) {
+                int start = byteBuffer.position();
+                int readable = byteBuffer.limit() - start;
+                long length = readLength(byteBuffer, start + lengthFieldOffset, readable - lengthFieldOffset);
+                if (length < 0) {
+                    break;
+                }
+                long frameLength = lengthFieldOffset + fieldBytes + length + lengthAdjustment;
+                if (frameLength < lengthFieldOffset + fieldBytes || frameLength > maxFrameLength || frameLength < initialBytesToStrip) {
+                    byteBuffer.position(byteBuffer.limit());
+                    throw new IOException("invalid frame length: " + frameLength + ", maxFrameLength: " + maxFrameLength);
+                }
+                if (readable < frameLength) {
+                    break;
+                }
+                int end = start + (int) frameLength;
+                byteBuffer.position(start + initialBytesToStrip).limit(end);
+                ByteBuffer frame = byteBuffer.slice().asReadOnlyBuffer();
+                byteBuffer.limit(start + readable).position(end);
+                try {
+                    frameHandler.onFrame(frame);
+                } catch (Exception e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        /**
+         * 读取长度字段，数据不够时返回-1
+         *
+         * @param byteBuffer
+         * @param index
+         * @param readable   index之后可读字节数
+         * @return
+         * @throws IOException varint超过5字节或者超过32位
+         */
+        private long readLength(ByteBuffer byteBuffer, int index, int readable) throws IOException {
+            if (lengthFieldLength == LENGTH_FIELD_VARINT) {
+                int value = 0;
+                for (int i = 0; i < 5; i++) {
+                    if (i >= readable) {
+                        return -1;
+                    }
+                    int b = byteBuffer.get(index + i);
+                    if (i == 4 && (b & 0xFF) > 0x0F) {
+                        //第5字节只能有低4位，否则超过32位
+                        break;
+                    }
+                    value |= (b & 0x7F) << (i * 7);
+                    if (b >= 0) {
+                        fieldBytes = i + 1;
+                        return value & 0xFFFFFFFFL;
+                    }
+                }
+                byteBuffer.position(byteBuffer.limit());
+                throw new IOException("varint length field too long");
+            }
+            if (readable < lengthFieldLength) {
+                return -1;
+            }
+            fieldBytes = lengthFieldLength;
+            boolean swap = byteBuffer.order() != byteOrder;
+            switch (lengthFieldLength) {
+                case 1:
+                    return byteBuffer.get(index) & 0xFF;
+                case 2:
+                    short s = byteBuffer.getShort(index);
+                    return (swap ? Short.reverseBytes(s) : s) & 0xFFFF;
+                case 4:
+                    int i = byteBuffer.getInt(index);
+                    return (swap ? Integer.reverseBytes(i) : i) & 0xFFFFFFFFL;
+                case 8:
+                    long l = byteBuffer.getLong(index);
+                    return swap ? Long.reverseBytes(l) : l;
+                default:
+                    long value = 0;
+                    if (byteOrder == ByteOrder.BIG_ENDIAN) {
+                        for (int j = 0; j < lengthFieldLength; j++) {
+                            value = value << 8 | byteBuffer.get(index + j) & 0xFF;
+                        }
+                    } else {
+                        for (int j = lengthFieldLength - 1; j >= 0; j--) {
+                            value = value << 8 | byteBuffer.get(index + j) & 0xFF;
+                        }
+                    }
+                    return value;
+            }
+        }
+
+        /**
+         * 追加到半包缓冲区，尾部空间不够时只移动未处理数据，仍不够才扩容
+         *
+         * @param byteBuffer
+         */
+        private void appendCumulation(ByteBuffer byteBuffer) {
+            int incoming = byteBuffer.remaining();
+            if (cumulation == null) {
+                cumulation = allocateCumulation(Math.max(BUFFER_SIZE, incoming));
+                cumulation.put(byteBuffer).flip();
+                return;
+            }
+            int unread = cumulation.remaining();
+            if (cumulation.capacity() - cumulation.limit() >= incoming) {
+                int position = cumulation.position();
+                cumulation.position(cumulation.limit()).limit(cumulation.capacity());
+                cumulation.put(byteBuffer).flip();
+                cumulation.position(position);
+            } else if (cumulation.capacity() >= unread + incoming) {
+                cumulation.compact();
+                cumulation.put(byteBuffer).flip();
+            } else {
+                PooledBuffer oldPooled = cumulationPooled;
+                ByteBuffer newCumulation = allocateCumulation(Math.max(cumulation.capacity() * 2, unread + incoming));
+                newCumulation.put(cumulation).put(byteBuffer).flip();
+                cumulation = newCumulation;
+                if (oldPooled != null) {
+                    oldPooled.release();
+                }
+            }
+        }
+
+        private ByteBuffer allocateCumulation(int size) {
+            if (allocator == null) {
+                cumulationPooled = null;
+                return ByteBuffer.allocate(size);
+            }
+            cumulationPooled = allocator.heapBuffer(size);
+            ByteBuffer byteBuffer = cumulationPooled.buffer();
+            byteBuffer.limit(byteBuffer.capacity());
+            return byteBuffer;
+        }
+
+        private void releaseCumulation() {
+            cumulation = null;
+            if (cumulationPooled != null) {
+                cumulationPooled.release();
+                cumulationPooled = null;
+            }
+        }
+
+        @Override
+        public void setBufferAllocator(BufferAllocator allocator) {
+            this.allocator = allocator;
+        }
+
+        @Override
+        public void releaseDecoder() {
+            releaseCumulation();
+            allocator = null;
+        }
+    }
+}
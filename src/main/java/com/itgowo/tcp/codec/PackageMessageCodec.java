@@ -0,0 +1,356 @@
+package com.itgowo.tcp.codec;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+import com.itgowo.tcp.me.ByteBuffer;
+import com.itgowo.tcp.me.PackageMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * @author lujianchao
+ * PackageMessage方案，使用自定义ByteBuffer，心跳包不交给回调
+ * 解码选项在连接开始前设置，对之后创建的解码器生效
+ */
+public class PackageMessageCodec implements Codec<PackageMessage> {
+    private final FrameEncoder<PackageMessage> encoder = new FrameEncoder<PackageMessage>() {
+        @Override
+        public PooledBuffer encode(PackageMessage message, BufferAllocator allocator) {
+            if (compressor != null) {
+                message = compress(message);
+            }
+            //按编解码方案的signMode编码，不修改调用方的消息
+            return toPooledBuffer(message.encodePackageMessage(allocator, signMode), allocator);
+        }
+
+        @Override
+        public PooledBuffer encodeHeart(BufferAllocator allocator) {
+            return toPooledBuffer((compactHeart ? PackageMessage.getCompactHeartPackageMessage() : PackageMessage.getHeartPackageMessage()).encodePackageMessage(allocator), allocator);
+        }
+    };
+    private boolean recycle = false;
+    private boolean compactHeart = false;
+    private int fixLength = 0;
+    private int signMode = PackageMessage.SIGN_MODE_LEGACY;
+    private int maxLength = PackageMessage.DEFAULT_MAX_LENGTH;
+    private int maxAggregation = 0;
+    private File spillDirectory;
+    /**
+     * 所有解码器累计的错误数据统计
+     */
+    private final AtomicLong discardedBytes = new AtomicLong();
+    private final AtomicLong resyncCount = new AtomicLong();
+    private final AtomicLong signErrorCount = new AtomicLong();
+    /**
+     * data压缩，为null时不压缩
+     */
+    private FrameCompressor compressor;
+
+    public boolean isCompactHeart() {
+        return compactHeart;
+    }
+
+    /**
+     * 心跳包使用TYPE_COMPACT紧凑类型，3 byte，需要服务端支持
+     *
+     * @param compactHeart
+     * @return
+     */
+    public PackageMessageCodec setCompactHeart(boolean compactHeart) {
+        this.compactHeart = compactHeart;
+        return this;
+    }
+
+    public boolean isRecycle() {
+        return recycle;
+    }
+
+    /**
+     * 参考PackageMessage.setRecycle()，回调结束后自动release()
+     *
+     * @param recycle
+     * @return
+     */
+    public PackageMessageCodec setRecycle(boolean recycle) {
+        this.recycle = recycle;
+        return this;
+    }
+
+    public int getFixLength() {
+        return fixLength;
+    }
+
+    /**
+     * 参考PackageMessage.setFixLength()
+     *
+     * @param fixLength
+     * @return
+     */
+    public PackageMessageCodec setFixLength(int fixLength) {
+        this.fixLength = fixLength;
+        return this;
+    }
+
+    public int getSignMode() {
+        return signMode;
+    }
+
+    /**
+     * 参考PackageMessage.setSignMode()，收发两端需要一致，编码时按此方式计算dataSign，不修改消息本身
+     *
+     * @param signMode
+     * @return
+     */
+    public PackageMessageCodec setSignMode(int signMode) {
+        if (signMode < PackageMessage.SIGN_MODE_NONE || signMode > PackageMessage.SIGN_MODE_CRC32C) {
+            throw new IllegalArgumentException("signMode: " + signMode);
+        }
+        this.signMode = signMode;
+        return this;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * 参考PackageMessage.setMaxLength()
+     *
+     * @param maxLength
+     * @return
+     */
+    public PackageMessageCodec setMaxLength(int maxLength) {
+        if (maxLength < PackageMessage.LENGTH_HEAD) {
+            throw new IllegalArgumentException("maxLength < " + PackageMessage.LENGTH_HEAD);
+        }
+        this.maxLength = maxLength;
+        return this;
+    }
+
+    public int getMaxAggregation() {
+        return maxAggregation;
+    }
+
+    /**
+     * 参考PackageMessage.setMaxAggregation()，分段消息同样交给回调
+     *
+     * @param maxAggregation
+     * @return
+     */
+    public PackageMessageCodec setMaxAggregation(int maxAggregation) {
+        if (maxAggregation < 0) {
+            throw new IllegalArgumentException("maxAggregation < 0");
+        }
+        this.maxAggregation = maxAggregation;
+        return this;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * 参考PackageMessage.setSpillDirectory()
+     *
+     * @param spillDirectory
+     * @return
+     */
+    public PackageMessageCodec setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * 遇到错误数据重新查找包头时丢弃的字节数，包括校验失败的包，所有连接累计
+     *
+     * @return
+     */
+    public long getDiscardedBytes() {
+        return discardedBytes.get();
+    }
+
+    /**
+     * 遇到错误数据重新查找包头的次数，所有连接累计
+     *
+     * @return
+     */
+    public long getResyncCount() {
+        return resyncCount.get();
+    }
+
+    /**
+     * dataSign校验失败丢弃的包数量，所有连接累计
+     *
+     * @return
+     */
+    public long getSignErrorCount() {
+        return signErrorCount.get();
+    }
+
+    public FrameCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * 设置data压缩，收发两端都需要开启，连接开始前设置
+     *
+     * @param compressor
+     * @return
+     */
+    public PackageMessageCodec setCompressor(FrameCompressor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+
+    @Override
+    public FrameDecoder<PackageMessage> newDecoder() {
+        final PackageMessage decoder = PackageMessage.getPackageMessage()
+                .setRecycle(recycle)
+                .setFixLength(fixLength)
+                .setSignMode(signMode)
+                .setMaxLength(maxLength)
+                .setMaxAggregation(maxAggregation)
+                .setSpillDirectory(spillDirectory);
+        final FrameCompressor compressor = this.compressor;
+        final Inflater inflater = compressor == null ? null : compressor.newInflater();
+        return new FrameDecoder<PackageMessage>() {
+            private long lastDiscardedBytes;
+            private long lastResyncCount;
+            private long lastSignErrorCount;
+
+            @Override
+            public void decode(java.nio.ByteBuffer byteBuffer, FrameHandler<PackageMessage> frameHandler) throws Exception {
+                List<PackageMessage> list = decoder.packageMessage(byteBuffer);
+                if (decoder.getDiscardedBytes() != lastDiscardedBytes || decoder.getSignErrorCount() != lastSignErrorCount) {
+                    updateStatistics();
+                }
+                //一个包解压或回调异常时继续处理后面的包，保证全部交给回调并归还，最后抛出第一个异常
+                //写临时文件失败的包已经丢弃，异常同样在最后抛出
+                Exception error = decoder.getSpillError();
+                for (int i = 0; i < list.size(); i++) {
+                    PackageMessage message = list.get(i);
+                    try {
+                        //流式接收的包不解压，带压缩标记交给回调
+                        if (compressor != null && (message.getDataType() & FrameCompressor.DATA_TYPE_FLAG_COMPRESSED) != 0
+                                && !message.isStreamChunk() && message.getSpillFile() == null) {
+                            decompress(compressor, inflater, message);
+                        }
+                        if (message.getDataType() != PackageMessage.DATA_TYPE_HEART) {
+                            frameHandler.onFrame(message);
+                        }
+                    } catch (Exception e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    } finally {
+                        message.release();
+                    }
+                }
+                if (error != null) {
+                    throw error;
+                }
+            }
+
+            /**
+             * 解码器的统计累加到编解码方案
+             */
+            private void updateStatistics() {
+                discardedBytes.addAndGet(decoder.getDiscardedBytes() - lastDiscardedBytes);
+                resyncCount.addAndGet(decoder.getResyncCount() - lastResyncCount);
+                signErrorCount.addAndGet(decoder.getSignErrorCount() - lastSignErrorCount);
+                lastDiscardedBytes = decoder.getDiscardedBytes();
+                lastResyncCount = decoder.getResyncCount();
+                lastSignErrorCount = decoder.getSignErrorCount();
+            }
+
+            @Override
+            public void setBufferAllocator(BufferAllocator allocator) {
+                decoder.setBufferAllocator(allocator);
+            }
+
+            @Override
+            public void releaseDecoder() {
+                decoder.releaseDecoder();
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * 复制到分配器偏好的缓冲区(默认堆外)，并归还编码用的池化数组
+     *
+     * @param byteBuffer
+     * @param allocator
+     * @return
+     */
+    private static PooledBuffer toPooledBuffer(ByteBuffer byteBuffer, BufferAllocator allocator) {
+        if (byteBuffer == null) {
+            return null;
+        }
+        PooledBuffer pooledBuffer = allocator.buffer(byteBuffer.readableBytes());
+        pooledBuffer.buffer().put(byteBuffer.array(), byteBuffer.readerIndex(), byteBuffer.readableBytes()).flip();
+        byteBuffer.release();
+        return pooledBuffer;
+    }
+
+    /**
+     * 压缩data，压缩后变小时返回带压缩标记的新消息，否则返回原消息
+     *
+     * @param message
+     * @return
+     */
+    private PackageMessage compress(PackageMessage message) {
+        ByteBuffer data = message.getData();
+        if (data == null || message.getType() == PackageMessage.TYPE_FIX_LENGTH && message.getDataLength() == 0) {
+            return message;
+        }
+        int length = data.readerIndex(0).readableBytes();
+        if (!compressor.isCompressible(message.getDataType(), length)) {
+            return message;
+        }
+        byte[] compressed = compressor.compress(data.array(), 0, length);
+        if (compressed == null) {
+            return message;
+        }
+        return PackageMessage.getPackageMessage()
+                .setType(message.getType())
+                .setDataType(message.getDataType() | FrameCompressor.DATA_TYPE_FLAG_COMPRESSED)
+                .setCompactSign(message.isCompactSign())
+                .setData(compressed);
+    }
+
+    /**
+     * 解压data并去掉压缩标记，原data归还
+     *
+     * @param compressor
+     * @param inflater
+     * @param message
+     * @throws IOException
+     */
+    private static void decompress(FrameCompressor compressor, Inflater inflater, PackageMessage message) throws IOException {
+        ByteBuffer data = message.getData();
+        message.setDataType(message.getDataType() & ~FrameCompressor.DATA_TYPE_FLAG_COMPRESSED);
+        if (data == null) {
+            return;
+        }
+        byte[] bytes = compressor.decompress(inflater, data.array(), 0, data.readerIndex(0).readableBytes());
+        message.setData(bytes);
+        data.release();
+    }
+
+    @Override
+    public FrameEncoder<PackageMessage> getEncoder() {
+        return encoder;
+    }
+
+    @Override
+    public boolean isHeapReceiveBuffer() {
+        return false;
+    }
+}
@@ -0,0 +1,55 @@
+package com.itgowo.tcp.codec;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author lujianchao
+ * 不处理粘包分包，接收缓冲区直接交给回调，发送时原样复制，不移动调用方ByteBuffer的position
+ * 回调得到的ByteBuffer是连接复用的接收缓冲区，只在回调内有效
+ */
+public class RawCodec implements Codec<ByteBuffer> {
+    private static final FrameEncoder<ByteBuffer> ENCODER = new FrameEncoder<ByteBuffer>() {
+        @Override
+        public PooledBuffer encode(ByteBuffer message, BufferAllocator allocator) {
+            PooledBuffer pooledBuffer = allocator.buffer(message.remaining());
+            pooledBuffer.buffer().put(message.duplicate()).flip();
+            return pooledBuffer;
+        }
+
+        @Override
+        public PooledBuffer encodeHeart(BufferAllocator allocator) {
+            return null;
+        }
+    };
+
+    @Override
+    public FrameDecoder<ByteBuffer> newDecoder() {
+        return new FrameDecoder<ByteBuffer>() {
+            @Override
+            public void decode(ByteBuffer byteBuffer, FrameHandler<ByteBuffer> frameHandler) throws Exception {
+                frameHandler.onFrame(byteBuffer);
+            }
+
+            @Override
+            public void setBufferAllocator(BufferAllocator allocator) {
+            }
+
+            @Override
+            public void releaseDecoder() {
+            }
+        };
+    }
+
+    @Override
+    public FrameEncoder<ByteBuffer> getEncoder() {
+        return ENCODER;
+    }
+
+    @Override
+    public boolean isHeapReceiveBuffer() {
+        return true;
+    }
+}
@@ -1,6 +1,10 @@
 package com.itgowo.tcp.me;
 
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+
 import java.io.IOException;
+import java.nio.ByteOrder;
 
 /**
  * @author lujianchao
@@ -13,6 +17,14 @@ import java.io.IOException;
  */
 public class ByteBuffer {
     public static final int BUFFER_SIZE = 256;
+    /**
+     * 默认扩容阈值，容量小于阈值时翻倍扩容，超过后每次增加一个阈值大小，避免大数组翻倍浪费内存
+     */
+    public static final int DEFAULT_GROWTH_THRESHOLD = 4 * 1024 * 1024;
+    /**
+     * 数组最大长度，部分虚拟机会在数组头保留几个字
+     */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
     /**
      * 指针位置，即将读取的位置
      */
@@ -22,9 +34,35 @@ public class ByteBuffer {
      */
     private int writerIndex;
     private byte[] data;
+    /**
+     * 池化分配器，为null时使用普通数组
+     */
+    private BufferAllocator allocator;
+    /**
+     * 当前数组所属的池化缓冲区
+     */
+    private PooledBuffer pooledBuffer;
+
+    /**
+     * 初始容量，shrink()不会缩小到此容量以下
+     */
+    private int initialCapacity;
+    private int growthThreshold = DEFAULT_GROWTH_THRESHOLD;
+    /**
+     * short、int、long读写字节序，默认大端，与协议头一致
+     */
+    private boolean bigEndian = true;
 
     private ByteBuffer(int capacity) {
         data = new byte[capacity];
+        initialCapacity = capacity;
+    }
+
+    private ByteBuffer(BufferAllocator allocator, int capacity) {
+        this.initialCapacity = capacity;
+        this.allocator = allocator;
+        this.pooledBuffer = allocator.heapBuffer(capacity);
+        this.data = pooledBuffer.array();
     }
 
     /**
@@ -86,15 +124,54 @@ public class ByteBuffer {
     }
 
     /**
-     * 删除已读部分，重新初始化数组
+     * 删除已读部分，未读数据移动到数组开头，不重新分配数组
      */
     public void discardReadBytes() {
-        byte[] newBytes = new byte[capacity()];
+        if (readerIndex == 0) {
+            return;
+        }
         int oldReadableBytes = readableBytes();
-        System.arraycopy(data, readerIndex, newBytes, 0, oldReadableBytes);
+        if (oldReadableBytes > 0) {
+            System.arraycopy(data, readerIndex, data, 0, oldReadableBytes);
+        }
         writerIndex = oldReadableBytes;
         readerIndex = 0;
-        data = newBytes;
+    }
+
+    /**
+     * 缩容，未读数据不到容量的1/4时容量减半，不小于初始容量，同时删除已读部分
+     * 适合长期持有的缓冲区在突发大数据后释放内存，多次调用逐步缩小
+     *
+     * @return 是否缩容
+     */
+    public boolean shrink() {
+        int readableBytes = readableBytes();
+        int newCapacity = data.length >>> 1;
+        if (newCapacity < initialCapacity || readableBytes >= data.length >>> 2) {
+            return false;
+        }
+        replaceArray(newCapacity, readerIndex, readableBytes);
+        writerIndex = readableBytes;
+        readerIndex = 0;
+        return true;
+    }
+
+    public int getGrowthThreshold() {
+        return growthThreshold;
+    }
+
+    /**
+     * 设置扩容阈值，容量小于阈值时翻倍扩容，超过后每次增加growthThreshold
+     *
+     * @param growthThreshold
+     * @return
+     */
+    public ByteBuffer setGrowthThreshold(int growthThreshold) {
+        if (growthThreshold <= 0) {
+            throw new IllegalArgumentException("growthThreshold <= 0");
+        }
+        this.growthThreshold = growthThreshold;
+        return this;
     }
 
     /**
@@ -141,6 +218,41 @@ public class ByteBuffer {
         return new ByteBuffer(capacity);
     }
 
+    /**
+     * 使用池化数组，用完需要调用release()归还，扩容时自动更换池化数组
+     *
+     * @param allocator
+     * @param capacity
+     * @return
+     */
+    public static ByteBuffer newByteBuffer(BufferAllocator allocator, int capacity) {
+        return new ByteBuffer(allocator, capacity);
+    }
+
+    /**
+     * 是否使用池化数组
+     *
+     * @return
+     */
+    public boolean isPooled() {
+        return pooledBuffer != null;
+    }
+
+    /**
+     * 归还池化数组，之后不可再使用此ByteBuffer，非池化的调用无影响
+     */
+    public void release() {
+        if (pooledBuffer != null) {
+            PooledBuffer old = pooledBuffer;
+            pooledBuffer = null;
+            allocator = null;
+            data = new byte[0];
+            readerIndex = 0;
+            writerIndex = 0;
+            old.release();
+        }
+    }
+
     /**
      * 当前容量，当写入数据超过当前容量后自动扩容
      *
@@ -190,7 +302,7 @@ public class ByteBuffer {
      */
     public int readInt() throws ByteBufferException {
         if (readableBytes() >= 4) {
-            int result = byteArrayToInt(data, readerIndex);
+            int result = getInt0(readerIndex);
             readerIndex += 4;
             return result;
         } else {
@@ -198,6 +310,162 @@ public class ByteBuffer {
         }
     }
 
+    /**
+     * 读取short值，2 byte，从readIndex位置开始
+     *
+     * @return
+     * @throws ByteBufferException
+     */
+    public short readShort() throws ByteBufferException {
+        if (readableBytes() >= 2) {
+            short result = getShort0(readerIndex);
+            readerIndex += 2;
+            return result;
+        } else {
+            throw new ByteBufferException("readableBytes < 2");
+        }
+    }
+
+    /**
+     * 读取long值，8 byte，从readIndex位置开始
+     *
+     * @return
+     * @throws ByteBufferException
+     */
+    public long readLong() throws ByteBufferException {
+        if (readableBytes() >= 8) {
+            long result = getLong0(readerIndex);
+            readerIndex += 8;
+            return result;
+        } else {
+            throw new ByteBufferException("readableBytes < 8");
+        }
+    }
+
+    /**
+     * 读取指定位置的byte，不移动指针，index范围为0到writerIndex
+     *
+     * @param index
+     * @return
+     * @throws ByteBufferException
+     */
+    public byte getByte(int index) throws ByteBufferException {
+        checkIndex(index, 1);
+        return data[index];
+    }
+
+    /**
+     * 读取指定位置的short，不移动指针
+     *
+     * @param index
+     * @return
+     * @throws ByteBufferException
+     */
+    public short getShort(int index) throws ByteBufferException {
+        checkIndex(index, 2);
+        return getShort0(index);
+    }
+
+    /**
+     * 读取指定位置的integer，不移动指针
+     *
+     * @param index
+     * @return
+     * @throws ByteBufferException
+     */
+    public int getInt(int index) throws ByteBufferException {
+        checkIndex(index, 4);
+        return getInt0(index);
+    }
+
+    /**
+     * 读取指定位置的long，不移动指针
+     *
+     * @param index
+     * @return
+     * @throws ByteBufferException
+     */
+    public long getLong(int index) throws ByteBufferException {
+        checkIndex(index, 8);
+        return getLong0(index);
+    }
+
+    /**
+     * 修改已写入区域指定位置的byte，不移动指针，例如先占位后回填长度
+     *
+     * @param index
+     * @param value
+     * @return
+     * @throws ByteBufferException
+     */
+    public ByteBuffer setByte(int index, int value) throws ByteBufferException {
+        checkIndex(index, 1);
+        data[index] = (byte) value;
+        return this;
+    }
+
+    /**
+     * 修改已写入区域指定位置的short，不移动指针
+     *
+     * @param index
+     * @param value
+     * @return
+     * @throws ByteBufferException
+     */
+    public ByteBuffer setShort(int index, int value) throws ByteBufferException {
+        checkIndex(index, 2);
+        setShort0(index, value);
+        return this;
+    }
+
+    /**
+     * 修改已写入区域指定位置的integer，不移动指针
+     *
+     * @param index
+     * @param value
+     * @return
+     * @throws ByteBufferException
+     */
+    public ByteBuffer setInt(int index, int value) throws ByteBufferException {
+        checkIndex(index, 4);
+        setInt0(index, value);
+        return this;
+    }
+
+    /**
+     * 修改已写入区域指定位置的long，不移动指针
+     *
+     * @param index
+     * @param value
+     * @return
+     * @throws ByteBufferException
+     */
+    public ByteBuffer setLong(int index, long value) throws ByteBufferException {
+        checkIndex(index, 8);
+        setLong0(index, value);
+        return this;
+    }
+
+    /**
+     * 当前字节序
+     *
+     * @return
+     */
+    public ByteOrder order() {
+        return bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /**
+     * 设置short、int、long读写字节序
+     *
+     * @param order
+     * @return
+     */
+    public ByteBuffer order(ByteOrder order) {
+        bigEndian = order == ByteOrder.BIG_ENDIAN;
+        return this;
+    }
+
     /**
      * 读取数据到bytes，从readIndex位置开始
      *
@@ -222,14 +490,31 @@ public class ByteBuffer {
      * @return
      */
     public int readBytes(ByteBuffer b) {
-        byte[] bytes = new byte[b.writableBytes()];
-        int result = readBytesFromBytes(data, bytes, readerIndex);
-        readerIndex += bytes.length;
-        b.writeBytes(bytes);
-        return result;
+        int length = b.writableBytes();
+        System.arraycopy(data, readerIndex, b.data, b.writerIndex, length);
+        readerIndex += length;
+        b.writerIndex += length;
+        return data.length;
 
     }
 
+    /**
+     * 读取指定长度数据到另一个ByteBuffer，数组间直接复制
+     *
+     * @param b
+     * @param length
+     * @return
+     * @throws ByteBufferException
+     */
+    public ByteBuffer readBytes(ByteBuffer b, int length) throws ByteBufferException {
+        if (readableBytes() < length) {
+            throw new ByteBufferException("readableBytes < " + length);
+        }
+        b.writeBytes(data, readerIndex, length);
+        readerIndex += length;
+        return this;
+    }
+
     /**
      * 写入Byte数据，1 byte
      *
@@ -266,12 +551,54 @@ public class ByteBuffer {
      */
     public ByteBuffer writeInt(int b) {
         autoExpandCapacity(4);
-        writeBytesToBytes(intToByteArray(b), data, writerIndex);
+        setInt0(writerIndex, b);
         writerIndex += 4;
         return this;
 
     }
 
+    /**
+     * 写入short数据，2 byte，丢弃int高位
+     *
+     * @param b
+     * @return
+     */
+    public ByteBuffer writeShort(int b) {
+        autoExpandCapacity(2);
+        setShort0(writerIndex, b);
+        writerIndex += 2;
+        return this;
+    }
+
+    /**
+     * 写入long数据，8 byte
+     *
+     * @param b
+     * @return
+     */
+    public ByteBuffer writeLong(long b) {
+        autoExpandCapacity(8);
+        setLong0(writerIndex, b);
+        writerIndex += 8;
+        return this;
+    }
+
+    /**
+     * 写入varint，每个字节低7位为数据，最高位为1表示后面还有，低位在前，1-5 byte
+     *
+     * @param b
+     * @return
+     */
+    public ByteBuffer writeVarint(int b) {
+        autoExpandCapacity(5);
+        while ((b & ~0x7F) != 0) {
+            data[writerIndex++] = (byte) (b & 0x7F | 0x80);
+            b >>>= 7;
+        }
+        data[writerIndex++] = (byte) b;
+        return this;
+    }
+
     /**
      * 写入数组
      *
@@ -298,6 +625,35 @@ public class ByteBuffer {
         return this;
     }
 
+    /**
+     * 写入数组的一部分
+     *
+     * @param b
+     * @param srcIndex 数组开始位置
+     * @param length   写入长度
+     * @return
+     */
+    public ByteBuffer writeBytes(byte[] b, int srcIndex, int length) {
+        autoExpandCapacity(length);
+        System.arraycopy(b, srcIndex, data, writerIndex, length);
+        writerIndex += length;
+        return this;
+    }
+
+    /**
+     * 写入一个Java Nio ByteBuffer剩余数据，直接复制到内部数组，不产生临时数组
+     *
+     * @param b
+     * @return
+     */
+    public ByteBuffer writeBytes(java.nio.ByteBuffer b) {
+        int remaining = b.remaining();
+        autoExpandCapacity(remaining);
+        b.get(data, writerIndex, remaining);
+        writerIndex += remaining;
+        return this;
+    }
+
     /*
      * 写入一个ByteBuffer可读数据
      * @param b
@@ -305,10 +661,8 @@ public class ByteBuffer {
      */
     public ByteBuffer writeBytes(ByteBuffer b) {
         int readableBytes = b.readableBytes();
-        autoExpandCapacity(readableBytes);
-        writeBytesToBytes(b.readableBytesArray(), data, writerIndex);
+        writeBytes(b.data, b.readerIndex, readableBytes);
         b.readerIndex(b.writerIndex);
-        writerIndex += readableBytes;
         return this;
     }
 
@@ -320,39 +674,125 @@ public class ByteBuffer {
      * @return
      */
     public ByteBuffer writeBytes(ByteBuffer b, int dataLength) {
-        autoExpandCapacity(dataLength);
-        writeBytesToBytes(b.readableBytesArray(), data, writerIndex, dataLength);
+        writeBytes(b.data, b.readerIndex, dataLength);
         b.readerIndex(b.readerIndex + dataLength);
-        writerIndex += dataLength;
         return this;
     }
 
     /**
-     * 检查写入数据长度，如果不够则扩容,自动扩容,递增值为BUFFER_SIZE的倍数
+     * 检查写入数据长度，如果不够则扩容，小于扩容阈值时翻倍，超过阈值后按阈值递增，均摊O(1)
      *
      * @param addLength
      */
     private void autoExpandCapacity(int addLength) {
-        if (writableBytes() < addLength) {
-            int newSize = writableBytes() + addLength;
-            int size = 0;
-            while (size < newSize) {
-                size += BUFFER_SIZE;
-            }
-            byte[] newBytes = new byte[size];
-            writeBytesToBytes(data, newBytes, 0);
-            data = newBytes;
+        if (writableBytes() >= addLength) {
+            return;
+        }
+        int minCapacity = writerIndex + addLength;
+        if (minCapacity < 0 || minCapacity > MAX_CAPACITY) {
+            throw new IllegalStateException("capacity overflow, writerIndex=" + writerIndex + ", addLength=" + addLength);
         }
+        replaceArray(calculateNewCapacity(minCapacity), 0, writerIndex);
     }
 
     /**
-     * 数组转换成整数型
+     * 计算扩容后的容量
      *
-     * @param b
-     * @return return 0；
+     * @param minCapacity
+     * @return
      */
-    private int byteArrayToInt(byte[] b, int position) {
-        return b[position + 3] & 0xFF | (b[position + 2] & 0xFF) << 8 | (b[position + 1] & 0xFF) << 16 | (b[position] & 0xFF) << 24;
+    private int calculateNewCapacity(int minCapacity) {
+        if (minCapacity > growthThreshold) {
+            long newCapacity = (long) minCapacity / growthThreshold * growthThreshold + growthThreshold;
+            return (int) Math.min(newCapacity, MAX_CAPACITY);
+        }
+        int newCapacity = Math.max(data.length, BUFFER_SIZE);
+        while (newCapacity < minCapacity) {
+            newCapacity <<= 1;
+        }
+        return Math.min(newCapacity, growthThreshold);
+    }
+
+    /**
+     * 更换数组并复制旧数据到新数组开头，池化模式下从分配器获取新数组，复制完成后归还旧数组
+     *
+     * @param size     新数组大小
+     * @param position 旧数据开始位置
+     * @param length   旧数据长度
+     */
+    private void replaceArray(int size, int position, int length) {
+        if (allocator == null) {
+            byte[] newBytes = new byte[size];
+            System.arraycopy(data, position, newBytes, 0, length);
+            data = newBytes;
+            return;
+        }
+        PooledBuffer old = pooledBuffer;
+        pooledBuffer = allocator.heapBuffer(size);
+        System.arraycopy(data, position, pooledBuffer.array(), 0, length);
+        data = pooledBuffer.array();
+        old.release();
+    }
+
+    private void checkIndex(int index, int length) throws ByteBufferException {
+        if (index < 0 || index > writerIndex - length) {
+            throw new ByteBufferException("index: " + index + ", length: " + length + ", writerIndex: " + writerIndex);
+        }
+    }
+
+    private short getShort0(int index) {
+        if (bigEndian) {
+            return (short) ((data[index] & 0xFF) << 8 | data[index + 1] & 0xFF);
+        }
+        return (short) (data[index] & 0xFF | (data[index + 1] & 0xFF) << 8);
+    }
+
+    private int getInt0(int index) {
+        if (bigEndian) {
+            return (data[index] & 0xFF) << 24 | (data[index + 1] & 0xFF) << 16 | (data[index + 2] & 0xFF) << 8 | data[index + 3] & 0xFF;
+        }
+        return data[index] & 0xFF | (data[index + 1] & 0xFF) << 8 | (data[index + 2] & 0xFF) << 16 | (data[index + 3] & 0xFF) << 24;
+    }
+
+    private long getLong0(int index) {
+        if (bigEndian) {
+            return (getInt0(index) & 0xFFFFFFFFL) << 32 | getInt0(index + 4) & 0xFFFFFFFFL;
+        }
+        return getInt0(index) & 0xFFFFFFFFL | (getInt0(index + 4) & 0xFFFFFFFFL) << 32;
+    }
+
+    private void setShort0(int index, int value) {
+        if (bigEndian) {
+            data[index] = (byte) (value >>> 8);
+            data[index + 1] = (byte) value;
+        } else {
+            data[index] = (byte) value;
+            data[index + 1] = (byte) (value >>> 8);
+        }
+    }
+
+    private void setInt0(int index, int value) {
+        if (bigEndian) {
+            data[index] = (byte) (value >>> 24);
+            data[index + 1] = (byte) (value >>> 16);
+            data[index + 2] = (byte) (value >>> 8);
+            data[index + 3] = (byte) value;
+        } else {
+            data[index] = (byte) value;
+            data[index + 1] = (byte) (value >>> 8);
+            data[index + 2] = (byte) (value >>> 16);
+            data[index + 3] = (byte) (value >>> 24);
+        }
+    }
+
+    private void setLong0(int index, long value) {
+        if (bigEndian) {
+            setInt0(index, (int) (value >>> 32));
+            setInt0(index + 4, (int) value);
+        } else {
+            setInt0(index, (int) value);
+            setInt0(index + 4, (int) (value >>> 32));
+        }
     }
 
     /**
@@ -393,16 +833,6 @@ public class ByteBuffer {
         return this;
     }
 
-    /**
-     * 整数转换成数组
-     *
-     * @param i
-     * @return byte length=4
-     */
-    private byte[] intToByteArray(int i) {
-        return new byte[]{(byte) ((i >> 24) & 0xFF), (byte) ((i >> 16) & 0xFF), (byte) ((i >> 8) & 0xFF), (byte) (i & 0xFF)};
-    }
-
     public static class ByteBufferException extends IOException {
         ByteBufferException(String message) {
             super(message);
@@ -1,8 +1,17 @@
 package com.itgowo.tcp.me;
 
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.Crc32c;
+import com.itgowo.tcp.buffer.Recycler;
+
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.zip.Checksum;
 
 /**
  * @author lujianchao
@@ -13,6 +22,7 @@ import java.util.List;
  * dataType 1 byte 消息数据类型
  * dataSign 4 byte 消息数据校验
  * data n byte 消息数据
+ * data超过maxAggregation的包不在内存中聚合，分段交给回调或者写入临时文件
  */
 public class PackageMessage {
     /**
@@ -41,6 +51,32 @@ public class PackageMessage {
      * 数据包类型为动态长度类型，数据长度不固定
      */
     public static final int TYPE_DYNAMIC_LENGTH = TYPE_FIX_LENGTH + 1;
+    /**
+     * 数据包类型为紧凑类型，适合小数据包
+     * type 1 byte 固定122
+     * flag 1 byte 最高位为1表示带dataSign，低7位为dataType，范围0-127
+     * length varint 1-5 byte data长度，不含包头
+     * dataSign 4 byte 可选
+     * data n byte
+     * 心跳包3 byte，20 byte数据的包头3 byte，标准格式分别为6 byte和10 byte
+     */
+    public static final int TYPE_COMPACT = TYPE_FIX_LENGTH + 2;
+    /**
+     * 紧凑类型flag中表示带dataSign的位
+     */
+    public static final int COMPACT_FLAG_SIGN = 0x80;
+    /**
+     * dataSign校验方式，不校验，dataSign固定为0
+     */
+    public static final int SIGN_MODE_NONE = 0;
+    /**
+     * dataSign校验方式，旧版简单签名，只取data中两个字节，兼容旧版本，默认方式
+     */
+    public static final int SIGN_MODE_LEGACY = 1;
+    /**
+     * dataSign校验方式，data的CRC32C，JDK9及以上由CPU指令计算
+     */
+    public static final int SIGN_MODE_CRC32C = 2;
 
     /**
      * 数据类型，指令
@@ -62,18 +98,142 @@ public class PackageMessage {
      * 数据类型，Json文本
      */
     public static final int DATA_TYPE_JSON = 5;
+    /**
+     * 数据类型，带时间戳的心跳请求，data为8 byte大端时间戳，收到后原样回复DATA_TYPE_PONG，用于测量往返延迟
+     */
+    public static final int DATA_TYPE_PING = 6;
+    /**
+     * 数据类型，心跳回复，data为对应PING的时间戳
+     */
+    public static final int DATA_TYPE_PONG = 7;
     /**
      * 标准格式协议头大小
      */
     public static final int LENGTH_HEAD = 10;
+    /**
+     * 默认最大包长度，超过的包头认为是错误数据
+     */
+    public static final int DEFAULT_MAX_LENGTH = 16 * 1024 * 1024;
+    /**
+     * 复用模式下解码出的消息对象池
+     */
+    private static final AtomicIntegerFieldUpdater<PackageMessage> REF_CNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(PackageMessage.class, "refCnt");
+    private static final Recycler<PackageMessage> RECYCLER = new Recycler<PackageMessage>() {
+        @Override
+        protected PackageMessage newObject() {
+            return new PackageMessage();
+        }
+    };
     /**
      * 处理粘包分包
      */
     private PackageMessage pack;
     /**
-     * 下次处理的半包数据
+     * 下次处理的半包数据，只有解码器使用，第一次解码时分配，解码出的消息不持有
+     */
+    private ByteBuffer nextData;
+    /**
+     * 解码器分配器，复用模式下data从这里分配
+     */
+    private BufferAllocator allocator;
+    /**
+     * 是否复用解码出的消息对象、data和结果List
+     */
+    private boolean recycle = false;
+    /**
+     * 复用模式下重复使用的结果List，第一次解码时创建
+     */
+    private List<PackageMessage> messageList;
+    /**
+     * 是否来自对象池，只有来自对象池的消息release()才有效
+     */
+    private boolean recyclable = false;
+    /**
+     * 复用模式下的引用计数，使用REF_CNT_UPDATER更新，不为每个消息创建AtomicInteger
+     */
+    private volatile int refCnt;
+    /**
+     * 定长模式的记录长度，大于0时接收数据按此长度直接切分，不解析包头
+     */
+    private int fixLength = 0;
+    /**
+     * 最大包长度，包头长度超过时认为是错误数据，跳过并重新查找包头
+     */
+    private int maxLength = DEFAULT_MAX_LENGTH;
+    /**
+     * 重新查找包头时丢弃的字节数，包括校验失败的包
+     */
+    private volatile long discardedBytes = 0;
+    /**
+     * 遇到错误数据重新查找包头的次数
+     */
+    private volatile long resyncCount = 0;
+    /**
+     * dataSign校验失败丢弃的包数量
+     */
+    private volatile long signErrorCount = 0;
+    /**
+     * 本次packageMessage()中写临时文件的第一个异常
+     */
+    private IOException spillError;
+    /**
+     * 是否定长模式解码出的记录，length为记录长度，没有包头
+     */
+    private boolean fixRecord = false;
+    /**
+     * 紧凑类型是否带dataSign
+     */
+    private boolean compactSign = false;
+    /**
+     * 紧凑类型包头长度，编码或解码时计算
+     */
+    private int compactHeadLength = 0;
+    /**
+     * dataSign校验方式，收发两端需要一致
+     */
+    private int signMode = SIGN_MODE_LEGACY;
+    /**
+     * 解码时边接收边计算出的校验值，signChecked为true时有效，isCompleted()不再重新计算
+     */
+    private int checkSign = 0;
+    private boolean signChecked = false;
+    /**
+     * 解码器的CRC32C，data分段到达时累加计算
+     */
+    private Checksum checksum;
+    /**
+     * data超过此长度时流式接收，不在内存中聚合，0表示不限制
+     */
+    private int maxAggregation = 0;
+    /**
+     * 流式接收的data写入此目录的临时文件，为null时分段交给回调
+     */
+    private File spillDirectory;
+    /**
+     * 是否流式接收的data分段
+     */
+    private boolean streamChunk = false;
+    /**
+     * 分段在整个data中的位置
+     */
+    private int streamOffset = 0;
+    /**
+     * 流式接收写入的临时文件，由使用方负责移动或删除
      */
-    private ByteBuffer nextData = ByteBuffer.newByteBuffer();
+    private File spillFile;
+    /**
+     * 流式接收中的包头状态
+     */
+    private boolean streaming = false;
+    private int streamLength = 0;
+    private int streamed = 0;
+    private byte signByte1;
+    private byte signByte2;
+    private FileChannel spillChannel;
+    /**
+     * 临时文件写入失败，剩余data丢弃
+     */
+    private boolean streamDiscard = false;
     /**
      * type 1 byte 消息类型  系统协议  范围-127 ~ 128
      */
@@ -152,6 +312,38 @@ public class PackageMessage {
         data.readerIndex(0);
         length = data.readableBytes() + LENGTH_HEAD;
         dataSign = dataSign();
+        signChecked = false;
+        if (type == TYPE_COMPACT) {
+            compactHeadLength = 2 + varintSize(data.readableBytes()) + (compactSign ? 4 : 0);
+            length = compactHeadLength + data.readableBytes();
+        }
+        return this;
+    }
+
+    /**
+     * dataSign校验方式
+     *
+     * @return
+     */
+    public int getSignMode() {
+        return signMode;
+    }
+
+    /**
+     * 设置dataSign校验方式，收发两端需要一致，已有data时重新计算dataSign
+     * 作为解码器时对之后解码出的包生效
+     *
+     * @param signMode SIGN_MODE_NONE、SIGN_MODE_LEGACY、SIGN_MODE_CRC32C
+     * @return
+     */
+    public PackageMessage setSignMode(int signMode) {
+        if (signMode < SIGN_MODE_NONE || signMode > SIGN_MODE_CRC32C) {
+            throw new IllegalArgumentException("signMode: " + signMode);
+        }
+        this.signMode = signMode;
+        if (data != null) {
+            dataSign = dataSign();
+        }
         return this;
     }
 
@@ -169,97 +361,1018 @@ public class PackageMessage {
         return new PackageMessage();
     }
 
+    /**
+     * 紧凑类型是否带dataSign
+     *
+     * @return
+     */
+    public boolean isCompactSign() {
+        return compactSign;
+    }
+
+    /**
+     * 设置紧凑类型是否带dataSign，默认不带，省4 byte
+     *
+     * @param compactSign
+     * @return
+     */
+    public PackageMessage setCompactSign(boolean compactSign) {
+        this.compactSign = compactSign;
+        return this;
+    }
+
+    /**
+     * 紧凑类型心跳包，3 byte
+     *
+     * @return
+     */
+    public static PackageMessage getCompactHeartPackageMessage() {
+        return new PackageMessage().setType(PackageMessage.TYPE_COMPACT).setDataType(PackageMessage.DATA_TYPE_HEART);
+    }
+
     public static PackageMessage getHeartPackageMessage() {
         PackageMessage packageMessage = new PackageMessage().setType(PackageMessage.TYPE_DYNAMIC_LENGTH).setLength(6).setDataType(PackageMessage.DATA_TYPE_HEART);
         return packageMessage;
     }
 
+    /**
+     * 带时间戳的心跳请求，对方需要支持DATA_TYPE_PING并回复DATA_TYPE_PONG
+     *
+     * @param timestamp 发送端的时间，对方原样返回，不需要两端时钟同步
+     * @return
+     */
+    public static PackageMessage getPingPackageMessage(long timestamp) {
+        return new PackageMessage().setType(PackageMessage.TYPE_DYNAMIC_LENGTH).setDataType(PackageMessage.DATA_TYPE_PING).setData(timestampBytes(timestamp));
+    }
+
+    /**
+     * 心跳回复
+     *
+     * @param timestamp 收到的PING中的时间戳
+     * @return
+     */
+    public static PackageMessage getPongPackageMessage(long timestamp) {
+        return new PackageMessage().setType(PackageMessage.TYPE_DYNAMIC_LENGTH).setDataType(PackageMessage.DATA_TYPE_PONG).setData(timestampBytes(timestamp));
+    }
+
+    private static byte[] timestampBytes(long timestamp) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) timestamp;
+            timestamp >>>= 8;
+        }
+        return bytes;
+    }
+
+    /**
+     * DATA_TYPE_PING和DATA_TYPE_PONG包中的时间戳
+     *
+     * @return data不足8 byte时返回-1
+     */
+    public long getPingTimestamp() {
+        if (data == null || data.readableBytes() < 8) {
+            return -1;
+        }
+        byte[] array = data.array();
+        int index = data.readerIndex();
+        long timestamp = 0;
+        for (int i = 0; i < 8; i++) {
+            timestamp = timestamp << 8 | array[index + i] & 0xFF;
+        }
+        return timestamp;
+    }
+
     public ByteBuffer encodePackageMessage() {
-        if (type != TYPE_FIX_LENGTH && type != TYPE_DYNAMIC_LENGTH) {
+        int length = encodeLength();
+        if (length < 0) {
             return null;
         }
+        return encodeTo(ByteBuffer.newByteBuffer(), length, dataSign);
+    }
 
-        if (length < 6) {
+    /**
+     * 编码到池化ByteBuffer，用完需要调用release()
+     *
+     * @param allocator
+     * @return
+     */
+    public ByteBuffer encodePackageMessage(BufferAllocator allocator) {
+        int length = encodeLength();
+        if (length < 0) {
+            return null;
+        }
+        return encodeTo(ByteBuffer.newByteBuffer(allocator, length), length, dataSign);
+    }
+
+    /**
+     * 按指定signMode编码到池化ByteBuffer，不修改本消息的字段和data的readerIndex，消息不再修改时可以被多个线程同时编码
+     * signMode与本消息相同时使用已有dataSign，用完需要调用release()
+     *
+     * @param allocator
+     * @param signMode  SIGN_MODE_NONE、SIGN_MODE_LEGACY、SIGN_MODE_CRC32C
+     * @return
+     */
+    public ByteBuffer encodePackageMessage(BufferAllocator allocator, int signMode) {
+        if (signMode < SIGN_MODE_NONE || signMode > SIGN_MODE_CRC32C) {
+            throw new IllegalArgumentException("signMode: " + signMode);
+        }
+        int length = encodeLength();
+        if (length < 0) {
             return null;
         }
+        return encodeTo(ByteBuffer.newByteBuffer(allocator, length), length, signMode == this.signMode ? dataSign : dataSign(signMode));
+    }
+
+    /**
+     * 计算编码后的包长度，只读取字段，不修改本消息
+     *
+     * @return 不能编码时返回-1
+     */
+    private int encodeLength() {
+        if (type == TYPE_COMPACT) {
+            if (dataType < 0 || dataType > 0x7F) {
+                return -1;
+            }
+            int dataLength = data == null ? 0 : data.writerIndex();
+            return 2 + varintSize(dataLength) + (compactSign ? 4 : 0) + dataLength;
+        }
+        if (type != TYPE_FIX_LENGTH && type != TYPE_DYNAMIC_LENGTH) {
+            return -1;
+        }
+
+        if (length < 6) {
+            return -1;
+        }
+        if (length == 6) {
+            return length;
+        }
+        if (dataType == 0 || data == null) {
+            return -1;
+        }
+
+        return data.writerIndex() == length - LENGTH_HEAD ? length : -1;
+    }
+
+    /**
+     * 编码到byteBuffer，直接复制data数组，不移动data的readerIndex
+     *
+     * @param byteBuffer
+     * @param length     encodeLength()的结果
+     * @param dataSign
+     * @return
+     */
+    private ByteBuffer encodeTo(ByteBuffer byteBuffer, int length, int dataSign) {
+        if (type == TYPE_COMPACT) {
+            int dataLength = data == null ? 0 : data.writerIndex();
+            byteBuffer.writeByte((byte) type)
+                    .writeByte((byte) (compactSign ? dataType | COMPACT_FLAG_SIGN : dataType))
+                    .writeVarint(dataLength);
+            if (compactSign) {
+                byteBuffer.writeInt(dataSign);
+            }
+            if (data != null) {
+                byteBuffer.writeBytes(data.array(), 0, dataLength);
+            }
+            return byteBuffer;
+        }
         if (length == 6) {
-            ByteBuffer byteBuffer = ByteBuffer.newByteBuffer();
             byteBuffer.writeByte((byte) type)
                     .writeInt(length)
                     .writeByte((byte) dataType);
             return byteBuffer;
         }
-        if (dataType == 0) {
-            return null;
-        }
-
-        if (data.readerIndex(0).readableBytes() != length - LENGTH_HEAD) {
-            return null;
-        }
-        ByteBuffer byteBuffer = ByteBuffer.newByteBuffer();
         byteBuffer.writeByte((byte) type)
                 .writeInt(length)
                 .writeByte((byte) dataType)
                 .writeInt(dataSign)
-                .writeBytes(data);
+                .writeBytes(data.array(), 0, data.writerIndex());
         return byteBuffer;
     }
 
-    public List<PackageMessage> packageMessage(ByteBuffer byteBuffer) {
-        List<PackageMessage> messageList = new ArrayList<>();
+    /**
+     * 解码时半包数据使用池化数组，连接结束后调用releaseDecoder()归还
+     *
+     * @param allocator
+     * @return
+     */
+    public synchronized PackageMessage setBufferAllocator(BufferAllocator allocator) {
+        this.allocator = allocator;
+        ByteBuffer old = nextData;
+        if (old == null) {
+            return this;
+        }
+        nextData = ByteBuffer.newByteBuffer(allocator, Math.max(ByteBuffer.BUFFER_SIZE, old.readableBytes()));
+        nextData.writeBytes(old);
+        old.release();
+        return this;
+    }
+
+    /**
+     * 归还解码器持有的池化数组，并丢弃未处理的半包数据和解码进度
+     */
+    public synchronized void releaseDecoder() {
+        if (nextData != null) {
+            nextData.release();
+            nextData = null;
+        }
+        allocator = null;
+        if (pack != null) {
+            if (pack.streaming) {
+                closeSpill(pack, true);
+            }
+            pack.release();
+            pack = null;
+        }
+        if (messageList != null) {
+            messageList.clear();
+        }
+    }
+
+    /**
+     * 是否复用模式
+     *
+     * @return
+     */
+    public boolean isRecycle() {
+        return recycle;
+    }
+
+    /**
+     * 设置复用模式，解码出的消息对象和data来自对象池和分配器，用完调用release()归还
+     * MiniTCPClient在onReadable回调结束后自动release()，需要在回调之外继续使用的先调用retain()
+     * 返回的List也会复用，只在下一次调用packageMessage()之前有效
+     *
+     * @param recycle
+     * @return
+     */
+    public synchronized PackageMessage setRecycle(boolean recycle) {
+        this.recycle = recycle;
+        return this;
+    }
+
+    /**
+     * 定长模式记录长度，0表示未开启
+     *
+     * @return
+     */
+    public int getFixLength() {
+        return fixLength;
+    }
+
+    /**
+     * 设置定长模式，连接开始前设置
+     * 开启后接收到的数据流按fixLength切分为TYPE_FIX_LENGTH消息，dataType为DATA_TYPE_BYTE，data为整条记录，不解析包头也不校验长度
+     * 为0时关闭，TYPE_FIX_LENGTH类型的包按标准包头解码
+     *
+     * @param fixLength
+     * @return
+     */
+    public synchronized PackageMessage setFixLength(int fixLength) {
+        if (fixLength < 0) {
+            throw new IllegalArgumentException("fixLength < 0");
+        }
+        this.fixLength = fixLength;
+        return this;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * 设置最大包长度，默认16M，解码时包头长度超过此值认为是错误数据，跳过并重新查找包头，避免等待一个不存在的大包
+     *
+     * @param maxLength
+     * @return
+     */
+    public synchronized PackageMessage setMaxLength(int maxLength) {
+        if (maxLength < LENGTH_HEAD) {
+            throw new IllegalArgumentException("maxLength < " + LENGTH_HEAD);
+        }
+        this.maxLength = maxLength;
+        return this;
+    }
+
+    public int getMaxAggregation() {
+        return maxAggregation;
+    }
+
+    /**
+     * 设置最大聚合长度，data超过此长度的包不再等待完整，收到多少交给回调多少，每个连接占用内存不随包大小增长
+     * 分段消息isStreamChunk()为true，getStreamOffset()为分段位置，getDataLength()为整个data长度
+     * 最后一段isStreamEnd()为true，isCompleted()为整个data的校验结果
+     * 包长度仍受maxLength限制，接收更大的包时同时调大maxLength，0表示不限制，连接开始前设置
+     *
+     * @param maxAggregation
+     * @return
+     */
+    public synchronized PackageMessage setMaxAggregation(int maxAggregation) {
+        if (maxAggregation < 0) {
+            throw new IllegalArgumentException("maxAggregation < 0");
+        }
+        this.maxAggregation = maxAggregation;
+        return this;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * 设置临时文件目录，超过maxAggregation的data通过FileChannel写入此目录的临时文件，完整后交给回调一个消息
+     * 消息data为null，getSpillFile()为临时文件，使用方负责移动或删除，校验失败的包直接删除不交给回调
+     * 为null时分段交给回调
+     *
+     * @param spillDirectory
+     * @return
+     */
+    public synchronized PackageMessage setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * 是否流式接收的data分段
+     *
+     * @return
+     */
+    public boolean isStreamChunk() {
+        return streamChunk;
+    }
+
+    /**
+     * 分段在整个data中的位置
+     *
+     * @return
+     */
+    public int getStreamOffset() {
+        return streamOffset;
+    }
+
+    /**
+     * 是否流式接收的最后一段
+     *
+     * @return
+     */
+    public boolean isStreamEnd() {
+        return streamChunk && step == STEP_DATA_COMPLETEED;
+    }
+
+    /**
+     * 流式接收写入的临时文件，没有时为null
+     *
+     * @return
+     */
+    public File getSpillFile() {
+        return spillFile;
+    }
+
+    /**
+     * 重新查找包头时丢弃的字节数，包括校验失败的包
+     *
+     * @return
+     */
+    public long getDiscardedBytes() {
+        return discardedBytes;
+    }
+
+    /**
+     * 遇到错误数据重新查找包头的次数
+     *
+     * @return
+     */
+    public long getResyncCount() {
+        return resyncCount;
+    }
+
+    /**
+     * dataSign校验失败丢弃的包数量
+     *
+     * @return
+     */
+    public long getSignErrorCount() {
+        return signErrorCount;
+    }
+
+    /**
+     * 本次packageMessage()中创建或写入临时文件的异常，出错的包已经改为丢弃，下一次调用packageMessage()时清空
+     *
+     * @return 没有异常时返回null
+     */
+    public IOException getSpillError() {
+        return spillError;
+    }
+
+    /**
+     * 增加引用计数，复用模式下需要在onReadable回调之外继续使用消息时调用
+     *
+     * @return
+     */
+    public PackageMessage retain() {
+        if (recyclable) {
+            while (true) {
+                int count = refCnt;
+                if (count <= 0) {
+                    throw new IllegalStateException("refCnt: 0");
+                }
+                if (REF_CNT_UPDATER.compareAndSet(this, count, count + 1)) {
+                    break;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 减少引用计数，归零时data归还分配器，消息对象归还对象池，之后不可再使用
+     * 非复用模式解码出的消息和自行创建的消息调用无影响
+     *
+     * @return 是否已归还
+     */
+    public boolean release() {
+        if (!recyclable) {
+            return false;
+        }
+        int count = REF_CNT_UPDATER.decrementAndGet(this);
+        if (count == 0) {
+            if (data != null) {
+                data.release();
+            }
+            type = TYPE_DYNAMIC_LENGTH;
+            length = 0;
+            dataType = DATA_TYPE_HEART;
+            dataSign = 0;
+            data = null;
+            step = STEP_DEFAULT;
+            fixRecord = false;
+            compactSign = false;
+            compactHeadLength = 0;
+            signMode = SIGN_MODE_LEGACY;
+            checkSign = 0;
+            signChecked = false;
+            streamChunk = false;
+            streamOffset = 0;
+            spillFile = null;
+            streaming = false;
+            streamLength = 0;
+            streamed = 0;
+            spillChannel = null;
+            streamDiscard = false;
+            recyclable = false;
+            RECYCLER.recycle(this);
+            return true;
+        }
+        if (count < 0) {
+            REF_CNT_UPDATER.incrementAndGet(this);
+            throw new IllegalStateException("refCnt: 0");
+        }
+        return false;
+    }
+
+    /**
+     * 复用模式下从对象池获取新包
+     *
+     * @return
+     */
+    private PackageMessage newPack() {
+        if (!recycle) {
+            PackageMessage packageMessage = new PackageMessage();
+            packageMessage.signMode = signMode;
+            return packageMessage;
+        }
+        PackageMessage packageMessage = RECYCLER.get();
+        packageMessage.recyclable = true;
+        packageMessage.refCnt = 1;
+        packageMessage.signMode = signMode;
+        return packageMessage;
+    }
+
+    /**
+     * 复用模式下data使用池化数组
+     *
+     * @param packageMessage
+     * @param size
+     * @return
+     */
+    private ByteBuffer newData(PackageMessage packageMessage, int size) {
+        if (!packageMessage.recyclable) {
+            return ByteBuffer.newByteBuffer(size);
+        }
+        return ByteBuffer.newByteBuffer(allocator == null ? BufferAllocator.DEFAULT : allocator, size);
+    }
+
+    public synchronized List<PackageMessage> packageMessage(ByteBuffer byteBuffer) {
+        ensureNextData();
+        nextData.writeBytes(byteBuffer);
+        return decodeNextData();
+    }
+
+    /**
+     * 直接消费Java Nio ByteBuffer剩余数据，调用方可以复用传入的ByteBuffer
+     *
+     * @param byteBuffer
+     * @return
+     */
+    public synchronized List<PackageMessage> packageMessage(java.nio.ByteBuffer byteBuffer) {
+        ensureNextData();
+        nextData.writeBytes(byteBuffer);
+        return decodeNextData();
+    }
+
+    /**
+     * 第一次解码时分配nextData
+     */
+    private void ensureNextData() {
+        if (nextData == null) {
+            nextData = allocator == null ? ByteBuffer.newByteBuffer() : ByteBuffer.newByteBuffer(allocator, ByteBuffer.BUFFER_SIZE);
+        }
+    }
+
+    private List<PackageMessage> decodeNextData() {
+        spillError = null;
+        List<PackageMessage> messageList;
+        if (recycle) {
+            if (this.messageList == null) {
+                this.messageList = new ArrayList<>();
+            }
+            messageList = this.messageList;
+            messageList.clear();
+        } else {
+            messageList = new ArrayList<>();
+        }
         try {
             while (true) {
-                PackageMessage packageMessage = decodePackageMessage(byteBuffer);
-                if (packageMessage != null && packageMessage.isCompleted()) {
-                    if (packageMessage.getData() != null) {
-                        packageMessage.getData().readerIndex(0);
+                PackageMessage packageMessage = fixLength > 0 ? decodeFixLengthPackageMessage(nextData) : decodePackageMessage();
+                if (packageMessage == null) {
+                    break;
+                }
+                if (packageMessage.streamChunk) {
+                    //分段已经交给回调，最后一段校验失败也要交给回调
+                    if (packageMessage.step == STEP_DATA_COMPLETEED && !packageMessage.isCompleted()) {
+                        signErrorCount++;
                     }
+                    packageMessage.data.readerIndex(0);
                     messageList.add(packageMessage);
-                } else {
+                    continue;
+                }
+                if (packageMessage.step != STEP_DATA_COMPLETEED) {
                     break;
                 }
+                if (packageMessage.spillFile != null && !packageMessage.isCompleted()) {
+                    signErrorCount++;
+                    discardedBytes += packageMessage.length;
+                    packageMessage.spillFile.delete();
+                    packageMessage.release();
+                    continue;
+                }
+                if (!packageMessage.isCompleted()) {
+                    signErrorCount++;
+                    rescanData(packageMessage);
+                    continue;
+                }
+                if (packageMessage.getData() != null) {
+                    packageMessage.getData().readerIndex(0);
+                }
+                messageList.add(packageMessage);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        compactNextData();
         return messageList;
     }
 
+    /**
+     * 校验失败的包可能是错误数据中误认的包头，真正的包可能在它的data里
+     * 丢弃包头，data放回nextData开头重新查找包头，复用模式下消息归还
+     *
+     * @param packageMessage
+     */
+    private void rescanData(PackageMessage packageMessage) {
+        ByteBuffer data = packageMessage.data;
+        int dataLength = data == null ? 0 : data.readerIndex(0).readableBytes();
+        discardedBytes += packageMessage.length - dataLength;
+        if (dataLength > 0) {
+            int capacity = Math.max(ByteBuffer.BUFFER_SIZE, dataLength + nextData.readableBytes());
+            ByteBuffer merged = allocator == null ? ByteBuffer.newByteBuffer(capacity) : ByteBuffer.newByteBuffer(allocator, capacity);
+            merged.writeBytes(data);
+            merged.writeBytes(nextData);
+            nextData.release();
+            nextData = merged;
+        }
+        packageMessage.release();
+    }
+
+    /**
+     * 已读数据全部处理完时直接重置指针，只剩少量包头碎片时才原地移动数据，突发大数据后逐步缩容
+     */
+    private void compactNextData() {
+        if (nextData.readableBytes() == 0) {
+            nextData.clear();
+        }
+        if (!nextData.shrink()) {
+            nextData.discardReadBytes();
+        }
+    }
+
+    /**
+     * 定长模式解码，只判断剩余长度，不解析包头，不足一条记录的数据留在nextData
+     *
+     * @param byteBuffer
+     * @return 数据不够一条记录时返回null
+     * @throws IOException
+     */
     private PackageMessage decodeFixLengthPackageMessage(ByteBuffer byteBuffer) throws IOException {
-        return null;
+        if (byteBuffer.readableBytes() < fixLength) {
+            return null;
+        }
+        PackageMessage packageMessage = newPack();
+        packageMessage.type = TYPE_FIX_LENGTH;
+        packageMessage.dataType = DATA_TYPE_BYTE;
+        packageMessage.length = fixLength;
+        packageMessage.fixRecord = true;
+        packageMessage.data = newData(packageMessage, fixLength);
+        byteBuffer.readBytes(packageMessage.data, fixLength);
+        packageMessage.step = STEP_DATA_COMPLETEED;
+        return packageMessage;
     }
 
+    /**
+     * 按步骤解码动态长度包，每一步只读取本步需要的字节数，不够则保留进度等待下次数据，不会从包头重新解析
+     * STEP_TYPE -> STEP_LENGTH -> STEP_DATA_TYPE -> STEP_DATA_SIGN -> STEP_DATA_PART -> STEP_DATA_COMPLETEED
+     * data部分到达多少复制多少到pack.data，nextData中不会积累大包数据
+     *
+     * @param byteBuffer
+     * @return 完整包，或者数据不够时返回null
+     * @throws IOException
+     */
     private PackageMessage decodeDynamicLengthPackageMessage(ByteBuffer byteBuffer) throws IOException {
-        pack.setLength(byteBuffer.readInt());
-        pack.setDataType(byteBuffer.readByte());
-        if (pack.getLength() < 6) {
-            pack.step = STEP_DATA_INVALID;
-            byteBuffer.readerIndex(0);
-            return pack;
-        }
-        if (pack.getLength() == 6) {
-            pack.step = STEP_DATA_COMPLETEED;
-            return pack;
-        }
-        //pack.getLength>6情况
-        if (byteBuffer.readableBytes() < 4) {
-            byteBuffer.readerIndex(0);
-            //可能存在数据读取一半情况，直接返回，返回后由上游处理器暂存输入流剩余数据，下次合并输入流。
-            return pack;
-        }
-        pack.dataSign = byteBuffer.readInt();
-        pack.data = ByteBuffer.newByteBuffer();
-        //数据包大小在已有数据范围内，即要执行拆包操作
-        int dataLength = pack.getLength() - LENGTH_HEAD;
-        if (dataLength <= byteBuffer.readableBytes()) {
-            pack.data.writeBytes(byteBuffer, dataLength);
-            pack.step = STEP_DATA_COMPLETEED;
-            return pack;
+        while (true) {
+            switch (pack.step) {
+                case STEP_TYPE:
+                    if (byteBuffer.readableBytes() < 4) {
+                        return null;
+                    }
+                    pack.length = byteBuffer.readInt();
+                    //length只能是心跳包的6，或者不小于LENGTH_HEAD
+                    if (pack.length < 6 || pack.length > 6 && pack.length < LENGTH_HEAD || pack.length > maxLength) {
+                        //length退回，从这里重新查找包头
+                        byteBuffer.readerIndex(byteBuffer.readerIndex() - 4);
+                        pack.step = STEP_DATA_INVALID;
+                        return pack;
+                    }
+                    pack.step = STEP_LENGTH;
+                    break;
+                case STEP_LENGTH:
+                    if (byteBuffer.readableBytes() < 1) {
+                        return null;
+                    }
+                    pack.dataType = byteBuffer.readByte();
+                    if (pack.length == 6) {
+                        pack.step = STEP_DATA_COMPLETEED;
+                        return pack;
+                    }
+                    pack.step = STEP_DATA_TYPE;
+                    break;
+                case STEP_DATA_TYPE:
+                    //pack.getLength>6情况
+                    if (byteBuffer.readableBytes() < 4) {
+                        return null;
+                    }
+                    pack.dataSign = byteBuffer.readInt();
+                    if (maxAggregation > 0 && pack.length - LENGTH_HEAD > maxAggregation) {
+                        startStream(pack, pack.length - LENGTH_HEAD);
+                        return decodeStreamChunk(byteBuffer);
+                    }
+                    pack.data = newData(pack, Math.max(0, pack.length - LENGTH_HEAD));
+                    startChecksum(pack);
+                    pack.step = STEP_DATA_SIGN;
+                    break;
+                case STEP_DATA_SIGN:
+                case STEP_DATA_PART:
+                    int need = pack.length - LENGTH_HEAD - pack.data.writerIndex();
+                    int count = Math.min(need, byteBuffer.readableBytes());
+                    if (count > 0) {
+                        readData(pack, byteBuffer, count);
+                    }
+                    if (count < need) {
+                        pack.step = STEP_DATA_PART;
+                        return null;
+                    }
+                    finishChecksum(pack);
+                    pack.step = STEP_DATA_COMPLETEED;
+                    return pack;
+                default:
+                    return pack;
+            }
+        }
+    }
+
+    /**
+     * 按步骤解码紧凑类型包，与动态长度包相同，不够则保留进度等待下次数据
+     * STEP_TYPE读取flag -> STEP_LENGTH读取varint长度 -> STEP_DATA_TYPE读取可选的dataSign -> STEP_DATA_PART -> STEP_DATA_COMPLETEED
+     *
+     * @param byteBuffer
+     * @return 完整包或者无效包，数据不够时返回null
+     * @throws IOException
+     */
+    private PackageMessage decodeCompactPackageMessage(ByteBuffer byteBuffer) throws IOException {
+        while (true) {
+            switch (pack.step) {
+                case STEP_TYPE:
+                    if (byteBuffer.readableBytes() < 1) {
+                        return null;
+                    }
+                    int flag = byteBuffer.readByte() & 0xFF;
+                    pack.dataType = flag & 0x7F;
+                    pack.compactSign = (flag & COMPACT_FLAG_SIGN) != 0;
+                    pack.step = STEP_LENGTH;
+                    break;
+                case STEP_LENGTH:
+                    //varint全部到达后才读取
+                    byte[] array = byteBuffer.array();
+                    int readerIndex = byteBuffer.readerIndex();
+                    int readable = byteBuffer.readableBytes();
+                    int dataLength = 0;
+                    int count = 0;
+                    while (true) {
+                        if (count >= readable) {
+                            return null;
+                        }
+                        int b = array[readerIndex + count];
+                        dataLength |= (b & 0x7F) << (count * 7);
+                        count++;
+                        if (b >= 0) {
+                            break;
+                        }
+                        if (count == 5) {
+                            pack.step = STEP_DATA_INVALID;
+                            return pack;
+                        }
+                    }
+                    if (dataLength < 0 || dataLength > maxLength) {
+                        pack.step = STEP_DATA_INVALID;
+                        return pack;
+                    }
+                    byteBuffer.readerIndex(readerIndex + count);
+                    pack.compactHeadLength = 2 + count + (pack.compactSign ? 4 : 0);
+                    pack.length = pack.compactHeadLength + dataLength;
+                    pack.step = STEP_DATA_TYPE;
+                    break;
+                case STEP_DATA_TYPE:
+                    if (pack.compactSign) {
+                        if (byteBuffer.readableBytes() < 4) {
+                            return null;
+                        }
+                        pack.dataSign = byteBuffer.readInt();
+                    }
+                    if (pack.length == pack.compactHeadLength) {
+                        pack.step = STEP_DATA_COMPLETEED;
+                        return pack;
+                    }
+                    if (maxAggregation > 0 && pack.length - pack.compactHeadLength > maxAggregation) {
+                        startStream(pack, pack.length - pack.compactHeadLength);
+                        return decodeStreamChunk(byteBuffer);
+                    }
+                    pack.data = newData(pack, pack.length - pack.compactHeadLength);
+                    if (pack.compactSign) {
+                        startChecksum(pack);
+                    }
+                    pack.step = STEP_DATA_SIGN;
+                    break;
+                case STEP_DATA_SIGN:
+                case STEP_DATA_PART:
+                    int need = pack.length - pack.compactHeadLength - pack.data.writerIndex();
+                    int n = Math.min(need, byteBuffer.readableBytes());
+                    if (n > 0) {
+                        readData(pack, byteBuffer, n);
+                    }
+                    if (n < need) {
+                        pack.step = STEP_DATA_PART;
+                        return null;
+                    }
+                    if (pack.compactSign) {
+                        finishChecksum(pack);
+                    }
+                    pack.step = STEP_DATA_COMPLETEED;
+                    return pack;
+                default:
+                    return pack;
+            }
+        }
+    }
+
+    /**
+     * CRC32C方式开始累加计算
+     *
+     * @param pack
+     */
+    private void startChecksum(PackageMessage pack) {
+        if (pack.signMode != SIGN_MODE_CRC32C) {
+            return;
+        }
+        if (checksum == null) {
+            checksum = Crc32c.newChecksum();
+        }
+        checksum.reset();
+    }
+
+    /**
+     * 复制到达的data，CRC32C方式同时累加计算，不需要完整后再遍历一次
+     *
+     * @param pack
+     * @param byteBuffer
+     * @param count
+     * @throws IOException
+     */
+    private void readData(PackageMessage pack, ByteBuffer byteBuffer, int count) throws IOException {
+        int start = pack.data.writerIndex();
+        byteBuffer.readBytes(pack.data, count);
+        if (pack.signMode == SIGN_MODE_CRC32C) {
+            checksum.update(pack.data.array(), start, count);
+        }
+    }
+
+    private void finishChecksum(PackageMessage pack) {
+        if (pack.signMode != SIGN_MODE_CRC32C) {
+            return;
+        }
+        pack.checkSign = (int) checksum.getValue();
+        pack.signChecked = true;
+    }
+
+    /**
+     * 开始流式接收，计算校验需要的状态，有临时文件目录时创建临时文件
+     *
+     * @param pack
+     * @param dataLength
+     */
+    private void startStream(PackageMessage pack, int dataLength) {
+        pack.streaming = true;
+        pack.streamLength = dataLength;
+        pack.streamed = 0;
+        pack.step = STEP_DATA_PART;
+        if (pack.type != TYPE_COMPACT || pack.compactSign) {
+            startChecksum(pack);
+        }
+        if (spillDirectory != null) {
+            try {
+                pack.spillFile = File.createTempFile("MiniTCPClient", ".data", spillDirectory);
+                pack.spillChannel = FileChannel.open(pack.spillFile.toPath(), StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                closeSpill(pack, true);
+                pack.streamDiscard = true;
+                onSpillError(e);
+            }
+        }
+    }
+
+    /**
+     * 流式接收到达的data，没有临时文件时每次生成一个分段消息
+     * 最后一段携带整个data的校验结果，有临时文件时完整后返回包头消息
+     * 临时文件出错时剩余data改为丢弃，异常在本次packageMessage()结束后通过getSpillError()获取
+     *
+     * @param byteBuffer
+     * @return 分段消息或者完整消息，数据不够、写入临时文件或者丢弃时返回null，丢弃完成时pack为null
+     * @throws IOException
+     */
+    private PackageMessage decodeStreamChunk(ByteBuffer byteBuffer) throws IOException {
+        int count = Math.min(pack.streamLength - pack.streamed, byteBuffer.readableBytes());
+        if (count == 0) {
+            return null;
+        }
+        int start = byteBuffer.readerIndex();
+        updateStreamSign(pack, byteBuffer.array(), start, count);
+        PackageMessage chunk = null;
+        if (pack.streamDiscard) {
+            byteBuffer.readerIndex(start + count);
+            discardedBytes += count;
+        } else if (pack.spillChannel != null) {
+            java.nio.ByteBuffer src = java.nio.ByteBuffer.wrap(byteBuffer.array(), start, count);
+            byteBuffer.readerIndex(start + count);
+            try {
+                while (src.hasRemaining()) {
+                    pack.spillChannel.write(src);
+                }
+            } catch (IOException e) {
+                closeSpill(pack, true);
+                pack.streamDiscard = true;
+                discardedBytes += pack.streamed + count;
+                onSpillError(e);
+            }
         } else {
-            byteBuffer.readerIndex(0);
-            pack.step = STEP_DATA_PART;
-            return pack;
+            chunk = newPack();
+            chunk.type = pack.type;
+            chunk.length = pack.length;
+            chunk.dataType = pack.dataType;
+            chunk.dataSign = pack.dataSign;
+            chunk.compactSign = pack.compactSign;
+            chunk.compactHeadLength = pack.compactHeadLength;
+            chunk.streamChunk = true;
+            chunk.streamOffset = pack.streamed;
+            chunk.data = newData(chunk, count);
+            byteBuffer.readBytes(chunk.data, count);
+            chunk.step = STEP_DATA_PART;
+        }
+        pack.streamed += count;
+        if (pack.streamed < pack.streamLength) {
+            return chunk;
+        }
+        finishStreamSign(pack);
+        if (chunk != null) {
+            chunk.checkSign = pack.checkSign;
+            chunk.signChecked = pack.signChecked;
+            chunk.step = STEP_DATA_COMPLETEED;
+            pack.release();
+            pack = null;
+            return chunk;
+        }
+        if (pack.streamDiscard) {
+            pack.release();
+            pack = null;
+            return null;
         }
+        closeSpill(pack, false);
+        pack.streaming = false;
+        pack.step = STEP_DATA_COMPLETEED;
+        return pack;
+    }
+
+    /**
+     * 流式接收时累加计算校验，旧版签名记录两个取样位置的字节
+     *
+     * @param pack
+     * @param array
+     * @param start
+     * @param count
+     */
+    private void updateStreamSign(PackageMessage pack, byte[] array, int start, int count) {
+        if (pack.type == TYPE_COMPACT && !pack.compactSign) {
+            return;
+        }
+        if (pack.signMode == SIGN_MODE_CRC32C && checksum != null) {
+            checksum.update(array, start, count);
+        } else if (pack.signMode == SIGN_MODE_LEGACY) {
+            int position1 = pack.streamLength / 4 - pack.streamed;
+            int position2 = pack.streamLength * 3 / 4 - pack.streamed;
+            if (position1 >= 0 && position1 < count) {
+                pack.signByte1 = array[start + position1];
+            }
+            if (position2 >= 0 && position2 < count) {
+                pack.signByte2 = array[start + position2];
+            }
+        }
+    }
+
+    private void finishStreamSign(PackageMessage pack) {
+        if (pack.signMode == SIGN_MODE_CRC32C) {
+            finishChecksum(pack);
+        } else if (pack.signMode == SIGN_MODE_LEGACY) {
+            if (pack.length < 10 || pack.streamLength < 10) {
+                pack.checkSign = 1;
+            } else {
+                int position1 = pack.streamLength / 4;
+                int position2 = pack.streamLength * 3 / 4;
+                pack.checkSign = (position1 & 0xFF) << 24 | (pack.signByte1 & 0xFF) << 16 | (position2 & 0xFF) << 8 | pack.signByte2 & 0xFF;
+            }
+            pack.signChecked = true;
+        }
+    }
+
+    private void onSpillError(IOException e) {
+        if (spillError == null) {
+            spillError = e;
+        }
+    }
+
+    /**
+     * 关闭临时文件
+     *
+     * @param pack
+     * @param delete 是否删除，出错或者连接结束时删除未完成的文件
+     */
+    private static void closeSpill(PackageMessage pack, boolean delete) {
+        if (pack.spillChannel != null) {
+            try {
+                pack.spillChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            pack.spillChannel = null;
+        }
+        if (delete && pack.spillFile != null) {
+            pack.spillFile.delete();
+            pack.spillFile = null;
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
     }
 
     /**
@@ -268,37 +1381,109 @@ public class PackageMessage {
      * @return
      */
     public int getDataLength() {
-        if (length <= 6 || data == null) {
+        if (fixRecord) {
+            return length;
+        }
+        if (type == TYPE_COMPACT) {
+            return data == null && spillFile == null ? 0 : length - compactHeadLength;
+        }
+        if (length <= 6 || data == null && spillFile == null) {
             return 0;
         }
         return length - LENGTH_HEAD;
     }
 
-    private synchronized PackageMessage decodePackageMessage(ByteBuffer byteBuffer) throws IOException {
-        nextData.writeBytes(byteBuffer);
-        if (nextData.readableBytes() < 6) {
-            return null;
-        }
-        //nextData大于6，则正常处理
-        nextData.readerIndex(0);
-        int type = nextData.readByte();
-        if (TYPE_FIX_LENGTH == type || TYPE_DYNAMIC_LENGTH == type) {
+    /**
+     * 从nextData解码下一个包，接着上次的进度继续
+     *
+     * @return 完整包或者无效包，数据不够时返回null
+     * @throws IOException
+     */
+    private PackageMessage decodePackageMessage() throws IOException {
+        while (true) {
             if (pack == null || pack.step == STEP_DATA_COMPLETEED) {
-                pack = new PackageMessage();
+                if (nextData.readableBytes() < 1) {
+                    return null;
+                }
+                int type = nextData.array()[nextData.readerIndex()];
+                if (TYPE_FIX_LENGTH != type && TYPE_DYNAMIC_LENGTH != type && TYPE_COMPACT != type) {
+                    resync();
+                    continue;
+                }
+                nextData.readerIndex(nextData.readerIndex() + 1);
+                pack = newPack();
+                pack.setType(type);
+                pack.step = STEP_TYPE;
             }
-            pack.setType(type);
-            pack.step = STEP_TYPE;
-        } else {
-            return null;
+            PackageMessage packageMessage;
+            if (pack.streaming) {
+                packageMessage = decodeStreamChunk(nextData);
+            } else if (pack.type == TYPE_COMPACT) {
+                packageMessage = decodeCompactPackageMessage(nextData);
+            } else {
+                //未开启定长模式时，TYPE_FIX_LENGTH类型的包头格式与动态长度相同
+                packageMessage = decodeDynamicLengthPackageMessage(nextData);
+            }
+            if (packageMessage == null && pack == null) {
+                //丢弃的流接收完成，继续解码后面的包
+                continue;
+            }
+            if (packageMessage != null && packageMessage.step == STEP_DATA_INVALID) {
+                //包头无效，已读取的type(紧凑类型还有flag)丢弃，从后面重新查找包头
+                discardedBytes += pack.type == TYPE_COMPACT ? 2 : 1;
+                pack.release();
+                pack = null;
+                resync();
+                continue;
+            }
+            if (packageMessage != null && packageMessage.step == STEP_DATA_COMPLETEED) {
+                pack = null;
+            }
+            return packageMessage;
         }
-        PackageMessage packageMessage = null;
-        if (pack.getType() == TYPE_FIX_LENGTH) {
-            packageMessage = decodeFixLengthPackageMessage(nextData);
-        } else if (pack.getType() == TYPE_DYNAMIC_LENGTH) {
-            packageMessage = decodeDynamicLengthPackageMessage(nextData);
+    }
+
+    /**
+     * 丢弃nextData开头的错误数据，直到下一个可能的包头type
+     * 找到的包头仍需要解码验证，不对时继续查找
+     */
+    private void resync() {
+        int start = nextData.readerIndex();
+        int index = indexOfType(nextData.array(), start, nextData.writerIndex());
+        nextData.readerIndex(index);
+        discardedBytes += index - start;
+        resyncCount++;
+    }
+
+    /**
+     * 查找第一个值为TYPE_FIX_LENGTH、TYPE_DYNAMIC_LENGTH或TYPE_COMPACT的字节
+     * 这几个值高6位相同，一次检查8 byte中是否有高6位为011110的字节，没有则整体跳过
+     *
+     * @param array
+     * @param from
+     * @param to
+     * @return 没有找到时返回to
+     */
+    private static int indexOfType(byte[] array, int from, int to) {
+        java.nio.ByteBuffer words = java.nio.ByteBuffer.wrap(array);
+        int i = from;
+        while (i < to) {
+            if (to - i >= 8) {
+                long word = words.getLong(i) & 0xFCFCFCFCFCFCFCFCL ^ 0x7878787878787878L;
+                if (((word - 0x0101010101010101L) & ~word & 0x8080808080808080L) == 0) {
+                    i += 8;
+                    continue;
+                }
+            }
+            int end = Math.min(i + 8, to);
+            for (; i < end; i++) {
+                int type = array[i];
+                if (type == TYPE_FIX_LENGTH || type == TYPE_DYNAMIC_LENGTH || type == TYPE_COMPACT) {
+                    return i;
+                }
+            }
         }
-        nextData.discardReadBytes();
-        return packageMessage;
+        return to;
     }
 
     /**
@@ -310,6 +1495,12 @@ public class PackageMessage {
         if (step != STEP_DATA_COMPLETEED) {
             return false;
         }
+        if (fixRecord || signMode == SIGN_MODE_NONE || type == TYPE_COMPACT && !compactSign) {
+            return true;
+        }
+        if (signChecked) {
+            return dataSign == checkSign;
+        }
         return dataSign == dataSign();
     }
 
@@ -346,30 +1537,36 @@ public class PackageMessage {
     }
 
     /**
-     * 获取简单数据签名，注意先初始化length
+     * 按signMode计算数据签名，注意先初始化length
      *
      * @return
      */
     public int dataSign() {
-        byte[] bytes1 = new byte[4];
-        if (data == null) {
+        return dataSign(signMode);
+    }
+
+    private int dataSign(int signMode) {
+        if (data == null || signMode == SIGN_MODE_NONE) {
+            return 0;
+        }
+        data.readerIndex(0);
+        if (signMode == SIGN_MODE_CRC32C) {
+            return Crc32c.compute(data.array(), 0, data.readableBytes());
+        }
+        if (type == TYPE_COMPACT && data.readableBytes() == 0) {
+            //紧凑类型没有data时解码出的data为null
             return 0;
         }
         if (length < 10) {
             return 1;
         }
-        data.readerIndex(0);
         if (data.readableBytes() < 10) {
             return 1;
         }
         int length = data.readableBytes();
         int position = length / 4;
-        bytes1[0] = (byte) position;
-        bytes1[1] = data.array()[position];
-        position = length * 3 / 4;
-        bytes1[2] = (byte) position;
-        bytes1[3] = data.array()[position];
-        return byteArrayToInt(bytes1);
+        int position2 = length * 3 / 4;
+        return (position & 0xFF) << 24 | (data.array()[position] & 0xFF) << 16 | (position2 & 0xFF) << 8 | data.array()[position2] & 0xFF;
     }
 
     @Override
@@ -379,6 +1576,7 @@ public class PackageMessage {
         sb.append(", length=").append(length);
         sb.append(", dataType=").append(dataType);
         sb.append(", dataSign=").append(dataSign);
+        sb.append(", signMode=").append(signMode);
         sb.append(", data=").append(data);
         sb.append(", step=").append(step);
         sb.append('}');
@@ -1,9 +1,20 @@
 package com.itgowo.tcp.nio;
 
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.Crc32c;
+import com.itgowo.tcp.buffer.PooledBuffer;
+import com.itgowo.tcp.buffer.Recycler;
+
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.zip.Checksum;
 
 /**
  * @author lujianchao
@@ -14,9 +25,18 @@ import java.util.List;
  * dataType 1 byte 消息数据类型
  * dataSign 4 byte 消息数据校验
  * data n byte 消息数据
+ * data超过maxAggregation的包不在内存中聚合，分段交给回调或者写入临时文件
  */
 public class PackageMessageForNio {
     public static final int BUFFER_SIZE = 256;
+    /**
+     * 接收缓冲区扩容阈值，小于阈值时翻倍扩容，超过后每次增加一个阈值大小，与ByteBuffer.DEFAULT_GROWTH_THRESHOLD相同
+     */
+    private static final int GROWTH_THRESHOLD = 4 * 1024 * 1024;
+    /**
+     * 数组最大长度，部分虚拟机会在数组头保留几个字
+     */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
     /**
      * 0   new 出来默认值
      * 1   读取type值
@@ -43,6 +63,32 @@ public class PackageMessageForNio {
      * 数据包类型为动态长度类型，数据长度不固定
      */
     public static final int TYPE_DYNAMIC_LENGTH = TYPE_FIX_LENGTH + 1;
+    /**
+     * 数据包类型为紧凑类型，适合小数据包
+     * type 1 byte 固定122
+     * flag 1 byte 最高位为1表示带dataSign，低7位为dataType，范围0-127
+     * length varint 1-5 byte data长度，不含包头
+     * dataSign 4 byte 可选
+     * data n byte
+     * 心跳包3 byte，20 byte数据的包头3 byte，标准格式分别为6 byte和10 byte
+     */
+    public static final int TYPE_COMPACT = TYPE_FIX_LENGTH + 2;
+    /**
+     * 紧凑类型flag中表示带dataSign的位
+     */
+    public static final int COMPACT_FLAG_SIGN = 0x80;
+    /**
+     * dataSign校验方式，不校验，dataSign固定为0
+     */
+    public static final int SIGN_MODE_NONE = 0;
+    /**
+     * dataSign校验方式，旧版简单签名，只取data中两个字节，兼容旧版本，默认方式
+     */
+    public static final int SIGN_MODE_LEGACY = 1;
+    /**
+     * dataSign校验方式，data的CRC32C，JDK9及以上由CPU指令计算
+     */
+    public static final int SIGN_MODE_CRC32C = 2;
 
     /**
      * 数据类型，指令
@@ -64,18 +110,155 @@ public class PackageMessageForNio {
      * 数据类型，Json文本
      */
     public static final int DATA_TYPE_JSON = 5;
+    /**
+     * 数据类型，带时间戳的心跳请求，data为8 byte大端时间戳，收到后原样回复DATA_TYPE_PONG，用于测量往返延迟
+     */
+    public static final int DATA_TYPE_PING = 6;
+    /**
+     * 数据类型，心跳回复，data为对应PING的时间戳
+     */
+    public static final int DATA_TYPE_PONG = 7;
     /**
      * 标准格式协议头大小
      */
     public static final int LENGTH_HEAD = 10;
+    /**
+     * 默认最大包长度，超过的包头认为是错误数据
+     */
+    public static final int DEFAULT_MAX_LENGTH = 16 * 1024 * 1024;
+    /**
+     * 复用模式下解码出的消息对象池
+     */
+    private static final AtomicIntegerFieldUpdater<PackageMessageForNio> REF_CNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(PackageMessageForNio.class, "refCnt");
+    private static final Recycler<PackageMessageForNio> RECYCLER = new Recycler<PackageMessageForNio>() {
+        @Override
+        protected PackageMessageForNio newObject() {
+            return new PackageMessageForNio();
+        }
+    };
     /**
      * 处理粘包分包
      */
     private PackageMessageForNio pack;
     /**
-     * 下次处理的半包数据
+     * 下次处理的半包数据，两次解码之间保持读模式，position为未处理数据开始位置，limit为数据结尾
+     * 只有解码器使用，第一次解码时分配，解码出的消息不持有
+     */
+    private ByteBuffer nextData;
+    /**
+     * 是否使用nextData的只读切片作为data，不复制数据
+     */
+    private boolean sliceData = false;
+    /**
+     * 池化分配器，为null时nextData使用普通ByteBuffer
+     */
+    private BufferAllocator allocator;
+    /**
+     * nextData所属的池化缓冲区
+     */
+    private PooledBuffer nextDataPooled;
+    /**
+     * 是否复用解码出的消息对象、data和结果List
+     */
+    private boolean recycle = false;
+    /**
+     * 复用模式下重复使用的结果List，第一次解码时创建
+     */
+    private List<PackageMessageForNio> messageList;
+    /**
+     * 是否来自对象池，只有来自对象池的消息release()才有效
+     */
+    private boolean recyclable = false;
+    /**
+     * 复用模式下的引用计数，使用REF_CNT_UPDATER更新，不为每个消息创建AtomicInteger
+     */
+    private volatile int refCnt;
+    /**
+     * 复用模式下data所属的池化缓冲区
+     */
+    private PooledBuffer dataPooled;
+    /**
+     * 定长模式的记录长度，大于0时接收数据按此长度直接切分，不解析包头
+     */
+    private int fixLength = 0;
+    /**
+     * 最大包长度，包头长度超过时认为是错误数据，跳过并重新查找包头
+     */
+    private int maxLength = DEFAULT_MAX_LENGTH;
+    /**
+     * 重新查找包头时丢弃的字节数，包括校验失败的包
+     */
+    private volatile long discardedBytes = 0;
+    /**
+     * 遇到错误数据重新查找包头的次数
+     */
+    private volatile long resyncCount = 0;
+    /**
+     * dataSign校验失败丢弃的包数量
+     */
+    private volatile long signErrorCount = 0;
+    /**
+     * 本次packageMessage()中写临时文件的第一个异常
+     */
+    private IOException spillError;
+    /**
+     * 是否定长模式解码出的记录，length为记录长度，没有包头
+     */
+    private boolean fixRecord = false;
+    /**
+     * 紧凑类型是否带dataSign
+     */
+    private boolean compactSign = false;
+    /**
+     * 紧凑类型包头长度，编码或解码时计算
+     */
+    private int compactHeadLength = 0;
+    /**
+     * dataSign校验方式，收发两端需要一致
+     */
+    private int signMode = SIGN_MODE_LEGACY;
+    /**
+     * 解码时读取data同时计算出的校验值，signChecked为true时有效，isCompleted()不再重新计算
+     */
+    private int checkSign = 0;
+    private boolean signChecked = false;
+    /**
+     * 解码器的CRC32C，流式接收时分段累加计算
      */
-    private ByteBuffer nextData = ByteBuffer.allocate(BUFFER_SIZE);
+    private Checksum checksum;
+    /**
+     * data超过此长度时流式接收，不在内存中聚合，0表示不限制
+     */
+    private int maxAggregation = 0;
+    /**
+     * 流式接收的data写入此目录的临时文件，为null时分段交给回调
+     */
+    private File spillDirectory;
+    /**
+     * 是否流式接收的data分段
+     */
+    private boolean streamChunk = false;
+    /**
+     * 分段在整个data中的位置
+     */
+    private int streamOffset = 0;
+    /**
+     * 流式接收写入的临时文件，由使用方负责移动或删除
+     */
+    private File spillFile;
+    /**
+     * 流式接收中的包头状态
+     */
+    private boolean streaming = false;
+    private int streamLength = 0;
+    private int streamed = 0;
+    private byte signByte1;
+    private byte signByte2;
+    private FileChannel spillChannel;
+    /**
+     * 临时文件写入失败，剩余data丢弃
+     */
+    private boolean streamDiscard = false;
     /**
      * type 1 byte 消息类型  系统协议  范围-127 ~ 128
      */
@@ -154,6 +337,38 @@ public class PackageMessageForNio {
         data.position(0);
         length = data.remaining() + LENGTH_HEAD;
         dataSign = dataSign();
+        signChecked = false;
+        if (type == TYPE_COMPACT) {
+            compactHeadLength = 2 + varintSize(data.remaining()) + (compactSign ? 4 : 0);
+            length = compactHeadLength + data.remaining();
+        }
+        return this;
+    }
+
+    /**
+     * dataSign校验方式
+     *
+     * @return
+     */
+    public int getSignMode() {
+        return signMode;
+    }
+
+    /**
+     * 设置dataSign校验方式，收发两端需要一致，已有data时重新计算dataSign
+     * 作为解码器时对之后解码出的包生效
+     *
+     * @param signMode SIGN_MODE_NONE、SIGN_MODE_LEGACY、SIGN_MODE_CRC32C
+     * @return
+     */
+    public PackageMessageForNio setSignMode(int signMode) {
+        if (signMode < SIGN_MODE_NONE || signMode > SIGN_MODE_CRC32C) {
+            throw new IllegalArgumentException("signMode: " + signMode);
+        }
+        this.signMode = signMode;
+        if (data != null) {
+            dataSign = dataSign();
+        }
         return this;
     }
 
@@ -170,207 +385,1240 @@ public class PackageMessageForNio {
         return new PackageMessageForNio();
     }
 
+    /**
+     * 紧凑类型是否带dataSign
+     *
+     * @return
+     */
+    public boolean isCompactSign() {
+        return compactSign;
+    }
+
+    /**
+     * 设置紧凑类型是否带dataSign，默认不带，省4 byte
+     *
+     * @param compactSign
+     * @return
+     */
+    public PackageMessageForNio setCompactSign(boolean compactSign) {
+        this.compactSign = compactSign;
+        return this;
+    }
+
+    /**
+     * 紧凑类型心跳包，3 byte
+     *
+     * @return
+     */
+    public static PackageMessageForNio getCompactHeartPackageMessage() {
+        return new PackageMessageForNio().setType(PackageMessageForNio.TYPE_COMPACT).setDataType(PackageMessageForNio.DATA_TYPE_HEART);
+    }
+
     public static PackageMessageForNio getHeartPackageMessage() {
         PackageMessageForNio packageMessage = new PackageMessageForNio().setType(PackageMessageForNio.TYPE_DYNAMIC_LENGTH).setLength(6).setDataType(PackageMessageForNio.DATA_TYPE_HEART);
         return packageMessage;
     }
 
-    public ByteBuffer encodePackageMessage() {
-        if (type != TYPE_FIX_LENGTH && type != TYPE_DYNAMIC_LENGTH) {
-            return null;
-        }
+    /**
+     * 带时间戳的心跳请求，对方需要支持DATA_TYPE_PING并回复DATA_TYPE_PONG
+     *
+     * @param timestamp 发送端的时间，对方原样返回，不需要两端时钟同步
+     * @return
+     */
+    public static PackageMessageForNio getPingPackageMessage(long timestamp) {
+        return new PackageMessageForNio().setType(PackageMessageForNio.TYPE_DYNAMIC_LENGTH).setDataType(PackageMessageForNio.DATA_TYPE_PING).setData(timestampBytes(timestamp));
+    }
 
-        if (length < 6) {
-            return null;
-        }
-        if (length == 6) {
-            ByteBuffer byteBuffer = ByteBuffer.allocate(6);
-            byteBuffer.put((byte) type).putInt(length).put((byte) dataType).flip();
-            return byteBuffer;
+    /**
+     * 心跳回复
+     *
+     * @param timestamp 收到的PING中的时间戳
+     * @return
+     */
+    public static PackageMessageForNio getPongPackageMessage(long timestamp) {
+        return new PackageMessageForNio().setType(PackageMessageForNio.TYPE_DYNAMIC_LENGTH).setDataType(PackageMessageForNio.DATA_TYPE_PONG).setData(timestampBytes(timestamp));
+    }
+
+    private static byte[] timestampBytes(long timestamp) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) timestamp;
+            timestamp >>>= 8;
         }
-        if (dataType == 0) {
-            return null;
+        return bytes;
+    }
+
+    /**
+     * DATA_TYPE_PING和DATA_TYPE_PONG包中的时间戳
+     *
+     * @return data不足8 byte时返回-1
+     */
+    public long getPingTimestamp() {
+        if (data == null || data.remaining() < 8) {
+            return -1;
         }
+        return data.getLong(data.position());
+    }
 
-        if (data.position(0).remaining() != length - LENGTH_HEAD) {
+    public ByteBuffer encodePackageMessage() {
+        int length = encodeLength();
+        if (length < 0) {
             return null;
         }
         ByteBuffer byteBuffer = ByteBuffer.allocate(length);
-        byteBuffer.put((byte) type).putInt(length).put((byte) dataType).putInt(dataSign).put(data).flip();
+        encodeTo(byteBuffer, length, dataSign);
         return byteBuffer;
     }
 
-    public List<PackageMessageForNio> packageMessage(ByteBuffer byteBuffer) {
-        List<PackageMessageForNio> messageList = new ArrayList<>();
-        try {
-            while (true) {
-                PackageMessageForNio packageMessage = decodePackageMessage(byteBuffer);
-                if (packageMessage != null && packageMessage.isCompleted()) {
-                    if (packageMessage.getData() != null) {
-                        packageMessage.getData().position(0);
-                    }
-                    messageList.add(packageMessage);
-                } else {
-                    break;
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * 编码到池化缓冲区，allocator优先堆外时得到direct缓冲区，可以直接交给MiniTCPClient.write(PooledBuffer)发送
+     * 自行使用时用完需要调用release()
+     *
+     * @param allocator
+     * @return
+     */
+    public PooledBuffer encodePackageMessage(BufferAllocator allocator) {
+        int length = encodeLength();
+        if (length < 0) {
+            return null;
         }
-        return messageList;
+        PooledBuffer pooledBuffer = allocator.buffer(length);
+        encodeTo(pooledBuffer.buffer(), length, dataSign);
+        return pooledBuffer;
     }
 
-    private PackageMessageForNio decodeFixLengthPackageMessage(ByteBuffer byteBuffer) throws IOException {
-        //Todo 定长比较简单，这里暂不做实现
-        return null;
+    /**
+     * 按指定signMode编码到池化缓冲区，不修改本消息的字段和data的position，消息不再修改时可以被多个线程同时编码
+     * signMode与本消息相同时使用已有dataSign
+     *
+     * @param allocator
+     * @param signMode  SIGN_MODE_NONE、SIGN_MODE_LEGACY、SIGN_MODE_CRC32C
+     * @return
+     */
+    public PooledBuffer encodePackageMessage(BufferAllocator allocator, int signMode) {
+        if (signMode < SIGN_MODE_NONE || signMode > SIGN_MODE_CRC32C) {
+            throw new IllegalArgumentException("signMode: " + signMode);
+        }
+        int length = encodeLength();
+        if (length < 0) {
+            return null;
+        }
+        PooledBuffer pooledBuffer = allocator.buffer(length);
+        encodeTo(pooledBuffer.buffer(), length, signMode == this.signMode ? dataSign : dataSign(signMode));
+        return pooledBuffer;
     }
 
-    private PackageMessageForNio decodeDynamicLengthPackageMessage(ByteBuffer byteBuffer) throws IOException {
-        pack.length = byteBuffer.getInt();
-        pack.dataType = byteBuffer.get();
-        if (pack.getLength() < 6) {
-            pack.step = STEP_DATA_INVALID;
-            byteBuffer.position(0);
-            return pack;
+    /**
+     * 编码文件消息的包头，data为文件从position开始的count个字节，包头后面直接用FileChannel.transferTo发送文件内容
+     * SIGN_MODE_LEGACY只读取文件两个字节，SIGN_MODE_CRC32C需要完整读一遍文件计算dataSign，在调用线程进行
+     *
+     * @param fileChannel
+     * @param position
+     * @param count       不超过Integer.MAX_VALUE - LENGTH_HEAD
+     * @param dataType
+     * @param signMode
+     * @return 读模式的包头，LENGTH_HEAD字节
+     * @throws IOException
+     */
+    public static ByteBuffer encodeFileHead(FileChannel fileChannel, long position, long count, int dataType, int signMode) throws IOException {
+        if (count < 0 || count > Integer.MAX_VALUE - LENGTH_HEAD) {
+            throw new IllegalArgumentException("file too large: " + count);
         }
-        if (pack.getLength() == 6) {
-            pack.step = STEP_DATA_COMPLETEED;
-            return pack;
+        if (dataType <= 0 || dataType == DATA_TYPE_HEART || dataType > 0xFF) {
+            throw new IllegalArgumentException("dataType: " + dataType);
         }
-        //pack.getLength>6情况
-        if (byteBuffer.remaining() < 4) {
-            byteBuffer.position(0);
-            //可能存在数据读取一半情况，直接返回，返回后由上游处理器暂存输入流剩余数据，下次合并输入流。
-            return pack;
+        int dataSign = 0;
+        if (signMode == SIGN_MODE_CRC32C) {
+            Checksum checksum = Crc32c.newChecksum();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+            long read = 0;
+            while (read < count) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count - read));
+                int n = fileChannel.read(buffer, position + read);
+                if (n < 0) {
+                    throw new EOFException("file truncated at " + (position + read));
+                }
+                checksum.update(buffer.array(), 0, n);
+                read += n;
+            }
+            dataSign = (int) checksum.getValue();
+        } else if (signMode == SIGN_MODE_LEGACY) {
+            if (count < 10) {
+                dataSign = 1;
+            } else {
+                int position1 = (int) (count / 4);
+                int position2 = (int) (count * 3 / 4);
+                dataSign = (position1 & 0xFF) << 24 | (readFileByte(fileChannel, position + position1) & 0xFF) << 16
+                        | (position2 & 0xFF) << 8 | readFileByte(fileChannel, position + position2) & 0xFF;
+            }
         }
-        pack.dataSign = byteBuffer.getInt();
-        //数据包大小在已有数据范围内，即要执行拆包操作
-        int dataLength = pack.getLength() - LENGTH_HEAD;
-        pack.data = ByteBuffer.allocate(dataLength);
-        if (dataLength <= byteBuffer.remaining()) {
-            pack.data.put(byteBuffer.array(), byteBuffer.position(), dataLength);
-            pack.step = STEP_DATA_COMPLETEED;
-            pack.data.flip();
-            byteBuffer.position(byteBuffer.position() + dataLength);
-            return pack;
-        } else {
-            byteBuffer.position(0);
-            pack.step = STEP_DATA_PART;
-            return pack;
+        ByteBuffer head = ByteBuffer.allocate(LENGTH_HEAD);
+        head.put((byte) TYPE_DYNAMIC_LENGTH).putInt((int) (LENGTH_HEAD + count)).put((byte) dataType).putInt(dataSign).flip();
+        return head;
+    }
+
+    private static byte readFileByte(FileChannel fileChannel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        if (fileChannel.read(buffer, position) < 1) {
+            throw new EOFException("file truncated at " + position);
         }
+        return buffer.get(0);
     }
 
     /**
-     * 获取data长度，如果没有data，则返回0，返回结果只作为正常数据参考,不一定是data真实长度
+     * 计算编码后的包长度，只读取字段，不修改本消息
      *
-     * @return
+     * @return 不能编码时返回-1
      */
-    public int getDataLength() {
-        if (length <= 6 || data == null) {
-            return 0;
+    private int encodeLength() {
+        if (type == TYPE_COMPACT) {
+            if (dataType < 0 || dataType > 0x7F) {
+                return -1;
+            }
+            int dataLength = data == null ? 0 : data.limit();
+            return 2 + varintSize(dataLength) + (compactSign ? 4 : 0) + dataLength;
+        }
+        if (type != TYPE_FIX_LENGTH && type != TYPE_DYNAMIC_LENGTH) {
+            return -1;
         }
-        return length - LENGTH_HEAD;
-    }
 
-    private synchronized PackageMessageForNio decodePackageMessage(ByteBuffer byteBuffer) throws IOException {
-        autoExpandCapacity(byteBuffer);
-        nextData.put(byteBuffer);
-        if (nextData.remaining() < 6) {
-            return null;
+        if (length < 6) {
+            return -1;
         }
-        //nextData大于6，则正常处理
-        nextData.flip();
-        if (nextData.remaining() < 6) {
-            return null;
+        if (length == 6) {
+            return length;
+        }
+        if (dataType == 0 || data == null) {
+            return -1;
+        }
+
+        return data.limit() == length - LENGTH_HEAD ? length : -1;
+    }
+
+    /**
+     * 编码到byteBuffer，从data的副本读取，不移动data的position
+     *
+     * @param byteBuffer
+     * @param length     encodeLength()的结果
+     * @param dataSign
+     */
+    private void encodeTo(ByteBuffer byteBuffer, int length, int dataSign) {
+        ByteBuffer data = null;
+        if (this.data != null) {
+            data = this.data.duplicate();
+            data.position(0);
         }
-        int type = nextData.get();
-        if (TYPE_FIX_LENGTH == type || TYPE_DYNAMIC_LENGTH == type) {
-            if (pack == null || pack.step == STEP_DATA_COMPLETEED) {
-                pack = new PackageMessageForNio();
+        if (type == TYPE_COMPACT) {
+            byteBuffer.put((byte) type).put((byte) (compactSign ? dataType | COMPACT_FLAG_SIGN : dataType));
+            int value = data == null ? 0 : data.remaining();
+            while ((value & ~0x7F) != 0) {
+                byteBuffer.put((byte) (value & 0x7F | 0x80));
+                value >>>= 7;
             }
-            pack.setType(type);
-            pack.step = STEP_TYPE;
-        } else {
-            return null;
+            byteBuffer.put((byte) value);
+            if (compactSign) {
+                byteBuffer.putInt(dataSign);
+            }
+            if (data != null) {
+                byteBuffer.put(data);
+            }
+            byteBuffer.flip();
+            return;
         }
-        PackageMessageForNio packageMessage = null;
-        if (pack.getType() == TYPE_FIX_LENGTH) {
-            packageMessage = decodeFixLengthPackageMessage(nextData);
-        } else if (pack.getType() == TYPE_DYNAMIC_LENGTH) {
-            packageMessage = decodeDynamicLengthPackageMessage(nextData);
+        if (length == 6) {
+            byteBuffer.put((byte) type).putInt(length).put((byte) dataType).flip();
+            return;
         }
-        nextData.compact();
-        return packageMessage;
+        byteBuffer.put((byte) type).putInt(length).put((byte) dataType).putInt(dataSign).put(data).flip();
     }
 
     /**
-     * 是否数据结束，是完整包数据
+     * 解码时半包数据使用池化堆内缓冲区，连接结束后调用releaseDecoder()归还
      *
+     * @param allocator
      * @return
      */
-    public boolean isCompleted() {
-        if (step != STEP_DATA_COMPLETEED) {
-            return false;
+    public synchronized PackageMessageForNio setBufferAllocator(BufferAllocator allocator) {
+        this.allocator = allocator;
+        ByteBuffer old = nextData;
+        if (old == null) {
+            return this;
         }
-        return dataSign == dataSign();
+        PooledBuffer oldPooled = nextDataPooled;
+        nextData = allocateNextData(Math.max(BUFFER_SIZE, old.remaining()));
+        nextData.put(old).flip();
+        if (oldPooled != null) {
+            oldPooled.release();
+        }
+        return this;
     }
 
     /**
-     * 数组转换成整数型，数组长度小于等于4有效，长度多余4则只转换前4个。
-     *
-     * @param b
-     * @return b=null return 0；
+     * 归还解码器持有的池化缓冲区，并丢弃未处理的半包数据
      */
-    public static int byteArrayToInt(byte[] b) {
-        if (b == null) {
-            return 0;
+    public synchronized void releaseDecoder() {
+        if (nextDataPooled != null) {
+            nextDataPooled.release();
+            nextDataPooled = null;
         }
-        if (b.length == 3) {
-            return (b[2] & 0xFF) | (b[1] & 0xFF) << 8 | (b[0] & 0xFF) << 16;
-        }
-        if (b.length == 2) {
-            return (b[1] & 0xFF) | (b[0] & 0xFF) << 8;
+        allocator = null;
+        nextData = null;
+        if (pack != null) {
+            if (pack.streaming) {
+                closeSpill(pack, true);
+            }
+            pack.release();
+            pack = null;
         }
-        if (b.length == 1) {
-            return b[0] & 0xFF;
+        if (messageList != null) {
+            messageList.clear();
         }
-        return b[3] & 0xFF | (b[2] & 0xFF) << 8 | (b[1] & 0xFF) << 16 | (b[0] & 0xFF) << 24;
     }
 
     /**
-     * 整数转换成数组
+     * 是否复用模式
      *
-     * @param a
-     * @return byte length=4
+     * @return
      */
-    public static byte[] intToByteArray(int a) {
-        return new byte[]{(byte) ((a >> 24) & 0xFF), (byte) ((a >> 16) & 0xFF), (byte) ((a >> 8) & 0xFF), (byte) (a & 0xFF)};
+    public boolean isRecycle() {
+        return recycle;
     }
 
     /**
-     * 获取简单数据签名，注意先初始化length
+     * 设置复用模式，解码出的消息对象和data来自对象池和分配器，用完调用release()归还
+     * MiniTCPClient在onReadable回调结束后自动release()，需要在回调之外继续使用的先调用retain()
+     * 返回的List也会复用，只在下一次调用packageMessage()之前有效
      *
+     * @param recycle
      * @return
      */
-    public int dataSign() {
-        byte[] bytes1 = new byte[4];
-        if (data == null) {
-            return 0;
-        }
-        if (length < 10) {
-            return 1;
-        }
-        if (data.remaining() < 10) {
-            return 1;
-        }
+    public synchronized PackageMessageForNio setRecycle(boolean recycle) {
+        this.recycle = recycle;
+        return this;
+    }
+
+    /**
+     * 定长模式记录长度，0表示未开启
+     *
+     * @return
+     */
+    public int getFixLength() {
+        return fixLength;
+    }
+
+    /**
+     * 设置定长模式，连接开始前设置
+     * 开启后接收到的数据流按fixLength切分为TYPE_FIX_LENGTH消息，dataType为DATA_TYPE_BYTE，data为整条记录，不解析包头也不校验长度
+     * 为0时关闭，TYPE_FIX_LENGTH类型的包按标准包头解码
+     *
+     * @param fixLength
+     * @return
+     */
+    public synchronized PackageMessageForNio setFixLength(int fixLength) {
+        if (fixLength < 0) {
+            throw new IllegalArgumentException("fixLength < 0");
+        }
+        this.fixLength = fixLength;
+        return this;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * 设置最大包长度，默认16M，解码时包头长度超过此值认为是错误数据，跳过并重新查找包头，避免nextData为一个不存在的大包扩容
+     *
+     * @param maxLength
+     * @return
+     */
+    public synchronized PackageMessageForNio setMaxLength(int maxLength) {
+        if (maxLength < LENGTH_HEAD) {
+            throw new IllegalArgumentException("maxLength < " + LENGTH_HEAD);
+        }
+        this.maxLength = maxLength;
+        return this;
+    }
+
+    public int getMaxAggregation() {
+        return maxAggregation;
+    }
+
+    /**
+     * 设置最大聚合长度，data超过此长度的包不再等待完整，收到多少交给回调多少，nextData不随包大小扩容
+     * 分段消息isStreamChunk()为true，getStreamOffset()为分段位置，getDataLength()为整个data长度
+     * 最后一段isStreamEnd()为true，isCompleted()为整个data的校验结果
+     * 包长度仍受maxLength限制，接收更大的包时同时调大maxLength，0表示不限制，连接开始前设置
+     *
+     * @param maxAggregation
+     * @return
+     */
+    public synchronized PackageMessageForNio setMaxAggregation(int maxAggregation) {
+        if (maxAggregation < 0) {
+            throw new IllegalArgumentException("maxAggregation < 0");
+        }
+        this.maxAggregation = maxAggregation;
+        return this;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * 设置临时文件目录，超过maxAggregation的data通过FileChannel写入此目录的临时文件，完整后交给回调一个消息
+     * 消息data为null，getSpillFile()为临时文件，使用方负责移动或删除，校验失败的包直接删除不交给回调
+     * 为null时分段交给回调
+     *
+     * @param spillDirectory
+     * @return
+     */
+    public synchronized PackageMessageForNio setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * 是否流式接收的data分段
+     *
+     * @return
+     */
+    public boolean isStreamChunk() {
+        return streamChunk;
+    }
+
+    /**
+     * 分段在整个data中的位置
+     *
+     * @return
+     */
+    public int getStreamOffset() {
+        return streamOffset;
+    }
+
+    /**
+     * 是否流式接收的最后一段
+     *
+     * @return
+     */
+    public boolean isStreamEnd() {
+        return streamChunk && step == STEP_DATA_COMPLETEED;
+    }
+
+    /**
+     * 流式接收写入的临时文件，没有时为null
+     *
+     * @return
+     */
+    public File getSpillFile() {
+        return spillFile;
+    }
+
+    /**
+     * 重新查找包头时丢弃的字节数，包括校验失败的包
+     *
+     * @return
+     */
+    public long getDiscardedBytes() {
+        return discardedBytes;
+    }
+
+    /**
+     * 遇到错误数据重新查找包头的次数
+     *
+     * @return
+     */
+    public long getResyncCount() {
+        return resyncCount;
+    }
+
+    /**
+     * dataSign校验失败丢弃的包数量
+     *
+     * @return
+     */
+    public long getSignErrorCount() {
+        return signErrorCount;
+    }
+
+    /**
+     * 本次packageMessage()中创建或写入临时文件的异常，出错的包已经改为丢弃，下一次调用packageMessage()时清空
+     *
+     * @return 没有异常时返回null
+     */
+    public IOException getSpillError() {
+        return spillError;
+    }
+
+    /**
+     * 增加引用计数，复用模式下需要在onReadable回调之外继续使用消息时调用
+     *
+     * @return
+     */
+    public PackageMessageForNio retain() {
+        if (recyclable) {
+            while (true) {
+                int count = refCnt;
+                if (count <= 0) {
+                    throw new IllegalStateException("refCnt: 0");
+                }
+                if (REF_CNT_UPDATER.compareAndSet(this, count, count + 1)) {
+                    break;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 减少引用计数，归零时data归还分配器，消息对象归还对象池，之后不可再使用
+     * 非复用模式解码出的消息和自行创建的消息调用无影响
+     *
+     * @return 是否已归还
+     */
+    public boolean release() {
+        if (!recyclable) {
+            return false;
+        }
+        int count = REF_CNT_UPDATER.decrementAndGet(this);
+        if (count == 0) {
+            if (dataPooled != null) {
+                dataPooled.release();
+                dataPooled = null;
+            }
+            type = TYPE_DYNAMIC_LENGTH;
+            length = 0;
+            dataType = DATA_TYPE_HEART;
+            dataSign = 0;
+            data = null;
+            step = STEP_DEFAULT;
+            fixRecord = false;
+            compactSign = false;
+            compactHeadLength = 0;
+            signMode = SIGN_MODE_LEGACY;
+            checkSign = 0;
+            signChecked = false;
+            streamChunk = false;
+            streamOffset = 0;
+            spillFile = null;
+            streaming = false;
+            streamLength = 0;
+            streamed = 0;
+            spillChannel = null;
+            streamDiscard = false;
+            recyclable = false;
+            RECYCLER.recycle(this);
+            return true;
+        }
+        if (count < 0) {
+            REF_CNT_UPDATER.incrementAndGet(this);
+            throw new IllegalStateException("refCnt: 0");
+        }
+        return false;
+    }
+
+    /**
+     * 复用模式下从对象池获取新包
+     *
+     * @return
+     */
+    private PackageMessageForNio newPack() {
+        if (!recycle) {
+            PackageMessageForNio packageMessage = new PackageMessageForNio();
+            packageMessage.signMode = signMode;
+            return packageMessage;
+        }
+        PackageMessageForNio packageMessage = RECYCLER.get();
+        packageMessage.recyclable = true;
+        packageMessage.refCnt = 1;
+        packageMessage.signMode = signMode;
+        return packageMessage;
+    }
+
+    /**
+     * 是否使用切片模式
+     *
+     * @return
+     */
+    public boolean isSliceData() {
+        return sliceData;
+    }
+
+    /**
+     * 设置切片模式，解码出的data是接收数据的只读切片，不复制payload
+     * 切片只在本次packageMessage()返回后、下一次调用packageMessage()之前有效，即MiniTCPClient的onReadable回调内有效
+     * 需要保留数据请自行复制
+     *
+     * @param sliceData
+     * @return
+     */
+    public PackageMessageForNio setSliceData(boolean sliceData) {
+        this.sliceData = sliceData;
+        return this;
+    }
+
+    /**
+     * 分配nextData，池化模式下记录所属池化缓冲区，调用方负责归还旧的
+     *
+     * @param size
+     * @return
+     */
+    private ByteBuffer allocateNextData(int size) {
+        if (allocator == null) {
+            nextDataPooled = null;
+            return ByteBuffer.allocate(size);
+        }
+        nextDataPooled = allocator.heapBuffer(size);
+        ByteBuffer byteBuffer = nextDataPooled.buffer();
+        byteBuffer.limit(byteBuffer.capacity());
+        return byteBuffer;
+    }
+
+    public synchronized List<PackageMessageForNio> packageMessage(ByteBuffer byteBuffer) {
+        appendNextData(byteBuffer);
+        spillError = null;
+        List<PackageMessageForNio> messageList;
+        if (recycle) {
+            if (this.messageList == null) {
+                this.messageList = new ArrayList<>();
+            }
+            messageList = this.messageList;
+            messageList.clear();
+        } else {
+            messageList = new ArrayList<>();
+        }
+        try {
+            while (true) {
+                PackageMessageForNio packageMessage = fixLength > 0 ? decodeFixLengthPackageMessage(nextData) : decodePackageMessage();
+                if (packageMessage == null) {
+                    break;
+                }
+                if (packageMessage.streamChunk) {
+                    //分段已经交给回调，最后一段校验失败也要交给回调
+                    if (packageMessage.step == STEP_DATA_COMPLETEED && !packageMessage.isCompleted()) {
+                        signErrorCount++;
+                    }
+                    packageMessage.data.position(0);
+                    messageList.add(packageMessage);
+                    continue;
+                }
+                if (packageMessage.step != STEP_DATA_COMPLETEED) {
+                    break;
+                }
+                if (packageMessage.spillFile != null && !packageMessage.isCompleted()) {
+                    signErrorCount++;
+                    discardedBytes += packageMessage.length;
+                    packageMessage.spillFile.delete();
+                    packageMessage.release();
+                    continue;
+                }
+                if (!packageMessage.isCompleted()) {
+                    //校验失败的包可能是错误数据中误认的包头，丢弃type，从包内下一个字节重新查找包头
+                    signErrorCount++;
+                    discardedBytes++;
+                    resync(nextData.position() - packageMessage.length + 1);
+                    packageMessage.release();
+                    continue;
+                }
+                if (packageMessage.getData() != null) {
+                    packageMessage.getData().position(0);
+                }
+                messageList.add(packageMessage);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return messageList;
+    }
+
+    /**
+     * 追加新数据到nextData
+     * 尾部空间足够时直接追加，已处理部分不移动；空间不够时只移动未处理数据，仍不够才扩容
+     * 上一次解码出的切片在这里失效
+     *
+     * @param byteBuffer
+     */
+    private void appendNextData(ByteBuffer byteBuffer) {
+        if (nextData == null) {
+            nextData = allocateNextData(BUFFER_SIZE);
+            nextData.limit(0);
+        }
+        int incoming = byteBuffer.remaining();
+        int unread = nextData.remaining();
+        if (unread == 0) {
+            nextData.clear().limit(0);
+        }
+        if (nextData.capacity() - nextData.limit() >= incoming) {
+            int position = nextData.position();
+            nextData.position(nextData.limit()).limit(nextData.capacity());
+            nextData.put(byteBuffer).flip();
+            nextData.position(position);
+        } else if (nextData.capacity() >= unread + incoming) {
+            nextData.compact();
+            nextData.put(byteBuffer).flip();
+        } else {
+            autoExpandCapacity(unread + incoming);
+            nextData.put(byteBuffer).flip();
+        }
+    }
+
+    /**
+     * 定长模式解码，只判断剩余长度，不解析包头
+     *
+     * @param byteBuffer
+     * @return 数据不够一条记录时返回null
+     */
+    private PackageMessageForNio decodeFixLengthPackageMessage(ByteBuffer byteBuffer) {
+        if (byteBuffer.remaining() < fixLength) {
+            return null;
+        }
+        PackageMessageForNio packageMessage = newPack();
+        packageMessage.type = TYPE_FIX_LENGTH;
+        packageMessage.dataType = DATA_TYPE_BYTE;
+        packageMessage.length = fixLength;
+        packageMessage.fixRecord = true;
+        readData(packageMessage, byteBuffer, byteBuffer.position(), fixLength);
+        packageMessage.step = STEP_DATA_COMPLETEED;
+        return packageMessage;
+    }
+
+    /**
+     * 读取data，切片模式为只读切片，否则复制，读取后position移动到data结尾
+     *
+     * @param packageMessage
+     * @param byteBuffer
+     * @param dataStart
+     * @param dataLength
+     */
+    private void readData(PackageMessageForNio packageMessage, ByteBuffer byteBuffer, int dataStart, int dataLength) {
+        if (sliceData) {
+            int limit = byteBuffer.limit();
+            byteBuffer.position(dataStart).limit(dataStart + dataLength);
+            packageMessage.data = byteBuffer.slice().asReadOnlyBuffer();
+            byteBuffer.limit(limit);
+        } else {
+            if (packageMessage.recyclable) {
+                packageMessage.dataPooled = (allocator == null ? BufferAllocator.DEFAULT : allocator).heapBuffer(dataLength);
+                packageMessage.data = packageMessage.dataPooled.buffer();
+            } else {
+                packageMessage.data = ByteBuffer.allocate(dataLength);
+            }
+            packageMessage.data.put(byteBuffer.array(), byteBuffer.arrayOffset() + dataStart, dataLength);
+            packageMessage.data.flip();
+        }
+        byteBuffer.position(dataStart + dataLength);
+    }
+
+    /**
+     * CRC32C方式在读取data前直接对接收缓冲区计算校验值，data还在缓存中，不需要完整后再遍历一次
+     *
+     * @param packageMessage
+     * @param byteBuffer
+     * @param dataStart
+     * @param dataLength
+     */
+    private void checkData(PackageMessageForNio packageMessage, ByteBuffer byteBuffer, int dataStart, int dataLength) {
+        if (packageMessage.signMode != SIGN_MODE_CRC32C) {
+            return;
+        }
+        packageMessage.checkSign = Crc32c.compute(byteBuffer.array(), byteBuffer.arrayOffset() + dataStart, dataLength);
+        packageMessage.signChecked = true;
+    }
+
+    /**
+     * 解码动态长度包，使用绝对位置读取，数据不完整时不移动position，下次从包头重新读取
+     *
+     * @param byteBuffer
+     * @return
+     * @throws IOException
+     */
+    private PackageMessageForNio decodeDynamicLengthPackageMessage(ByteBuffer byteBuffer) throws IOException {
+        int start = byteBuffer.position();
+        pack.length = byteBuffer.getInt(start + 1);
+        pack.dataType = byteBuffer.get(start + 5);
+        //length只能是心跳包的6，或者不小于LENGTH_HEAD，7-9会使data长度为负
+        if (pack.getLength() < 6 || pack.getLength() > 6 && pack.getLength() < LENGTH_HEAD || pack.getLength() > maxLength) {
+            pack.step = STEP_DATA_INVALID;
+            return pack;
+        }
+        if (pack.getLength() == 6) {
+            pack.step = STEP_DATA_COMPLETEED;
+            byteBuffer.position(start + 6);
+            return pack;
+        }
+        //pack.getLength>6情况
+        if (byteBuffer.remaining() < LENGTH_HEAD) {
+            //可能存在数据读取一半情况，直接返回，未处理数据留在nextData，下次合并输入流。
+            return pack;
+        }
+        pack.dataSign = byteBuffer.getInt(start + 6);
+        //数据包大小在已有数据范围内，即要执行拆包操作
+        int dataLength = pack.getLength() - LENGTH_HEAD;
+        if (maxAggregation > 0 && dataLength > maxAggregation) {
+            byteBuffer.position(start + LENGTH_HEAD);
+            startStream(pack, dataLength);
+            return decodeStreamChunk(byteBuffer);
+        }
+        if (pack.getLength() <= byteBuffer.remaining()) {
+            checkData(pack, byteBuffer, start + LENGTH_HEAD, dataLength);
+            readData(pack, byteBuffer, start + LENGTH_HEAD, dataLength);
+            pack.step = STEP_DATA_COMPLETEED;
+            return pack;
+        } else {
+            pack.step = STEP_DATA_PART;
+            return pack;
+        }
+    }
+
+    /**
+     * 解码紧凑类型包，使用绝对位置读取，数据不完整时不移动position
+     *
+     * @param byteBuffer
+     * @return
+     */
+    private PackageMessageForNio decodeCompactPackageMessage(ByteBuffer byteBuffer) throws IOException {
+        int start = byteBuffer.position();
+        int remaining = byteBuffer.remaining();
+        if (remaining < 3) {
+            return pack;
+        }
+        int flag = byteBuffer.get(start + 1) & 0xFF;
+        pack.dataType = flag & 0x7F;
+        pack.compactSign = (flag & COMPACT_FLAG_SIGN) != 0;
+        int dataLength = 0;
+        int index = 2;
+        while (true) {
+            if (index >= remaining) {
+                return pack;
+            }
+            int b = byteBuffer.get(start + index);
+            dataLength |= (b & 0x7F) << ((index - 2) * 7);
+            index++;
+            if (b >= 0) {
+                break;
+            }
+            if (index == 7) {
+                //varint超过5 byte
+                pack.step = STEP_DATA_INVALID;
+                return pack;
+            }
+        }
+        if (dataLength < 0 || dataLength > maxLength) {
+            pack.step = STEP_DATA_INVALID;
+            return pack;
+        }
+        int headLength = index + (pack.compactSign ? 4 : 0);
+        if (maxAggregation > 0 && dataLength > maxAggregation && headLength <= remaining) {
+            pack.compactHeadLength = headLength;
+            pack.length = headLength + dataLength;
+            if (pack.compactSign) {
+                pack.dataSign = byteBuffer.getInt(start + index);
+            }
+            byteBuffer.position(start + headLength);
+            startStream(pack, dataLength);
+            return decodeStreamChunk(byteBuffer);
+        }
+        if ((long) headLength + dataLength > remaining) {
+            pack.step = STEP_DATA_PART;
+            return pack;
+        }
+        pack.compactHeadLength = headLength;
+        pack.length = headLength + dataLength;
+        if (pack.compactSign) {
+            pack.dataSign = byteBuffer.getInt(start + index);
+        }
+        if (dataLength > 0) {
+            if (pack.compactSign) {
+                checkData(pack, byteBuffer, start + headLength, dataLength);
+            }
+            readData(pack, byteBuffer, start + headLength, dataLength);
+        } else {
+            byteBuffer.position(start + headLength);
+        }
+        pack.step = STEP_DATA_COMPLETEED;
+        return pack;
+    }
+
+    /**
+     * 开始流式接收，包头已经读取，计算校验需要的状态，有临时文件目录时创建临时文件
+     *
+     * @param pack
+     * @param dataLength
+     */
+    private void startStream(PackageMessageForNio pack, int dataLength) {
+        pack.streaming = true;
+        pack.streamLength = dataLength;
+        pack.streamed = 0;
+        pack.step = STEP_DATA_PART;
+        if (pack.signMode == SIGN_MODE_CRC32C) {
+            if (checksum == null) {
+                checksum = Crc32c.newChecksum();
+            }
+            checksum.reset();
+        }
+        if (spillDirectory != null) {
+            try {
+                pack.spillFile = File.createTempFile("MiniTCPClient", ".data", spillDirectory);
+                pack.spillChannel = FileChannel.open(pack.spillFile.toPath(), StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                closeSpill(pack, true);
+                pack.streamDiscard = true;
+                onSpillError(e);
+            }
+        }
+    }
+
+    /**
+     * 流式接收到达的data，没有临时文件时每次生成一个分段消息
+     * 最后一段携带整个data的校验结果，有临时文件时完整后返回包头消息
+     * 临时文件出错时剩余data改为丢弃，异常在本次packageMessage()结束后通过getSpillError()获取
+     *
+     * @param byteBuffer
+     * @return 分段消息或者完整消息，数据不够、写入临时文件或者丢弃时返回null，丢弃完成时pack为null
+     */
+    private PackageMessageForNio decodeStreamChunk(ByteBuffer byteBuffer) {
+        int count = Math.min(pack.streamLength - pack.streamed, byteBuffer.remaining());
+        if (count == 0) {
+            return null;
+        }
+        int start = byteBuffer.position();
+        updateStreamSign(pack, byteBuffer, start, count);
+        PackageMessageForNio chunk = null;
+        if (pack.streamDiscard) {
+            byteBuffer.position(start + count);
+            discardedBytes += count;
+        } else if (pack.spillChannel != null) {
+            int limit = byteBuffer.limit();
+            byteBuffer.limit(start + count);
+            try {
+                while (byteBuffer.hasRemaining()) {
+                    pack.spillChannel.write(byteBuffer);
+                }
+            } catch (IOException e) {
+                byteBuffer.position(start + count);
+                closeSpill(pack, true);
+                pack.streamDiscard = true;
+                discardedBytes += pack.streamed + count;
+                onSpillError(e);
+            } finally {
+                byteBuffer.limit(limit);
+            }
+        } else {
+            chunk = newPack();
+            chunk.type = pack.type;
+            chunk.length = pack.length;
+            chunk.dataType = pack.dataType;
+            chunk.dataSign = pack.dataSign;
+            chunk.compactSign = pack.compactSign;
+            chunk.compactHeadLength = pack.compactHeadLength;
+            chunk.streamChunk = true;
+            chunk.streamOffset = pack.streamed;
+            readData(chunk, byteBuffer, start, count);
+            chunk.step = STEP_DATA_PART;
+        }
+        pack.streamed += count;
+        if (pack.streamed < pack.streamLength) {
+            return chunk;
+        }
+        finishStreamSign(pack);
+        if (chunk != null) {
+            chunk.checkSign = pack.checkSign;
+            chunk.signChecked = pack.signChecked;
+            chunk.step = STEP_DATA_COMPLETEED;
+            pack.release();
+            pack = null;
+            return chunk;
+        }
+        if (pack.streamDiscard) {
+            pack.release();
+            pack = null;
+            return null;
+        }
+        closeSpill(pack, false);
+        pack.streaming = false;
+        pack.step = STEP_DATA_COMPLETEED;
+        return pack;
+    }
+
+    /**
+     * 流式接收时累加计算校验，旧版签名记录两个取样位置的字节
+     *
+     * @param pack
+     * @param byteBuffer
+     * @param start
+     * @param count
+     */
+    private void updateStreamSign(PackageMessageForNio pack, ByteBuffer byteBuffer, int start, int count) {
+        if (pack.type == TYPE_COMPACT && !pack.compactSign) {
+            return;
+        }
+        if (pack.signMode == SIGN_MODE_CRC32C) {
+            checksum.update(byteBuffer.array(), byteBuffer.arrayOffset() + start, count);
+        } else if (pack.signMode == SIGN_MODE_LEGACY) {
+            int position1 = pack.streamLength / 4 - pack.streamed;
+            int position2 = pack.streamLength * 3 / 4 - pack.streamed;
+            if (position1 >= 0 && position1 < count) {
+                pack.signByte1 = byteBuffer.get(start + position1);
+            }
+            if (position2 >= 0 && position2 < count) {
+                pack.signByte2 = byteBuffer.get(start + position2);
+            }
+        }
+    }
+
+    private void finishStreamSign(PackageMessageForNio pack) {
+        if (pack.signMode == SIGN_MODE_CRC32C) {
+            pack.checkSign = (int) checksum.getValue();
+            pack.signChecked = true;
+        } else if (pack.signMode == SIGN_MODE_LEGACY) {
+            if (pack.length < 10 || pack.streamLength < 10) {
+                pack.checkSign = 1;
+            } else {
+                int position1 = pack.streamLength / 4;
+                int position2 = pack.streamLength * 3 / 4;
+                pack.checkSign = (position1 & 0xFF) << 24 | (pack.signByte1 & 0xFF) << 16 | (position2 & 0xFF) << 8 | pack.signByte2 & 0xFF;
+            }
+            pack.signChecked = true;
+        }
+    }
+
+    private void onSpillError(IOException e) {
+        if (spillError == null) {
+            spillError = e;
+        }
+    }
+
+    /**
+     * 关闭临时文件
+     *
+     * @param pack
+     * @param delete 是否删除，出错或者连接结束时删除未完成的文件
+     */
+    private static void closeSpill(PackageMessageForNio pack, boolean delete) {
+        if (pack.spillChannel != null) {
+            try {
+                pack.spillChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            pack.spillChannel = null;
+        }
+        if (delete && pack.spillFile != null) {
+            pack.spillFile.delete();
+            pack.spillFile = null;
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * 获取data长度，如果没有data，则返回0，返回结果只作为正常数据参考,不一定是data真实长度
+     *
+     * @return
+     */
+    public int getDataLength() {
+        if (fixRecord) {
+            return length;
+        }
+        if (type == TYPE_COMPACT) {
+            return data == null && spillFile == null ? 0 : length - compactHeadLength;
+        }
+        if (length <= 6 || data == null && spillFile == null) {
+            return 0;
+        }
+        return length - LENGTH_HEAD;
+    }
+
+    private PackageMessageForNio decodePackageMessage() throws IOException {
+        while (true) {
+            if (nextData.remaining() < 1) {
+                return null;
+            }
+            if (pack != null && pack.streaming) {
+                PackageMessageForNio packageMessage = decodeStreamChunk(nextData);
+                if (packageMessage == null && pack == null) {
+                    //丢弃的流接收完成，继续解码后面的包
+                    continue;
+                }
+                if (packageMessage != null && packageMessage.step == STEP_DATA_COMPLETEED) {
+                    pack = null;
+                }
+                return packageMessage;
+            }
+            int type = nextData.get(nextData.position());
+            if (TYPE_FIX_LENGTH == type || TYPE_DYNAMIC_LENGTH == type) {
+                //标准格式最小6 byte
+                if (nextData.remaining() < 6) {
+                    return null;
+                }
+            } else if (TYPE_COMPACT != type) {
+                resync(nextData.position());
+                continue;
+            }
+            if (pack == null) {
+                pack = newPack();
+            }
+            pack.setType(type);
+            pack.step = STEP_TYPE;
+            PackageMessageForNio packageMessage;
+            if (type == TYPE_COMPACT) {
+                packageMessage = decodeCompactPackageMessage(nextData);
+            } else {
+                //未开启定长模式时，TYPE_FIX_LENGTH类型的包头格式与动态长度相同
+                packageMessage = decodeDynamicLengthPackageMessage(nextData);
+            }
+            if (packageMessage == null) {
+                if (pack == null) {
+                    //丢弃的流接收完成，继续解码后面的包
+                    continue;
+                }
+                //流式接收写入临时文件，等待后续数据
+                return null;
+            }
+            if (packageMessage.step == STEP_DATA_INVALID) {
+                //包头无效，position没有移动，丢弃type从下一个字节重新查找包头
+                discardedBytes++;
+                resync(nextData.position() + 1);
+                continue;
+            }
+            if (packageMessage.step == STEP_DATA_COMPLETEED) {
+                //完整包交给调用方，下一个包重新获取
+                pack = null;
+            }
+            return packageMessage;
+        }
+    }
+
+    /**
+     * 丢弃nextData开头的错误数据，直到下一个可能的包头type
+     * 找到的包头仍需要解码验证，不对时继续查找
+     *
+     * @param from
+     */
+    private void resync(int from) {
+        int index = indexOfType(nextData, from, nextData.limit());
+        discardedBytes += index - from;
+        resyncCount++;
+        nextData.position(index);
+    }
+
+    /**
+     * 查找第一个值为TYPE_FIX_LENGTH、TYPE_DYNAMIC_LENGTH或TYPE_COMPACT的字节
+     * 这几个值高6位相同，一次检查8 byte中是否有高6位为011110的字节，没有则整体跳过
+     *
+     * @param byteBuffer
+     * @param from
+     * @param to
+     * @return 没有找到时返回to
+     */
+    private static int indexOfType(ByteBuffer byteBuffer, int from, int to) {
+        int i = from;
+        while (i < to) {
+            if (to - i >= 8) {
+                long word = byteBuffer.getLong(i) & 0xFCFCFCFCFCFCFCFCL ^ 0x7878787878787878L;
+                if (((word - 0x0101010101010101L) & ~word & 0x8080808080808080L) == 0) {
+                    i += 8;
+                    continue;
+                }
+            }
+            int end = Math.min(i + 8, to);
+            for (; i < end; i++) {
+                int type = byteBuffer.get(i);
+                if (type == TYPE_FIX_LENGTH || type == TYPE_DYNAMIC_LENGTH || type == TYPE_COMPACT) {
+                    return i;
+                }
+            }
+        }
+        return to;
+    }
+
+    /**
+     * 是否数据结束，是完整包数据
+     *
+     * @return
+     */
+    public boolean isCompleted() {
+        if (step != STEP_DATA_COMPLETEED) {
+            return false;
+        }
+        if (fixRecord || signMode == SIGN_MODE_NONE || type == TYPE_COMPACT && !compactSign) {
+            return true;
+        }
+        if (signChecked) {
+            return dataSign == checkSign;
+        }
+        return dataSign == dataSign();
+    }
+
+    /**
+     * 数组转换成整数型，数组长度小于等于4有效，长度多余4则只转换前4个。
+     *
+     * @param b
+     * @return b=null return 0；
+     */
+    public static int byteArrayToInt(byte[] b) {
+        if (b == null) {
+            return 0;
+        }
+        if (b.length == 3) {
+            return (b[2] & 0xFF) | (b[1] & 0xFF) << 8 | (b[0] & 0xFF) << 16;
+        }
+        if (b.length == 2) {
+            return (b[1] & 0xFF) | (b[0] & 0xFF) << 8;
+        }
+        if (b.length == 1) {
+            return b[0] & 0xFF;
+        }
+        return b[3] & 0xFF | (b[2] & 0xFF) << 8 | (b[1] & 0xFF) << 16 | (b[0] & 0xFF) << 24;
+    }
+
+    /**
+     * 整数转换成数组
+     *
+     * @param a
+     * @return byte length=4
+     */
+    public static byte[] intToByteArray(int a) {
+        return new byte[]{(byte) ((a >> 24) & 0xFF), (byte) ((a >> 16) & 0xFF), (byte) ((a >> 8) & 0xFF), (byte) (a & 0xFF)};
+    }
+
+    /**
+     * 按signMode计算数据签名，注意先初始化length
+     *
+     * @return
+     */
+    public int dataSign() {
+        return dataSign(signMode);
+    }
+
+    private int dataSign(int signMode) {
+        if (data == null || signMode == SIGN_MODE_NONE) {
+            return 0;
+        }
+        if (signMode == SIGN_MODE_CRC32C) {
+            return Crc32c.compute(data);
+        }
+        if (type == TYPE_COMPACT && data.remaining() == 0) {
+            //紧凑类型没有data时解码出的data为null
+            return 0;
+        }
+        if (length < 10) {
+            return 1;
+        }
+        if (data.remaining() < 10) {
+            return 1;
+        }
         int length = data.remaining();
         int position = length / 4;
-        bytes1[0] = (byte) position;
-        bytes1[1] = data.array()[position];
-        position = length * 3 / 4;
-        bytes1[2] = (byte) position;
-        bytes1[3] = data.array()[position];
-        return byteArrayToInt(bytes1);
+        int position2 = length * 3 / 4;
+        return (position & 0xFF) << 24 | (data.get(position) & 0xFF) << 16 | (position2 & 0xFF) << 8 | data.get(position2) & 0xFF;
     }
 
     @Override
@@ -380,6 +1628,7 @@ public class PackageMessageForNio {
         sb.append(", length=").append(length);
         sb.append(", dataType=").append(dataType);
         sb.append(", dataSign=").append(dataSign);
+        sb.append(", signMode=").append(signMode);
         sb.append(", data=").append(data);
         sb.append(", step=").append(step);
         sb.append('}');
@@ -387,21 +1636,28 @@ public class PackageMessageForNio {
     }
 
     /**
-     * 自动扩容,递增值为BUFFER_SIZE的倍数
+     * 自动扩容，容量小于GROWTH_THRESHOLD时翻倍，超过后每次增加GROWTH_THRESHOLD，分段到达的大包只需要复制几次
+     * 只复制未处理数据，扩容后为写模式
+     *
+     * @param minSize 需要的最小容量
      */
-    private void autoExpandCapacity(ByteBuffer byteBuffer) {
-        int old = nextData.remaining();
-        if (old < byteBuffer.remaining()) {
-            int newSize = nextData.limit() + byteBuffer.remaining();
-            int size = 0;
-            while (size < newSize) {
-                size += BUFFER_SIZE;
+    private void autoExpandCapacity(int minSize) {
+        int size;
+        if (minSize > GROWTH_THRESHOLD) {
+            size = (int) Math.min((long) minSize / GROWTH_THRESHOLD * GROWTH_THRESHOLD + GROWTH_THRESHOLD, MAX_CAPACITY);
+        } else {
+            size = Math.max(nextData.capacity(), BUFFER_SIZE);
+            while (size < minSize) {
+                size <<= 1;
             }
-            ByteBuffer newByteBuffer = ByteBuffer.allocate(size);
-            nextData.flip();
-            newByteBuffer.put(nextData);
-            newByteBuffer.put(byteBuffer);
-            nextData = newByteBuffer;
+            size = Math.min(size, GROWTH_THRESHOLD);
+        }
+        PooledBuffer oldPooled = nextDataPooled;
+        ByteBuffer newByteBuffer = allocateNextData(size);
+        newByteBuffer.put(nextData);
+        nextData = newByteBuffer;
+        if (oldPooled != null) {
+            oldPooled.release();
         }
     }
 
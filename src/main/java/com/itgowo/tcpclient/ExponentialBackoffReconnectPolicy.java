@@ -0,0 +1,115 @@
+package com.itgowo.tcpclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author lujianchao
+ * 指数退避重连策略，第n次重连的等待上限为min(maxMillis, baseMillis * 2^n)
+ * 默认全抖动，实际等待时间在[0, 上限]内随机，服务端重启时大量客户端的重连分散开，不会同时涌入
+ * 无状态，可以多个客户端共用一个实例
+ */
+public class ExponentialBackoffReconnectPolicy implements MiniTCPClientReconnectPolicy {
+    public static final long DEFAULT_BASE_MILLIS = 1000;
+    public static final long DEFAULT_MAX_MILLIS = 60 * 1000;
+    private final long baseMillis;
+    private final long maxMillis;
+    /**
+     * 最大连续重连次数，0表示不限制
+     */
+    private int maxAttempts = 0;
+    private boolean jitter = true;
+
+    public ExponentialBackoffReconnectPolicy() {
+        this(DEFAULT_BASE_MILLIS, DEFAULT_MAX_MILLIS);
+    }
+
+    /**
+     * @param baseMillis 第一次重连的等待上限，之后每次翻倍
+     * @param maxMillis  等待上限的最大值
+     */
+    public ExponentialBackoffReconnectPolicy(long baseMillis, long maxMillis) {
+        if (baseMillis <= 0 || maxMillis < baseMillis) {
+            throw new IllegalArgumentException("baseMillis: " + baseMillis + ", maxMillis: " + maxMillis);
+        }
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * 最大连续重连次数，超过后停止客户端，0表示不限制
+     *
+     * @param maxAttempts
+     * @return
+     */
+    public ExponentialBackoffReconnectPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts < 0");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * 是否随机抖动，默认开启，关闭后每次等待时间固定为上限，多个客户端会同时重连
+     *
+     * @param jitter
+     * @return
+     */
+    public ExponentialBackoffReconnectPolicy setJitter(boolean jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    @Override
+    public long nextDelayMillis(int attempt) {
+        if (maxAttempts > 0 && attempt >= maxAttempts) {
+            return -1;
+        }
+        long ceiling = getCeilingMillis(attempt);
+        return jitter ? ThreadLocalRandom.current().nextLong(ceiling + 1) : ceiling;
+    }
+
+    /**
+     * 第attempt次重连的等待上限
+     *
+     * @param attempt
+     * @return
+     */
+    public long getCeilingMillis(int attempt) {
+        if (attempt <= 0) {
+            return baseMillis;
+        }
+        //左移溢出前截断到maxMillis
+        if (attempt >= Long.numberOfLeadingZeros(baseMillis) - 1) {
+            return maxMillis;
+        }
+        return Math.min(maxMillis, baseMillis << attempt);
+    }
+
+    public long getBaseMillis() {
+        return baseMillis;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public boolean isJitter() {
+        return jitter;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ExponentialBackoffReconnectPolicy{");
+        sb.append("baseMillis=").append(baseMillis);
+        sb.append(", maxMillis=").append(maxMillis);
+        sb.append(", maxAttempts=").append(maxAttempts);
+        sb.append(", jitter=").append(jitter);
+        sb.append('}');
+        return sb.toString();
+    }
+}
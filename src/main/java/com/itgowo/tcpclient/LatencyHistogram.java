@@ -0,0 +1,154 @@
+package com.itgowo.tcpclient;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author lujianchao
+ * 延迟直方图，单位微秒，固定464个计数，约2KB，记录不加锁，可以在任意线程读取百分位
+ * 32微秒以下每个值一个格子，之后每个2的幂区间分16格，相对误差不超过1/16，最大记录约71分钟，超过的计入最大格子
+ * 读取时各计数可能不是同一时刻的，百分位为近似值
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * 小于此值时每个值一个格子
+     */
+    private static final int LINEAR_COUNT = SUB_BUCKET_COUNT << 1;
+    public static final long MAX_VALUE = (1L << 32) - 1;
+    private static final int BUCKET_COUNT = index(MAX_VALUE) + 1;
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong minValue = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * 记录一个值
+     *
+     * @param value 单位微秒，小于0按0记录
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        counts.incrementAndGet(index(value));
+        totalValue.addAndGet(value);
+        long current;
+        while (value < (current = minValue.get()) && !minValue.compareAndSet(current, value)) {
+        }
+        while (value > (current = maxValue.get()) && !maxValue.compareAndSet(current, value)) {
+        }
+        totalCount.incrementAndGet();
+    }
+
+    /**
+     * 百分位对应的值，返回所在格子的上限，不超过记录到的最大值
+     *
+     * @param percentile 0-100，例如99.9
+     * @return 没有记录时返回0
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        percentile = Math.max(0, Math.min(percentile, 100));
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long max = maxValue.get();
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+            if (count >= target) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getP50() {
+        return getValueAtPercentile(50);
+    }
+
+    public long getP99() {
+        return getValueAtPercentile(99);
+    }
+
+    public long getP999() {
+        return getValueAtPercentile(99.9);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return 没有记录时返回0
+     */
+    public long getMin() {
+        long min = minValue.get();
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long total = totalCount.get();
+        return total == 0 ? 0 : (double) totalValue.get() / total;
+    }
+
+    /**
+     * 清空记录，与record同时调用时可能丢失少量记录
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalValue.set(0);
+        minValue.set(Long.MAX_VALUE);
+        maxValue.set(0);
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_COUNT + (shift - 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+    }
+
+    /**
+     * 格子中的最大值
+     *
+     * @param index
+     * @return
+     */
+    private static long highestValue(int index) {
+        if (index < LINEAR_COUNT) {
+            return index;
+        }
+        int shift = (index - LINEAR_COUNT) / SUB_BUCKET_COUNT + 1;
+        long subBucket = (index - LINEAR_COUNT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("LatencyHistogram{");
+        sb.append("count=").append(getCount());
+        sb.append(", min=").append(getMin());
+        sb.append(", p50=").append(getP50());
+        sb.append(", p99=").append(getP99());
+        sb.append(", p999=").append(getP999());
+        sb.append(", max=").append(getMax());
+        sb.append(", mean=").append(getMean());
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -1,19 +1,26 @@
 package com.itgowo.tcpclient;
 
+import com.itgowo.tcp.buffer.AdaptiveReceiveSize;
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+import com.itgowo.tcp.codec.Codec;
+import com.itgowo.tcp.codec.FrameCompressor;
+import com.itgowo.tcp.codec.FrameDecoder;
+import com.itgowo.tcp.codec.FrameHandler;
+import com.itgowo.tcp.codec.PackageMessageCodec;
+import com.itgowo.tcp.codec.PackageMessageForNioCodec;
 import com.itgowo.tcp.me.PackageMessage;
 import com.itgowo.tcp.nio.PackageMessageForNio;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MiniTCPClient implements Runnable {
 
@@ -24,25 +31,129 @@ public class MiniTCPClient implements Runnable {
     public static final int SERVER_STATUS_RECONNECTING = 4;
     public static final int SERVER_STATUS_RECONNECTED = 5;
     public static final int SERVER_STATUS_STOP = 6;
+    /**
+     * 读空闲，超过readerIdleMillis没有收到数据
+     */
+    public static final int IDLE_TYPE_READER = 1;
+    /**
+     * 写空闲，超过writerIdleMillis没有写入数据
+     */
+    public static final int IDLE_TYPE_WRITER = 2;
+    /**
+     * 读写空闲，超过allIdleMillis没有收到也没有写入数据
+     */
+    public static final int IDLE_TYPE_ALL = 3;
+    /**
+     * PING时间戳的起点，保证时间戳不为负数
+     */
+    private static final long PING_NANO_ORIGIN = System.nanoTime();
 
     protected MiniTCPClientInfo clientInfo;
-    protected int serverStatus;
+    protected volatile int serverStatus;
+    /**
+     * 在事件循环中写入发送队列
+     */
+    private final ClientTask flushTask = new ClientTask() {
+        @Override
+        public void run() {
+            flushOutbound();
+        }
+    };
+    /**
+     * 批量发送模式下linger时间到达后写入
+     */
+    private final ClientTask lingerFlushTask = new ClientTask() {
+        @Override
+        public void run() {
+            clientInfo.outboundBuffer.lingerScheduled.set(false);
+            flushOutbound();
+        }
+    };
+    /**
+     * 解码出的消息交给onReadable
+     */
+    private final FrameHandler<Object> frameHandler = new FrameHandler<Object>() {
+        @Override
+        public void onFrame(Object message) throws Exception {
+            if (rttHistogram != null && onPingFrame(message)) {
+                return;
+            }
+            lastFrameTime = clientInfo.eventLoop.currentTimeMillis();
+            onReceivedMessageNext(message);
+        }
+    };
     protected onMiniTCPClientListener clientListener;
     protected int BufferSize = 1024;
+    /**
+     * 自适应读取大小范围，相同时固定为BufferSize
+     */
+    protected int minReceiveSize = AdaptiveReceiveSize.DEFAULT_MIN_SIZE;
+    protected int maxReceiveSize = AdaptiveReceiveSize.DEFAULT_MAX_SIZE;
     protected String remoteServerAddress;
     protected int remoteServerPort;
     protected boolean daemon;
+    /**
+     * 共享事件循环组，为null时使用独占线程
+     */
+    protected MiniTCPClientGroup clientGroup;
+    /**
+     * 批量发送等待时间，单位毫秒，0为关闭
+     */
+    protected int writeBatchLingerMillis = 0;
+    /**
+     * 批量发送累计字节数阈值
+     */
+    protected int writeBatchBytes = 16 * 1024;
+    /**
+     * 缓冲区分配器，接收缓冲区、解码器和心跳编码都从这里租用
+     */
+    protected BufferAllocator bufferAllocator = BufferAllocator.DEFAULT;
 
-
-    private ScheduledExecutorService scheduledThreadPool = Executors.newScheduledThreadPool(0);
+    /**
+     * 心跳和重连延迟使用的定时器，默认所有客户端共用一个
+     */
+    protected MiniTCPClientTimer timer = MiniTCPClientTimer.DEFAULT;
+    /**
+     * 重连策略，为null时断线后立即重连一次，之后每次间隔sendHeartTimeInterval
+     */
+    protected MiniTCPClientReconnectPolicy reconnectPolicy;
     /**
      * 是否自动重连
      */
     private boolean autoReconnect = false;
     /**
-     * 最后一次接收数据时间
+     * 最后一次接收数据时间，使用事件循环的粗粒度时钟
      */
     private long lastMsgTime;
+    /**
+     * 最后一次收到业务消息时间，心跳包由解码器过滤，不计入，使用事件循环的粗粒度时钟
+     */
+    private long lastFrameTime;
+    /**
+     * 心跳周期内收到业务消息时是否跳过心跳
+     */
+    private boolean heartSkipOnRead = true;
+    /**
+     * 使用PING心跳测量往返延迟时不为null
+     */
+    private volatile LatencyHistogram rttHistogram;
+    private volatile long lastRttMicros = -1;
+    /**
+     * 最后一次写入数据时间，使用事件循环的粗粒度时钟
+     */
+    private long lastWriteTime;
+    /**
+     * 空闲检测时间，单位毫秒，0表示不检测
+     */
+    private long readerIdleMillis;
+    private long writerIdleMillis;
+    private long allIdleMillis;
+    /**
+     * 上次触发写空闲和读写空闲的时间，空闲持续时每个周期触发一次
+     */
+    private long writerIdleTime;
+    private long allIdleTime;
+    private onMiniTCPClientIdleListener idleListener;
     /**
      * 心跳检测间隔时间，单位秒
      */
@@ -50,9 +161,22 @@ public class MiniTCPClient implements Runnable {
     /**
      * 未收到数据间隔时间，超时时间，单位毫秒
      */
-    private int reconnectTimeOut = 90 * 000;
+    private int reconnectTimeOut = 90 * 1000;
 
     public MiniTCPClient(String remoteServerAddress, int remoteServerPort, onMiniTCPClientListener clientListener) {
+        this(remoteServerAddress, remoteServerPort, clientListener, null);
+    }
+
+    /**
+     * 使用共享事件循环组创建客户端
+     *
+     * @param remoteServerAddress
+     * @param remoteServerPort
+     * @param clientListener
+     * @param clientGroup         共享事件循环组，为null时每个客户端独占一个线程
+     */
+    public MiniTCPClient(String remoteServerAddress, int remoteServerPort, onMiniTCPClientListener<?> clientListener, MiniTCPClientGroup clientGroup) {
+        this.clientGroup = clientGroup;
         this.remoteServerAddress = remoteServerAddress;
         this.remoteServerPort = remoteServerPort;
         this.clientListener = clientListener;
@@ -61,9 +185,43 @@ public class MiniTCPClient implements Runnable {
 
     }
 
+    /**
+     * 指定编解码方案创建客户端，不再根据回调泛型判断
+     *
+     * @param remoteServerAddress
+     * @param remoteServerPort
+     * @param clientListener
+     * @param clientGroup         共享事件循环组，为null时每个客户端独占一个线程
+     * @param codec               编解码方案，类型需要与clientListener泛型一致
+     */
+    public MiniTCPClient(String remoteServerAddress, int remoteServerPort, onMiniTCPClientListener<?> clientListener, MiniTCPClientGroup clientGroup, Codec<?> codec) {
+        this.clientGroup = clientGroup;
+        this.remoteServerAddress = remoteServerAddress;
+        this.remoteServerPort = remoteServerPort;
+        this.clientListener = clientListener;
+        this.clientInfo = new MiniTCPClientInfo();
+        this.clientInfo.setCodec(codec);
+    }
+
+    public Codec<?> getCodec() {
+        return clientInfo.codec;
+    }
+
+    /**
+     * 设置编解码方案，start之前有效，类型需要与clientListener泛型一致
+     * setSliceData、setFixLength、setRecycleMessage、setCompressor、setSignMode、setReceiveFile作用于当前编解码方案，需要在此之后调用
+     *
+     * @param codec
+     * @return
+     */
+    public MiniTCPClient setCodec(Codec<?> codec) {
+        clientInfo.setCodec(codec);
+        return this;
+    }
+
 
     /**
-     * 获取TCP缓冲区大小
+     * 获取初始读取大小
      *
      * @return
      */
@@ -72,7 +230,8 @@ public class MiniTCPClient implements Runnable {
     }
 
     /**
-     * 设置TCP缓冲区大小，长连接不适合大数据量传输，请尽量设置在4k以内
+     * 设置每次连接开始时的读取大小，之后按实际读取字节数在setReceiveSizeRange()范围内自动调整
+     * 关闭自适应时每次读取此大小，同时也是TCP接收缓冲区大小
      *
      * @param bufferSize
      * @return
@@ -83,323 +242,1014 @@ public class MiniTCPClient implements Runnable {
     }
 
     /**
-     * 服务是否正常运行，只要不是stop状态都认为是正在运行，断线重连也算正在运行。
+     * 设置自适应读取大小范围，默认64 byte - 64K，读满时下次读取翻倍，连续两次读取不超过一半时减半
+     * minSize和maxSize相同时关闭自适应，每次读取BufferSize，连接开始前设置
+     * 开启自适应时TCP接收缓冲区为maxSize和BufferSize中较大的值
      *
+     * @param minSize
+     * @param maxSize
      * @return
      */
-    public boolean isRunning() {
-        return serverStatus != SERVER_STATUS_STOP;
+    public MiniTCPClient setReceiveSizeRange(int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("minSize: " + minSize + ", maxSize: " + maxSize);
+        }
+        this.minReceiveSize = minSize;
+        this.maxReceiveSize = maxSize;
+        return this;
     }
 
     /**
-     * 发送数组数据
+     * 当前连接下次读取大小
      *
-     * @param bytes
      * @return
      */
-    public MiniTCPClient write(byte[] bytes) {
-        return write(ByteBuffer.wrap(bytes));
+    public int getReceiveSize() {
+        AdaptiveReceiveSize receiveSize = clientInfo.receiveSize;
+        return receiveSize == null ? BufferSize : receiveSize.size();
     }
 
     /**
-     * 发送Java Nio ByteBuffer
+     * 当前连接的自适应读取大小统计，未连接时为null
      *
-     * @param byteBuffer
      * @return
      */
-    public MiniTCPClient write(ByteBuffer byteBuffer) {
-        return write(new ByteBuffer[]{byteBuffer});
+    public AdaptiveReceiveSize getAdaptiveReceiveSize() {
+        return clientInfo.receiveSize;
+    }
+
+    public BufferAllocator getBufferAllocator() {
+        return bufferAllocator;
     }
 
     /**
-     * 发送Java Nio ByteBuffer数组，由Nio按顺序组合发送
+     * 设置缓冲区分配器，start之前有效，默认BufferAllocator.DEFAULT
      *
-     * @param byteBuffers
+     * @param bufferAllocator
      * @return
      */
-    public MiniTCPClient write(ByteBuffer[] byteBuffers) {
-        try {
-            clientInfo.socketChannel.write(byteBuffers);
-        } catch (IOException e) {
-            dispatcherError(e);
-        }
+    public MiniTCPClient setBufferAllocator(BufferAllocator bufferAllocator) {
+        this.bufferAllocator = bufferAllocator;
         return this;
     }
 
     /**
-     * 启动服务
+     * PackageMessageForNio类型时，解码出的data使用接收数据的只读切片，不复制payload
+     * 切片只在onReadable回调内有效，需要保留请自行复制，start之前有效
+     *
+     * @param sliceData
+     * @return
      */
-    public synchronized void startConnect() {
-        if (clientInfo != null && clientInfo.thread != null && clientInfo.thread.isAlive()) {
-            return;
-        }
-        start();
-        if (autoReconnect) {
-            loopHeart();
+    public MiniTCPClient setSliceData(boolean sliceData) {
+        if (clientInfo.codec instanceof PackageMessageForNioCodec) {
+            ((PackageMessageForNioCodec) clientInfo.codec).setSliceData(sliceData);
         }
+        return this;
     }
 
     /**
-     * 内部方法
-     * 启动线程连接
+     * 设置定长模式，PackageMessage和PackageMessageForNio接收数据按fixLength切分为记录，不解析包头，为0时关闭
+     * 连接开始前设置
+     *
+     * @param fixLength
+     * @return
      */
-    protected synchronized void start() {
-        serverStatus = SERVER_STATUS_WAIT;
-        clientInfo.thread = new Thread(this);
-        clientInfo.thread.setName("MiniTCPClient");
-        clientInfo.thread.setDaemon(daemon);
-        clientInfo.thread.start();
-    }
-
-    @Override
-    public void run() {
-        initChannel();
-        while (autoReconnect) {
-            serverStatus = SERVER_STATUS_RECONNECTING;
-            initChannel();
-            try {
-                Thread.sleep(sendHeartTimeInterval * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    public MiniTCPClient setFixLength(int fixLength) {
+        if (clientInfo.codec instanceof PackageMessageCodec) {
+            ((PackageMessageCodec) clientInfo.codec).setFixLength(fixLength);
+        } else if (clientInfo.codec instanceof PackageMessageForNioCodec) {
+            ((PackageMessageForNioCodec) clientInfo.codec).setFixLength(fixLength);
         }
+        return this;
     }
 
-    private void initChannel() {
-        try {
-            SocketAddress socketAddress = new InetSocketAddress(remoteServerAddress, remoteServerPort);
-            clientInfo.socketChannel = SocketChannel.open();
-            clientInfo.socketChannel.socket().setReceiveBufferSize(BufferSize);
-            clientInfo.socketChannel.configureBlocking(false);
-            clientInfo.socketChannel.connect(socketAddress);
-            clientInfo.selector = Selector.open();
-            clientInfo.socketChannel.register(clientInfo.selector, SelectionKey.OP_CONNECT);
-            boolean isReconnect = serverStatus == SERVER_STATUS_RECONNECTING;
-            serverStatus = SERVER_STATUS_WAIT;
-            while (serverStatus != SERVER_STATUS_STOP) {
-                clientInfo.selector.select(3000);
-                processSelectionKey(clientInfo.selector, isReconnect);
-            }
-        } catch (Exception e) {
-            dispatcherError(e);
-        } finally {
-            clientInfo.close();
-            stopOrReconnect();
+    /**
+     * 设置消息复用模式，PackageMessage和PackageMessageForNio解码出的消息对象、data来自对象池，onReadable回调结束后自动归还
+     * 需要在回调之外继续使用消息的，在回调内调用retain()，用完自行release()
+     *
+     * @param recycleMessage
+     * @return
+     */
+    public MiniTCPClient setRecycleMessage(boolean recycleMessage) {
+        if (clientInfo.codec instanceof PackageMessageCodec) {
+            ((PackageMessageCodec) clientInfo.codec).setRecycle(recycleMessage);
+        } else if (clientInfo.codec instanceof PackageMessageForNioCodec) {
+            ((PackageMessageForNioCodec) clientInfo.codec).setRecycle(recycleMessage);
         }
+        return this;
     }
 
     /**
-     * 处理Select
-     * @param selector
-     * @param isReconnect
-     * @throws Exception
+     * 设置data压缩，PackageMessage和PackageMessageForNio的文本类data超过阈值时压缩发送，收到带压缩标记的包自动解压
+     * 收发两端都需要开启，连接开始前设置，为null时关闭
+     *
+     * @param compressor
+     * @return
      */
-    private void processSelectionKey(Selector selector, boolean isReconnect) throws Exception {
-        Iterator ite = selector.selectedKeys().iterator();
-        while (ite.hasNext()) {
-            SelectionKey key = (SelectionKey) ite.next();
-            ite.remove();
-            if (key.isConnectable()) {
-                if (clientInfo.socketChannel.isConnectionPending()) {
-                    Thread.yield();
-                    try {
-                        if (clientInfo.socketChannel.finishConnect()) {
-                            //只有当连接成功后才能注册OP_READ事件
-                            key.interestOps(SelectionKey.OP_WRITE);
-                            clientInfo.isOffline = false;
-                            if (isReconnect) {
-                                serverStatus = SERVER_STATUS_RECONNECTED;
-                                clientListener.onReconnected(this);
-                            } else {
-                                serverStatus = SERVER_STATUS_CONNECTED;
-                                clientListener.onConnected(this);
-                            }
-                            lastMsgTime = System.currentTimeMillis();
-                        } else {
-                            key.cancel();
-                        }
-                    } catch (Exception e) {
-                        serverStatus = SERVER_STATUS_STOP;
-                        break;
-                    }
-                }
-                key.interestOps(SelectionKey.OP_WRITE);
-            } else if (key.isReadable()) {
-                java.nio.ByteBuffer byteBuffer = java.nio.ByteBuffer.allocate(BufferSize);
-                int count = clientInfo.socketChannel.read(byteBuffer);
-                byteBuffer.flip();
-                if (count == -1) {
-                    serverStatus = SERVER_STATUS_STOP;
-                } else if (count != 0) {
-                    try {
-                        onReceivedMessage(byteBuffer);
-                    } catch (Exception e) {
-                        clientListener.onError("消息处理异常", e);
-                    }
-                }
-            } else if (key.isWritable()) {
-                key.interestOps(SelectionKey.OP_READ);
-                clientInfo.isWritable = true;
-                clientListener.onWritable(this);
-            }
+    public MiniTCPClient setCompressor(FrameCompressor compressor) {
+        if (clientInfo.codec instanceof PackageMessageCodec) {
+            ((PackageMessageCodec) clientInfo.codec).setCompressor(compressor);
+        } else if (clientInfo.codec instanceof PackageMessageForNioCodec) {
+            ((PackageMessageForNioCodec) clientInfo.codec).setCompressor(compressor);
         }
+        return this;
     }
 
     /**
-     * 内部方法
-     * 针对具体异常做对应处理
+     * 设置PackageMessage和PackageMessageForNio的dataSign校验方式，收发两端需要一致，连接开始前设置
+     * SIGN_MODE_CRC32C可以发现传输中的数据错误，SIGN_MODE_LEGACY兼容旧版本，SIGN_MODE_NONE不校验
      *
-     * @param e
+     * @param signMode PackageMessage.SIGN_MODE_NONE、SIGN_MODE_LEGACY、SIGN_MODE_CRC32C
+     * @return
      */
-    protected void dispatcherError(Exception e) {
-        if (e instanceof NotYetConnectedException) {
-            clientListener.onError("未完成连接，请求过早", e);
-        } else if (e instanceof ConnectException) {
-            clientListener.onError("连接失败", e);
-        } else if (e instanceof AsynchronousCloseException) {
-            clientListener.onError("连接被关闭", e);
-        } else if (e instanceof ClosedByInterruptException) {
-            clientListener.onError("连接被中断", e);
-        } else if (e instanceof ClosedChannelException) {
-            clientListener.onError("连接通道被关闭", e);
-        } else if (e instanceof NoConnectionPendingException) {
-            clientListener.onError("连接尚未成功，连接成功前不可以操作", e);
-        } else if (e instanceof CancelledKeyException) {
-            clientListener.onError("连接失败，本次连接已取消", e);
-        } else {
-            clientListener.onError("其他", e);
+    public MiniTCPClient setSignMode(int signMode) {
+        if (clientInfo.codec instanceof PackageMessageCodec) {
+            ((PackageMessageCodec) clientInfo.codec).setSignMode(signMode);
+        } else if (clientInfo.codec instanceof PackageMessageForNioCodec) {
+            ((PackageMessageForNioCodec) clientInfo.codec).setSignMode(signMode);
         }
+        return this;
     }
 
     /**
-     * 根据回调方法设置的泛型类型，返回指定类型数据
+     * 设置大包直接写入文件，PackageMessage和PackageMessageForNio的data超过maxAggregation时写入directory下的临时文件
+     * 完整后回调消息的getSpillFile()为临时文件，nextData不随包大小扩容，与sendFile配合传输大文件，连接开始前设置
      *
-     * @param byteBuffer
-     * @throws Exception
+     * @param directory      为null时关闭
+     * @param maxAggregation data超过此长度写入文件
+     * @param maxLength      最大包长度，需要大于接收的文件大小 + 10
+     * @return
      */
-    protected void onReceivedMessage(ByteBuffer byteBuffer) throws Exception {
-        lastMsgTime = System.currentTimeMillis();
-        if (clientInfo.isPackageMessage()) {
-            List<PackageMessage> list = clientInfo.packageMessageDecoder.packageMessage(com.itgowo.tcp.me.ByteBuffer.newByteBuffer().writeBytes(byteBuffer.array(), byteBuffer.limit()));
-            for (PackageMessage p : list) {
-                if (p.getDataType() != PackageMessage.DATA_TYPE_HEART) {
-                    onReceivedMessageNext(p);
-                }
-            }
-        } else if (clientInfo.isPackageMessageForNio()) {
-            List<PackageMessageForNio> list = clientInfo.packageMessageForNioDecoder.packageMessage(byteBuffer);
-            for (PackageMessageForNio nio : list) {
-                if (nio.getDataType() != PackageMessageForNio.DATA_TYPE_HEART) {
-                    onReceivedMessageNext(nio);
-                }
-            }
-        } else {
-            onReceivedMessageNext(byteBuffer);
+    public MiniTCPClient setReceiveFile(File directory, int maxAggregation, int maxLength) {
+        if (clientInfo.codec instanceof PackageMessageCodec) {
+            ((PackageMessageCodec) clientInfo.codec).setSpillDirectory(directory).setMaxAggregation(directory == null ? 0 : maxAggregation).setMaxLength(maxLength);
+        } else if (clientInfo.codec instanceof PackageMessageForNioCodec) {
+            ((PackageMessageForNioCodec) clientInfo.codec).setSpillDirectory(directory).setMaxAggregation(directory == null ? 0 : maxAggregation).setMaxLength(maxLength);
         }
+        return this;
     }
 
     /**
-     * 分发数据
+     * 服务是否正常运行，只要不是stop状态都认为是正在运行，断线重连也算正在运行。
      *
-     * @param o
-     * @throws Exception
+     * @return
      */
-    protected void onReceivedMessageNext(Object o) throws Exception {
-        clientListener.onReadable(this, o);
+    public boolean isRunning() {
+        return serverStatus != SERVER_STATUS_STOP;
     }
 
     /**
-     * 设置是否自动重连，心跳包检测，在Start之前设置有效
+     * 发送数组数据
      *
-     * @param autoReconnect
+     * @param bytes
      * @return
      */
-    public MiniTCPClient setAutoReconnect(boolean autoReconnect) {
-        this.autoReconnect = autoReconnect;
-        return this;
+    public MiniTCPClient write(byte[] bytes) {
+        return write(ByteBuffer.wrap(bytes));
     }
 
     /**
-     * 未收到数据间隔时间，超时时间，单位毫秒
+     * 发送Java Nio ByteBuffer
      *
-     * @param reconnectTimeOut
+     * @param byteBuffer
      * @return
      */
-    public MiniTCPClient setReconnectTimeOut(int reconnectTimeOut) {
-        this.reconnectTimeOut = reconnectTimeOut;
-        return this;
+    public MiniTCPClient write(ByteBuffer byteBuffer) {
+        return write(new ByteBuffer[]{byteBuffer});
     }
 
     /**
-     * 心跳检测间隔时间，单位秒
+     * 发送自定义ByteBuffer可读数据，先复制到分配器的缓冲区(默认堆外)再发送，调用后byteBuffer可以立即复用或归还
      *
-     * @param sendHeartTimeInterval
+     * @param byteBuffer
      * @return
      */
-    public MiniTCPClient setSendHeartTimeInterval(int sendHeartTimeInterval) {
-        this.sendHeartTimeInterval = sendHeartTimeInterval;
-        return this;
+    public MiniTCPClient write(com.itgowo.tcp.me.ByteBuffer byteBuffer) {
+        PooledBuffer pooledBuffer = bufferAllocator.buffer(byteBuffer.readableBytes());
+        pooledBuffer.buffer().put(byteBuffer.array(), byteBuffer.readerIndex(), byteBuffer.readableBytes()).flip();
+        return write(pooledBuffer);
     }
 
     /**
-     * 设置是否是守护线程，默认false，start之前有效
+     * 使用当前编解码方案编码消息并发送
      *
-     * @param daemon
+     * @param message 类型需要与编解码方案一致
      * @return
      */
-    public MiniTCPClient setDaemon(boolean daemon) {
-        this.daemon = daemon;
-        return this;
+    public MiniTCPClient writeMessage(Object message) {
+        PooledBuffer pooledBuffer;
+        try {
+            pooledBuffer = encode(clientInfo.codec, message, bufferAllocator);
+        } catch (Exception e) {
+            clientListener.onError("消息编码异常", e);
+            return this;
+        }
+        if (pooledBuffer == null) {
+            clientListener.onError("消息编码异常", new IllegalArgumentException("can not encode " + message));
+            return this;
+        }
+        return write(pooledBuffer);
     }
 
     /**
-     * 获取连接状态
+     * 发送池化缓冲区，发送后自动release，调用方不可再使用
      *
+     * @param pooledBuffer
      * @return
      */
-    public int getServerStatus() {
-        return serverStatus;
+    public MiniTCPClient write(PooledBuffer pooledBuffer) {
+        return write(new ByteBuffer[]{pooledBuffer.buffer()}, pooledBuffer, null);
     }
 
     /**
-     * 获取连接状态
+     * 发送Java Nio ByteBuffer数组，由Nio按顺序组合发送
      *
+     * @param byteBuffers
      * @return
      */
-    public String getServerStatusString() {
-        switch (serverStatus) {
-            case SERVER_STATUS_WAIT:
-                return "wait";
-            case SERVER_STATUS_CONNECTED:
-                return "connected";
-            case SERVER_STATUS_RECONNECTING:
-                return "reconnecting";
-            case SERVER_STATUS_RECONNECTED:
-                return "reconnected";
-            case SERVER_STATUS_STOP:
-                return "stop";
-        }
-        return "unknow";
+    public MiniTCPClient write(ByteBuffer[] byteBuffers) {
+        return write(byteBuffers, null, null);
     }
 
     /**
-     * 内部方法
-     * 停止连接并停止线程
+     * 发送Java Nio ByteBuffer数组，全部写入Socket或者失败后回调writeListener
+     * 数据先进入发送队列，写完之前不要修改byteBuffers
+     *
+     * @param byteBuffers
+     * @param writeListener 可以为null，在事件循环线程回调
+     * @return
      */
-    protected synchronized void stop() {
-        serverStatus = SERVER_STATUS_STOP;
+    public MiniTCPClient write(ByteBuffer[] byteBuffers, onMiniTCPClientWriteListener writeListener) {
+        return write(byteBuffers, null, writeListener);
     }
 
     /**
-     * 公开方法
-     * 停止当前连接，并触发回调
+     * 发送文件，dataType为DATA_TYPE_BYTE
+     *
+     * @param file
+     * @return
      */
-    public void stopConnect() {
-        autoReconnect = false;
-        stop();
+    public MiniTCPClient sendFile(File file) {
+        return sendFile(file, PackageMessageForNio.DATA_TYPE_BYTE, null);
     }
 
-    public boolean isOffline() {
+    /**
+     * 发送文件，PackageMessage和PackageMessageForNio编解码方案先发送包头，文件内容作为data
+     * 文件内容用FileChannel.transferTo由内核直接写入Socket，不复制到用户态缓冲区，写完或者失败后关闭文件
+     * 编解码方案signMode为SIGN_MODE_CRC32C时，包头的dataSign需要先在调用线程完整读一遍文件计算，文件会被读两次，
+     * 大文件不要在事件循环线程或者回调中调用，对传输耗时敏感时可以使用SIGN_MODE_LEGACY或者SIGN_MODE_NONE
+     * 其他编解码方案只发送文件内容，包头由调用方先write
+     *
+     * @param file          不超过2G - 10 byte
+     * @param dataType      不带压缩标记的自定义数据类型
+     * @param writeListener 可以为null，在事件循环线程回调
+     * @return
+     */
+    public MiniTCPClient sendFile(File file, int dataType, onMiniTCPClientWriteListener writeListener) {
+        FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            dispatcherError(e);
+            if (writeListener != null) {
+                writeListener.onWriteFailed(this, e);
+            }
+            return this;
+        }
+        return sendFile(fileChannel, 0, -1, true, dataType, writeListener);
+    }
+
+    /**
+     * 发送FileChannel从position开始的count个字节，参考sendFile(File, int, onMiniTCPClientWriteListener)
+     * 写完之前不要修改文件，SIGN_MODE_CRC32C时在调用线程读取这一段文件计算dataSign
+     *
+     * @param fileChannel
+     * @param position
+     * @param count         小于0时发送到文件结尾
+     * @param closeFile     写完或者失败后是否关闭fileChannel
+     * @param dataType
+     * @param writeListener
+     * @return
+     */
+    public MiniTCPClient sendFile(FileChannel fileChannel, long position, long count, boolean closeFile, int dataType, onMiniTCPClientWriteListener writeListener) {
+        ByteBuffer[] head;
+        Exception e = checkWritable();
+        if (e == null) {
+            try {
+                if (count < 0) {
+                    count = Math.max(0, fileChannel.size() - position);
+                }
+                if (clientInfo.codec instanceof PackageMessageCodec) {
+                    head = new ByteBuffer[]{PackageMessageForNio.encodeFileHead(fileChannel, position, count, dataType, ((PackageMessageCodec) clientInfo.codec).getSignMode())};
+                } else if (clientInfo.codec instanceof PackageMessageForNioCodec) {
+                    head = new ByteBuffer[]{PackageMessageForNio.encodeFileHead(fileChannel, position, count, dataType, ((PackageMessageForNioCodec) clientInfo.codec).getSignMode())};
+                } else {
+                    head = new ByteBuffer[0];
+                }
+                clientInfo.outboundBuffer.add(head, fileChannel, position, count, closeFile, writeListener);
+                return flush(clientInfo.eventLoop);
+            } catch (Exception e1) {
+                e = e1;
+            }
+        }
+        if (closeFile) {
+            try {
+                fileChannel.close();
+            } catch (IOException e1) {
+                clientListener.onError("close file", e1);
+            }
+        }
+        dispatcherError(e);
+        if (writeListener != null) {
+            writeListener.onWriteFailed(this, e);
+        }
+        return this;
+    }
+
+    private Exception checkWritable() {
+        SocketChannel socketChannel = clientInfo.socketChannel;
+        if (socketChannel == null || clientInfo.eventLoop == null || !socketChannel.isOpen()) {
+            return new ClosedChannelException();
+        } else if (!socketChannel.isConnected()) {
+            return new NotYetConnectedException();
+        }
+        return null;
+    }
+
+    /**
+     * 内部方法
+     * 加入发送队列，在事件循环线程写入
+     *
+     * @param byteBuffers
+     * @param pooledBuffer  写完后归还
+     * @param writeListener
+     * @return
+     */
+    protected MiniTCPClient write(ByteBuffer[] byteBuffers, PooledBuffer pooledBuffer, onMiniTCPClientWriteListener writeListener) {
+        MiniTCPClientEventLoop eventLoop = clientInfo.eventLoop;
+        Exception e = checkWritable();
+        if (e != null) {
+            if (pooledBuffer != null) {
+                pooledBuffer.release();
+            }
+            dispatcherError(e);
+            if (writeListener != null) {
+                writeListener.onWriteFailed(this, e);
+            }
+            return this;
+        }
+        clientInfo.outboundBuffer.add(byteBuffers, pooledBuffer, writeListener);
+        if (writeBatchLingerMillis > 0 && clientInfo.outboundBuffer.pendingBytes() < writeBatchBytes) {
+            if (clientInfo.outboundBuffer.lingerScheduled.compareAndSet(false, true)) {
+                eventLoop.schedule(lingerFlushTask, writeBatchLingerMillis);
+            }
+            return this;
+        }
+        return flush(eventLoop);
+    }
+
+    /**
+     * 立即发送队列中的数据，批量发送模式下不等待linger时间
+     *
+     * @return
+     */
+    public MiniTCPClient flush() {
+        MiniTCPClientEventLoop eventLoop = clientInfo.eventLoop;
+        if (eventLoop != null) {
+            flush(eventLoop);
+        }
+        return this;
+    }
+
+    private MiniTCPClient flush(MiniTCPClientEventLoop eventLoop) {
+        if (eventLoop.inEventLoop()) {
+            flushOutbound();
+        } else if (clientInfo.outboundBuffer.flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(flushTask);
+        }
+        return this;
+    }
+
+    /**
+     * 设置批量发送，lingerMillis时间内的数据或者累计达到batchBytes的数据合并为一次写入，适合大量小包场景
+     * lingerMillis为0时关闭，默认关闭。批量模式下可以调用flush()立即发送
+     *
+     * @param lingerMillis 最长等待时间，单位毫秒
+     * @param batchBytes   累计达到此字节数立即发送
+     * @return
+     */
+    public MiniTCPClient setWriteBatch(int lingerMillis, int batchBytes) {
+        this.writeBatchLingerMillis = lingerMillis;
+        this.writeBatchBytes = batchBytes;
+        return this;
+    }
+
+    /**
+     * 未写入Socket的字节数，可以用来做发送限流
+     *
+     * @return
+     */
+    public long getPendingWriteBytes() {
+        return clientInfo.outboundBuffer.pendingBytes();
+    }
+
+    /**
+     * 内部方法
+     * 写入发送队列，写不完则注册OP_WRITE，写完则取消OP_WRITE
+     */
+    protected void flushOutbound() {
+        clientInfo.outboundBuffer.flushScheduled.set(false);
+        if (clientInfo.outboundBuffer.isInFlush()) {
+            return;
+        }
+        SelectionKey key = clientInfo.selectionKey;
+        if (key == null || !key.isValid()) {
+            clientInfo.outboundBuffer.failAll(this, new ClosedChannelException());
+            return;
+        }
+        try {
+            long writtenBytes = clientInfo.outboundBuffer.writtenBytes();
+            boolean flushed = clientInfo.outboundBuffer.flush(clientInfo.socketChannel, this);
+            if (clientInfo.outboundBuffer.writtenBytes() != writtenBytes) {
+                lastWriteTime = clientInfo.eventLoop.currentTimeMillis();
+            }
+            if (clientInfo.isWritable && key.isValid()) {
+                key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (Exception e) {
+            dispatcherError(e);
+            closeAndReconnect();
+        }
+    }
+
+    /**
+     * 启动服务
+     */
+    public synchronized void startConnect() {
+        if (clientInfo != null && clientInfo.eventLoop != null) {
+            return;
+        }
+        start();
+        if (autoReconnect) {
+            loopHeart();
+        }
+    }
+
+    /**
+     * 内部方法
+     * 选择事件循环并发起连接，未设置共享事件循环组则创建独占的单线程事件循环组
+     */
+    protected synchronized void start() {
+        MiniTCPClientGroup group = clientGroup;
+        if (group == null) {
+            clientInfo.privateGroup = new MiniTCPClientGroup(1, daemon, "MiniTCPClient");
+            group = clientInfo.privateGroup;
+        }
+        MiniTCPClientEventLoop eventLoop = group.next();
+        eventLoop.bind(this);
+        serverStatus = SERVER_STATUS_WAIT;
+        clientInfo.reconnectAttempts = 0;
+        clientInfo.heartFrame = null;
+        clientInfo.eventLoop = eventLoop;
+        try {
+            eventLoop.execute(new ClientTask() {
+                @Override
+                public void run() {
+                    initChannel(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //绑定后事件循环组被停止
+            eventLoop.unbind(this);
+            clientInfo.eventLoop = null;
+            serverStatus = SERVER_STATUS_STOP;
+            throw e;
+        }
+    }
+
+    /**
+     * 兼容旧版本的new Thread(client).start()用法，连接已经由事件循环处理，不会阻塞调用线程
+     * 已经启动时不做处理，请使用startConnect()
+     */
+    @Deprecated
+    @Override
+    public synchronized void run() {
+        if (clientInfo != null && clientInfo.eventLoop != null) {
+            return;
+        }
+        start();
+    }
+
+    /**
+     * 内部方法
+     * 在事件循环线程打开通道并注册到共享Selector
+     *
+     * @param isReconnect
+     */
+    private void initChannel(boolean isReconnect) {
+        clientInfo.reconnectTask = null;
+        if (serverStatus == SERVER_STATUS_STOP) {
+            return;
+        }
+        clientInfo.isReconnect = isReconnect;
+        try {
+            InetSocketAddress socketAddress = clientInfo.remoteAddress;
+            if (socketAddress == null) {
+                socketAddress = new InetSocketAddress(remoteServerAddress, remoteServerPort);
+                if (!socketAddress.isUnresolved()) {
+                    clientInfo.remoteAddress = socketAddress;
+                }
+            }
+            clientInfo.newDecoder(bufferAllocator);
+            clientInfo.socketChannel = SocketChannel.open();
+            if (minReceiveSize == maxReceiveSize) {
+                clientInfo.receiveSize = new AdaptiveReceiveSize(BufferSize, BufferSize, BufferSize);
+            } else {
+                clientInfo.receiveSize = new AdaptiveReceiveSize(Math.min(minReceiveSize, BufferSize), BufferSize, Math.max(maxReceiveSize, BufferSize));
+            }
+            clientInfo.socketChannel.socket().setReceiveBufferSize(clientInfo.receiveSize.getMaxSize());
+            clientInfo.socketChannel.configureBlocking(false);
+            boolean connected = clientInfo.socketChannel.connect(socketAddress);
+            clientInfo.selectionKey = clientInfo.eventLoop.register(clientInfo.socketChannel, SelectionKey.OP_CONNECT, this);
+            serverStatus = SERVER_STATUS_WAIT;
+            if (connected) {
+                onChannelConnected(clientInfo.selectionKey);
+            }
+        } catch (Exception e) {
+            clientInfo.remoteAddress = null;
+            dispatcherError(e);
+            clientInfo.close();
+            stopOrReconnect();
+        }
+    }
+
+    /**
+     * 内部方法
+     * 处理Select，由事件循环线程调用
+     *
+     * @param key
+     */
+    protected void processSelectionKey(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                boolean connected;
+                try {
+                    connected = clientInfo.socketChannel.finishConnect();
+                } catch (IOException e) {
+                    clientInfo.remoteAddress = null;
+                    throw e;
+                }
+                if (connected) {
+                    onChannelConnected(key);
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                ByteBuffer byteBuffer = clientInfo.receiveBuffer(bufferAllocator, clientInfo.receiveSize.size());
+                int count = clientInfo.socketChannel.read(byteBuffer);
+                byteBuffer.flip();
+                if (count == -1) {
+                    closeAndReconnect();
+                } else if (count != 0) {
+                    clientInfo.receiveSize.record(count);
+                    try {
+                        onReceivedMessage(byteBuffer);
+                    } catch (Exception e) {
+                        clientListener.onError("消息处理异常", e);
+                    }
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                if (!clientInfo.isWritable) {
+                    //首次可写，注册OP_READ并回调onWritable，之后OP_WRITE只用于发送队列
+                    key.interestOps(SelectionKey.OP_READ);
+                    clientInfo.isWritable = true;
+                    clientListener.onWritable(this);
+                }
+                flushOutbound();
+            }
+        } catch (Exception e) {
+            dispatcherError(e);
+            closeAndReconnect();
+        }
+    }
+
+    /**
+     * 内部方法
+     * 连接成功，先注册OP_WRITE，可写后再注册OP_READ
+     *
+     * @param key
+     * @throws Exception
+     */
+    private void onChannelConnected(SelectionKey key) throws Exception {
+        key.interestOps(SelectionKey.OP_WRITE);
+        clientInfo.isWritable = false;
+        clientInfo.isOffline = false;
+        clientInfo.reconnectAttempts = 0;
+        lastMsgTime = clientInfo.eventLoop.currentTimeMillis();
+        lastWriteTime = lastMsgTime;
+        writerIdleTime = lastMsgTime;
+        allIdleTime = lastMsgTime;
+        lastFrameTime = 0;
+        if (rttHistogram != null) {
+            rttHistogram.reset();
+            lastRttMicros = -1;
+        }
+        clientInfo.heartCheckTime = lastMsgTime;
+        clientInfo.heartWrittenBytes = clientInfo.outboundBuffer.writtenBytes();
+        scheduleIdleCheck();
+        if (clientInfo.isReconnect) {
+            serverStatus = SERVER_STATUS_RECONNECTED;
+            clientListener.onReconnected(this);
+        } else {
+            serverStatus = SERVER_STATUS_CONNECTED;
+            clientListener.onConnected(this);
+        }
+    }
+
+    /**
+     * 内部方法
+     * 关闭当前通道，根据autoReconnect决定停止或者重连
+     */
+    protected void closeAndReconnect() {
+        if (clientInfo.selectionKey == null) {
+            return;
+        }
+        clientInfo.close();
+        if (clientInfo.idleTask != null) {
+            clientInfo.idleTask.cancel();
+            clientInfo.idleTask = null;
+        }
+        clientInfo.outboundBuffer.failAll(this, new ClosedChannelException());
+        clientInfo.releaseDecoder();
+        stopOrReconnect();
+    }
+
+    /**
+     * 内部方法
+     * 针对具体异常做对应处理
+     *
+     * @param e
+     */
+    protected void dispatcherError(Exception e) {
+        if (e instanceof NotYetConnectedException) {
+            clientListener.onError("未完成连接，请求过早", e);
+        } else if (e instanceof ConnectException) {
+            clientListener.onError("连接失败", e);
+        } else if (e instanceof AsynchronousCloseException) {
+            clientListener.onError("连接被关闭", e);
+        } else if (e instanceof ClosedByInterruptException) {
+            clientListener.onError("连接被中断", e);
+        } else if (e instanceof ClosedChannelException) {
+            clientListener.onError("连接通道被关闭", e);
+        } else if (e instanceof NoConnectionPendingException) {
+            clientListener.onError("连接尚未成功，连接成功前不可以操作", e);
+        } else if (e instanceof CancelledKeyException) {
+            clientListener.onError("连接失败，本次连接已取消", e);
+        } else {
+            clientListener.onError("其他", e);
+        }
+    }
+
+    /**
+     * 交给当前编解码方案解码，解码出的消息通过onReceivedMessageNext分发
+     * byteBuffer是连接复用的接收缓冲区，解码器直接消费，不再复制
+     *
+     * @param byteBuffer
+     * @throws Exception
+     */
+    protected void onReceivedMessage(ByteBuffer byteBuffer) throws Exception {
+        lastMsgTime = clientInfo.eventLoop.currentTimeMillis();
+        decode(clientInfo.decoder, byteBuffer, frameHandler);
+    }
+
+    /**
+     * 内部方法
+     * 按编解码方案的消息类型编码，类型不一致时编码器抛出ClassCastException，由writeMessage回调onError
+     *
+     * @param codec
+     * @param message
+     * @param allocator
+     * @param <T>
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> PooledBuffer encode(Codec<T> codec, Object message, BufferAllocator allocator) throws Exception {
+        return codec.getEncoder().encode((T) message, allocator);
+    }
+
+    /**
+     * 内部方法
+     * 解码器的消息类型由编解码方案决定，frameHandler接收Object，可以处理任意类型
+     *
+     * @param decoder
+     * @param byteBuffer
+     * @param frameHandler
+     * @param <T>
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> void decode(FrameDecoder<T> decoder, ByteBuffer byteBuffer, FrameHandler<Object> frameHandler) throws Exception {
+        decoder.decode(byteBuffer, (FrameHandler<T>) (FrameHandler<?>) frameHandler);
+    }
+
+    /**
+     * 分发数据
+     *
+     * @param o
+     * @throws Exception
+     */
+    protected void onReceivedMessageNext(Object o) throws Exception {
+        clientListener.onReadable(this, o);
+    }
+
+    /**
+     * 设置是否自动重连，心跳包检测，在Start之前设置有效
+     *
+     * @param autoReconnect
+     * @return
+     */
+    public MiniTCPClient setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+        return this;
+    }
+
+    /**
+     * 未收到数据间隔时间，超时时间，单位毫秒，默认90秒
+     * 开启自动重连并且没有设置读空闲时，超过此时间没有收到数据认为连接已断开，立即重连，0表示不检测
+     *
+     * @param reconnectTimeOut
+     * @return
+     */
+    public MiniTCPClient setReconnectTimeOut(int reconnectTimeOut) {
+        this.reconnectTimeOut = reconnectTimeOut;
+        return this;
+    }
+
+    /**
+     * 心跳检测间隔时间，单位秒
+     *
+     * @param sendHeartTimeInterval
+     * @return
+     */
+    public MiniTCPClient setSendHeartTimeInterval(int sendHeartTimeInterval) {
+        this.sendHeartTimeInterval = sendHeartTimeInterval;
+        return this;
+    }
+
+    /**
+     * 设置重连策略，开启自动重连时有效
+     * 大量客户端连接同一服务端时建议使用ExponentialBackoffReconnectPolicy，避免服务端重启后同时重连
+     *
+     * @param reconnectPolicy 为null时断线后立即重连一次，之后每次间隔sendHeartTimeInterval
+     * @return
+     */
+    public MiniTCPClient setReconnectPolicy(MiniTCPClientReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+        return this;
+    }
+
+    public MiniTCPClientReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    /**
+     * 当前连续重连次数，连接成功后清零
+     *
+     * @return
+     */
+    public int getReconnectAttempts() {
+        return clientInfo.reconnectAttempts;
+    }
+
+    /**
+     * 心跳周期内收到业务消息时是否跳过心跳，默认跳过，周期内有数据发出时总是跳过
+     * 服务端只按收到客户端的数据判断空闲时设置为false
+     *
+     * @param heartSkipOnRead
+     * @return
+     */
+    public MiniTCPClient setHeartSkipOnRead(boolean heartSkipOnRead) {
+        this.heartSkipOnRead = heartSkipOnRead;
+        return this;
+    }
+
+    /**
+     * 心跳使用带时间戳的DATA_TYPE_PING，测量往返延迟，需要服务端原样回复DATA_TYPE_PONG
+     * 开启后每个心跳周期都发送PING，不因业务数据跳过，收到服务端的PING时自动回复PONG，PING和PONG不交给回调
+     * 只支持PackageMessageCodec和PackageMessageForNioCodec，其他方案仍然发送普通心跳
+     *
+     * @param heartPing
+     * @return
+     */
+    public MiniTCPClient setHeartPing(boolean heartPing) {
+        if (!heartPing) {
+            rttHistogram = null;
+        } else if (rttHistogram == null) {
+            rttHistogram = new LatencyHistogram();
+        }
+        return this;
+    }
+
+    /**
+     * 当前连接的往返延迟直方图，单位微秒，重新连接后清空，可以在任意线程读取p50、p99、p999
+     *
+     * @return 未开启PING心跳时返回null
+     */
+    public LatencyHistogram getRttHistogram() {
+        return rttHistogram;
+    }
+
+    /**
+     * 最近一次往返延迟，单位微秒
+     *
+     * @return 没有测量结果时返回-1
+     */
+    public long getLastRttMicros() {
+        return lastRttMicros;
+    }
+
+    /**
+     * 设置空闲检测时间，单位毫秒，0表示不检测，连接开始前设置
+     * 读空闲和读写空闲回调onIdle后立即关闭连接，开启自动重连时重连，写空闲只回调，可以在回调中发送心跳
+     * 精度为定时器的tick，默认100毫秒
+     *
+     * @param readerIdleMillis 超过此时间没有收到数据
+     * @param writerIdleMillis 超过此时间没有写入数据
+     * @param allIdleMillis    超过此时间没有收到也没有写入数据
+     * @return
+     */
+    public MiniTCPClient setIdleTime(long readerIdleMillis, long writerIdleMillis, long allIdleMillis) {
+        if (readerIdleMillis < 0 || writerIdleMillis < 0 || allIdleMillis < 0) {
+            throw new IllegalArgumentException("idle time < 0");
+        }
+        this.readerIdleMillis = readerIdleMillis;
+        this.writerIdleMillis = writerIdleMillis;
+        this.allIdleMillis = allIdleMillis;
+        return this;
+    }
+
+    /**
+     * 设置空闲回调
+     *
+     * @param idleListener 可以为null
+     * @return
+     */
+    public MiniTCPClient setIdleListener(onMiniTCPClientIdleListener idleListener) {
+        this.idleListener = idleListener;
+        return this;
+    }
+
+    /**
+     * 最后一次接收数据时间
+     *
+     * @return
+     */
+    public long getLastReadTime() {
+        return lastMsgTime;
+    }
+
+    /**
+     * 最后一次写入数据时间
+     *
+     * @return
+     */
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    /**
+     * 设置共享事件循环组，start之前有效
+     *
+     * @param clientGroup
+     * @return
+     */
+    public MiniTCPClient setClientGroup(MiniTCPClientGroup clientGroup) {
+        this.clientGroup = clientGroup;
+        return this;
+    }
+
+    public MiniTCPClientGroup getClientGroup() {
+        return clientGroup;
+    }
+
+    /**
+     * 设置定时器，默认使用共享的MiniTCPClientTimer.DEFAULT，start之前有效
+     *
+     * @param timer
+     * @return
+     */
+    public MiniTCPClient setTimer(MiniTCPClientTimer timer) {
+        if (timer == null) {
+            throw new NullPointerException("timer");
+        }
+        this.timer = timer;
+        return this;
+    }
+
+    public MiniTCPClientTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * 设置是否是守护线程，默认false，start之前有效，使用共享事件循环组时由事件循环组决定
+     *
+     * @param daemon
+     * @return
+     */
+    public MiniTCPClient setDaemon(boolean daemon) {
+        this.daemon = daemon;
+        return this;
+    }
+
+    /**
+     * 获取连接状态
+     *
+     * @return
+     */
+    public int getServerStatus() {
+        return serverStatus;
+    }
+
+    /**
+     * 获取连接状态
+     *
+     * @return
+     */
+    public String getServerStatusString() {
+        switch (serverStatus) {
+            case SERVER_STATUS_WAIT:
+                return "wait";
+            case SERVER_STATUS_CONNECTED:
+                return "connected";
+            case SERVER_STATUS_RECONNECTING:
+                return "reconnecting";
+            case SERVER_STATUS_RECONNECTED:
+                return "reconnected";
+            case SERVER_STATUS_STOP:
+                return "stop";
+        }
+        return "unknow";
+    }
+
+    /**
+     * 内部方法
+     * 停止连接，通道在事件循环线程关闭
+     */
+    protected synchronized void stop() {
+        serverStatus = SERVER_STATUS_STOP;
+        final MiniTCPClientEventLoop eventLoop = clientInfo.eventLoop;
+        if (eventLoop == null) {
+            return;
+        }
+        eventLoop.execute(new ClientTask() {
+            @Override
+            public void run() {
+                if (clientInfo.eventLoop != eventLoop) {
+                    return;
+                }
+                if (clientInfo.selectionKey != null) {
+                    closeAndReconnect();
+                } else {
+                    //等待重连中，没有打开的通道
+                    stopOrReconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * 内部方法
+     * 事件循环停止时在事件循环线程调用，关闭通道或者取消等待中的重连，触发onStop
+     *
+     * @param eventLoop
+     */
+    void onEventLoopShutdown(MiniTCPClientEventLoop eventLoop) {
+        synchronized (this) {
+            if (clientInfo.eventLoop != eventLoop) {
+                return;
+            }
+            autoReconnect = false;
+            serverStatus = SERVER_STATUS_STOP;
+        }
+        if (clientInfo.selectionKey != null) {
+            closeAndReconnect();
+        } else {
+            stopOrReconnect();
+        }
+    }
+
+    /**
+     * 公开方法
+     * 停止当前连接，并触发回调
+     */
+    public void stopConnect() {
+        autoReconnect = false;
+        stop();
+    }
+
+    public boolean isOffline() {
         return clientInfo == null ? true : clientInfo.isOffline;
     }
 
@@ -413,16 +1263,16 @@ public class MiniTCPClient implements Runnable {
      */
     protected void stopOrReconnect() {
         if (autoReconnect) {
-            if (clientInfo.isOffline) {
-                return;
-            }
-            try {
-                clientInfo.isOffline = true;
-                clientInfo.isWritable = false;
-                clientListener.onOffline(this);
-            } catch (Exception e) {
-                clientListener.onError("onOffline", e);
+            if (!clientInfo.isOffline) {
+                try {
+                    clientInfo.isOffline = true;
+                    clientInfo.isWritable = false;
+                    clientListener.onOffline(this);
+                } catch (Exception e) {
+                    clientListener.onError("onOffline", e);
+                }
             }
+            scheduleReconnect();
         } else {
             serverStatus = SERVER_STATUS_STOP;
             stopAndCallBack();
@@ -431,14 +1281,64 @@ public class MiniTCPClient implements Runnable {
 
     /**
      * 内部方法
-     * 停止连接并且触发onStop回调。
+     * 由定时器安排重连，到期后在事件循环执行，延迟由reconnectPolicy决定，策略放弃重连时停止客户端
+     */
+    protected void scheduleReconnect() {
+        final MiniTCPClientEventLoop eventLoop = clientInfo.eventLoop;
+        if (clientInfo.reconnectTask != null || eventLoop == null) {
+            return;
+        }
+        int attempt = clientInfo.reconnectAttempts++;
+        long delay;
+        if (reconnectPolicy == null) {
+            delay = attempt == 0 ? 0 : sendHeartTimeInterval * 1000L;
+        } else {
+            delay = reconnectPolicy.nextDelayMillis(attempt);
+        }
+        if (delay < 0) {
+            serverStatus = SERVER_STATUS_STOP;
+            stopAndCallBack();
+            return;
+        }
+        serverStatus = SERVER_STATUS_RECONNECTING;
+        clientInfo.reconnectTask = timer.newTimeout(new ClientTask() {
+            @Override
+            public void run() {
+                eventLoop.execute(new ClientTask() {
+                    @Override
+                    public void run() {
+                        initChannel(true);
+                    }
+                });
+            }
+        }, delay);
+    }
+
+    /**
+     * 内部方法
+     * 停止连接并且触发onStop回调，释放事件循环。
      */
     protected synchronized void stopAndCallBack() {
-        stop();
+        serverStatus = SERVER_STATUS_STOP;
+        if (clientInfo.reconnectTask != null) {
+            clientInfo.reconnectTask.cancel();
+            clientInfo.reconnectTask = null;
+        }
+        if (clientInfo.heartTask != null) {
+            clientInfo.heartTask.cancel();
+            clientInfo.heartTask = null;
+        }
+        if (clientInfo.eventLoop != null) {
+            clientInfo.eventLoop.unbind(this);
+            clientInfo.eventLoop = null;
+        }
+        clientInfo.releaseBuffers();
+        if (clientInfo.privateGroup != null) {
+            clientInfo.privateGroup.shutdown();
+            clientInfo.privateGroup = null;
+        }
         try {
-            if (serverStatus == SERVER_STATUS_STOP) {
-                clientListener.onStop();
-            }
+            clientListener.onStop();
         } catch (Exception e) {
             clientListener.onError("onStop Error", e);
         }
@@ -447,38 +1347,296 @@ public class MiniTCPClient implements Runnable {
 
     /**
      * 内部方法
-     * 心跳发送服务
+     * 心跳发送服务，由定时器每sendHeartTimeInterval秒触发，在事件循环发送心跳，周期内有业务数据时跳过
      */
     protected void loopHeart() {
         if (!autoReconnect) {
             return;
         }
-        scheduledThreadPool.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                if (autoReconnect) {
-                    if (serverStatus == SERVER_STATUS_RECONNECTING) {
-                        return;
-                    }
-                    if (serverStatus != SERVER_STATUS_CONNECTED && serverStatus != SERVER_STATUS_RECONNECTED) {
-                        return;
-                    }
-                    if (System.currentTimeMillis() < reconnectTimeOut + lastMsgTime) {
-                        if (clientInfo.isPackageMessageForNio()) {
-                            write(PackageMessageForNio.getHeartPackageMessage().encodePackageMessage());
-                        } else if (clientInfo.isPackageMessage()) {
-                            write(PackageMessage.getHeartPackageMessage().encodePackageMessage().readableBytesArray());
-                        }
-                    } else {
-//                        stopOrReconnect();
-                    }
-                } else {
-                    scheduledThreadPool.shutdown();
+        if (clientInfo.heartTask != null) {
+            clientInfo.heartTask.cancel();
+        }
+        clientInfo.heartTask = timer.newTimeout(heartTimerTask, sendHeartTimeInterval * 1000L);
+    }
+
+    /**
+     * 定时器到期后重新安排下一次，并提交心跳任务到事件循环
+     */
+    private final ClientTask heartTimerTask = new ClientTask() {
+        @Override
+        public void run() {
+            MiniTCPClientEventLoop eventLoop = clientInfo.eventLoop;
+            if (!autoReconnect || eventLoop == null) {
+                return;
+            }
+            clientInfo.heartTask = timer.newTimeout(this, sendHeartTimeInterval * 1000L);
+            eventLoop.execute(heartTask);
+        }
+    };
+
+    private final ClientTask heartTask = new ClientTask() {
+        @Override
+        public void run() {
+            if (!autoReconnect) {
+                return;
+            }
+            if (serverStatus != SERVER_STATUS_CONNECTED && serverStatus != SERVER_STATUS_RECONNECTED) {
+                return;
+            }
+            long now = clientInfo.eventLoop.currentTimeMillis();
+            long writtenBytes = clientInfo.outboundBuffer.writtenBytes();
+            //周期内有业务数据发出或收到时不需要心跳，PING用于测量延迟，每个周期都发送
+            boolean busy = writtenBytes != clientInfo.heartWrittenBytes || heartSkipOnRead && lastFrameTime >= clientInfo.heartCheckTime;
+            clientInfo.heartCheckTime = now;
+            clientInfo.heartWrittenBytes = writtenBytes;
+            if (busy && rttHistogram == null) {
+                return;
+            }
+            //超时的连接不再发送心跳，由空闲检测重连
+            if (reconnectTimeOut > 0 && now >= reconnectTimeOut + lastMsgTime) {
+                return;
+            }
+            if (rttHistogram != null) {
+                PooledBuffer ping = encodePing(true, System.nanoTime() - PING_NANO_ORIGIN);
+                if (ping != null) {
+                    clientInfo.heartWrittenBytes += ping.buffer().remaining();
+                    write(ping);
+                    return;
                 }
             }
-        }, sendHeartTimeInterval, sendHeartTimeInterval, TimeUnit.SECONDS);
+            ByteBuffer heart = heartFrame();
+            if (heart.hasRemaining()) {
+                clientInfo.heartWrittenBytes += heart.remaining();
+                write(new ByteBuffer[]{heart.duplicate()}, null, null);
+            }
+        }
+    };
+
+    /**
+     * 内部方法
+     * 使用当前编解码方案编码PING或PONG，PackageMessage和PackageMessageForNio以外的方案不支持
+     *
+     * @param ping      true为PING，false为PONG
+     * @param timestamp
+     * @return 不支持时返回null
+     */
+    private PooledBuffer encodePing(boolean ping, long timestamp) {
+        Codec<?> codec = clientInfo.codec;
+        try {
+            if (codec instanceof PackageMessageForNioCodec) {
+                PackageMessageForNio message = ping ? PackageMessageForNio.getPingPackageMessage(timestamp) : PackageMessageForNio.getPongPackageMessage(timestamp);
+                return ((PackageMessageForNioCodec) codec).getEncoder().encode(message, bufferAllocator);
+            }
+            if (codec instanceof PackageMessageCodec) {
+                PackageMessage message = ping ? PackageMessage.getPingPackageMessage(timestamp) : PackageMessage.getPongPackageMessage(timestamp);
+                return ((PackageMessageCodec) codec).getEncoder().encode(message, bufferAllocator);
+            }
+        } catch (Exception e) {
+            clientListener.onError("消息编码异常", e);
+        }
+        return null;
+    }
+
+    /**
+     * 内部方法
+     * 处理PING和PONG，收到PING时回复PONG，收到PONG时记录往返延迟，在事件循环线程调用
+     *
+     * @param message
+     * @return 是PING或PONG时返回true，不再交给回调
+     */
+    private boolean onPingFrame(Object message) {
+        boolean ping;
+        long timestamp;
+        if (message instanceof PackageMessageForNio) {
+            int dataType = ((PackageMessageForNio) message).getDataType();
+            if (dataType != PackageMessageForNio.DATA_TYPE_PING && dataType != PackageMessageForNio.DATA_TYPE_PONG) {
+                return false;
+            }
+            ping = dataType == PackageMessageForNio.DATA_TYPE_PING;
+            timestamp = ((PackageMessageForNio) message).getPingTimestamp();
+        } else if (message instanceof PackageMessage) {
+            int dataType = ((PackageMessage) message).getDataType();
+            if (dataType != PackageMessage.DATA_TYPE_PING && dataType != PackageMessage.DATA_TYPE_PONG) {
+                return false;
+            }
+            ping = dataType == PackageMessage.DATA_TYPE_PING;
+            timestamp = ((PackageMessage) message).getPingTimestamp();
+        } else {
+            return false;
+        }
+        if (timestamp < 0) {
+            return true;
+        }
+        if (ping) {
+            PooledBuffer pong = encodePing(false, timestamp);
+            if (pong != null) {
+                write(pong);
+            }
+        } else {
+            long rtt = (System.nanoTime() - PING_NANO_ORIGIN - timestamp) / 1000;
+            if (rtt >= 0) {
+                lastRttMicros = rtt;
+                rttHistogram.record(rtt);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 内部方法
+     * 获取预先编码的心跳包，第一次使用时由编解码方案编码，之后所有心跳共用，不再分配缓冲区
+     *
+     * @return 只读缓冲区，发送时使用duplicate()，协议没有心跳包时没有剩余数据
+     */
+    private ByteBuffer heartFrame() {
+        ByteBuffer heartFrame = clientInfo.heartFrame;
+        if (heartFrame == null) {
+            PooledBuffer heart = clientInfo.codec.getEncoder().encodeHeart(bufferAllocator);
+            if (heart == null) {
+                heartFrame = ByteBuffer.allocate(0);
+            } else {
+                heartFrame = ByteBuffer.allocate(heart.buffer().remaining());
+                heartFrame.put(heart.buffer());
+                heartFrame.flip();
+                heart.release();
+            }
+            heartFrame = heartFrame.asReadOnlyBuffer();
+            clientInfo.heartFrame = heartFrame;
+        }
+        return heartFrame;
+    }
+
+    /**
+     * 读空闲时间，没有设置时开启自动重连使用reconnectTimeOut
+     *
+     * @return
+     */
+    private long readerIdleMillis() {
+        if (readerIdleMillis > 0) {
+            return readerIdleMillis;
+        }
+        return autoReconnect && reconnectTimeOut > 0 ? reconnectTimeOut : 0;
+    }
+
+    /**
+     * 内部方法
+     * 连接成功后安排空闲检测，在最早可能空闲的时间检查
+     */
+    private void scheduleIdleCheck() {
+        long now = clientInfo.eventLoop.currentTimeMillis();
+        long delay = Long.MAX_VALUE;
+        long readerIdle = readerIdleMillis();
+        if (readerIdle > 0) {
+            delay = Math.min(delay, lastMsgTime + readerIdle - now);
+        }
+        if (writerIdleMillis > 0) {
+            delay = Math.min(delay, Math.max(lastWriteTime, writerIdleTime) + writerIdleMillis - now);
+        }
+        if (allIdleMillis > 0) {
+            delay = Math.min(delay, Math.max(Math.max(lastMsgTime, lastWriteTime), allIdleTime) + allIdleMillis - now);
+        }
+        if (clientInfo.idleTask != null) {
+            clientInfo.idleTask.cancel();
+            clientInfo.idleTask = null;
+        }
+        if (delay == Long.MAX_VALUE) {
+            return;
+        }
+        IdleCheckTask task = new IdleCheckTask();
+        task.timeout = timer.newTimeout(task, Math.max(0, delay));
+        clientInfo.idleTask = task.timeout;
+    }
+
+    /**
+     * 内部方法
+     * 检查空闲，读空闲和读写空闲关闭连接，写空闲回调后继续检测
+     */
+    private void checkIdle() {
+        clientInfo.idleTask = null;
+        if (clientInfo.selectionKey == null || serverStatus == SERVER_STATUS_STOP) {
+            return;
+        }
+        long now = clientInfo.eventLoop.currentTimeMillis();
+        long readerIdle = readerIdleMillis();
+        if (readerIdle > 0 && now - lastMsgTime >= readerIdle) {
+            onIdle(IDLE_TYPE_READER);
+            closeAndReconnect();
+            return;
+        }
+        if (allIdleMillis > 0 && now - Math.max(Math.max(lastMsgTime, lastWriteTime), allIdleTime) >= allIdleMillis) {
+            allIdleTime = now;
+            onIdle(IDLE_TYPE_ALL);
+            closeAndReconnect();
+            return;
+        }
+        if (writerIdleMillis > 0 && now - Math.max(lastWriteTime, writerIdleTime) >= writerIdleMillis) {
+            writerIdleTime = now;
+            onIdle(IDLE_TYPE_WRITER);
+            if (clientInfo.selectionKey == null) {
+                return;
+            }
+        }
+        scheduleIdleCheck();
+    }
+
+    private void onIdle(int idleType) {
+        if (idleListener == null) {
+            if (idleType != IDLE_TYPE_WRITER) {
+                clientListener.onError("连接空闲超时", new SocketTimeoutException("idleType=" + idleType));
+            }
+            return;
+        }
+        try {
+            idleListener.onIdle(this, idleType);
+        } catch (Exception e) {
+            clientListener.onError("onIdle", e);
+        }
+    }
+
+    /**
+     * 定时器到期后在事件循环检查空闲，已经被新的检测替换时忽略
+     */
+    private class IdleCheckTask extends ClientTask {
+        private MiniTCPClientTimer.Timeout timeout;
 
+        @Override
+        public void run() {
+            MiniTCPClientEventLoop eventLoop = clientInfo.eventLoop;
+            if (eventLoop == null) {
+                return;
+            }
+            eventLoop.execute(new ClientTask() {
+                @Override
+                public void run() {
+                    if (clientInfo.idleTask == timeout) {
+                        checkIdle();
+                    }
+                }
+            });
+        }
     }
 
+    /**
+     * 内部方法
+     * 事件循环或定时器执行任务异常，回调onError，共享线程上其他连接不受影响
+     *
+     * @param e
+     */
+    void onTaskError(Throwable e) {
+        try {
+            clientListener.onError("任务执行异常", e instanceof Exception ? (Exception) e : new Exception(e));
+        } catch (Throwable e1) {
+            e1.printStackTrace();
+        }
+    }
 
+    /**
+     * 内部方法
+     * 提交到事件循环和定时器的任务，异常时由事件循环或定时器回调所属连接的onError
+     */
+    abstract class ClientTask implements Runnable {
+        MiniTCPClient client() {
+            return MiniTCPClient.this;
+        }
+    }
 }
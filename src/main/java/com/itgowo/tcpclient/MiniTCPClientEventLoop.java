@@ -0,0 +1,336 @@
+package com.itgowo.tcpclient;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * @author lujianchao
+ * 事件循环，一个线程持有一个Selector，同时服务多个MiniTCPClient连接
+ * 连接、读、写和重连都在此线程内完成，其他线程通过execute()提交任务
+ */
+public class MiniTCPClientEventLoop implements Runnable {
+    /**
+     * 没有定时任务时select最长等待时间，单位毫秒
+     */
+    private static final long SELECT_TIME_OUT = 3000;
+    private final MiniTCPClientGroup clientGroup;
+    private final Selector selector;
+    private final Thread thread;
+    /**
+     * 其他线程提交的任务
+     */
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * 定时任务，只在事件循环线程内访问
+     */
+    private final PriorityQueue<ScheduledTask> scheduledTaskQueue = new PriorityQueue<>();
+    /**
+     * 绑定在此循环上的连接，包括等待重连、没有打开通道的连接，停止循环时全部停止
+     */
+    private final Set<MiniTCPClient> clients = Collections.newSetFromMap(new ConcurrentHashMap<MiniTCPClient, Boolean>());
+    private long scheduledTaskSequence;
+    private volatile boolean shutdown;
+    /**
+     * 粗粒度时钟，每次select返回后更新，连接记录读写时间时使用，不用每次读写都调用System.currentTimeMillis()
+     */
+    private volatile long currentTimeMillis = System.currentTimeMillis();
+
+    MiniTCPClientEventLoop(MiniTCPClientGroup clientGroup, String threadName, boolean daemon) throws IOException {
+        this.clientGroup = clientGroup;
+        this.selector = Selector.open();
+        this.thread = new Thread(this);
+        this.thread.setName(threadName);
+        this.thread.setDaemon(daemon);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    public MiniTCPClientGroup getClientGroup() {
+        return clientGroup;
+    }
+
+    /**
+     * 当前线程是否是事件循环线程
+     *
+     * @return
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * 本轮循环开始时的时间，误差为一轮事件处理的耗时
+     *
+     * @return
+     */
+    public long currentTimeMillis() {
+        return currentTimeMillis;
+    }
+
+    /**
+     * 提交任务到事件循环线程执行
+     *
+     * @param task
+     * @throws RejectedExecutionException 事件循环已经停止
+     */
+    public void execute(Runnable task) {
+        checkShutdown();
+        taskQueue.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 延迟执行任务，任务在事件循环线程执行
+     *
+     * @param task
+     * @param delayMillis 延迟时间，单位毫秒
+     * @return 可用于取消任务
+     * @throws RejectedExecutionException 事件循环已经停止
+     */
+    public ScheduledTask schedule(Runnable task, long delayMillis) {
+        checkShutdown();
+        final ScheduledTask scheduledTask = new ScheduledTask(task, System.currentTimeMillis() + Math.max(0, delayMillis));
+        if (inEventLoop()) {
+            addScheduledTask(scheduledTask);
+        } else {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    addScheduledTask(scheduledTask);
+                }
+            });
+        }
+        return scheduledTask;
+    }
+
+    private void checkShutdown() {
+        if (shutdown) {
+            throw new RejectedExecutionException("event loop shutdown");
+        }
+    }
+
+    /**
+     * 内部方法
+     * 连接选定此循环时绑定，停止后解绑
+     *
+     * @param client
+     * @throws RejectedExecutionException 事件循环已经停止
+     */
+    void bind(MiniTCPClient client) {
+        checkShutdown();
+        clients.add(client);
+    }
+
+    void unbind(MiniTCPClient client) {
+        clients.remove(client);
+    }
+
+    private void addScheduledTask(ScheduledTask scheduledTask) {
+        scheduledTask.sequence = scheduledTaskSequence++;
+        scheduledTaskQueue.add(scheduledTask);
+    }
+
+    /**
+     * 内部方法
+     * 注册连接通道，必须在事件循环线程调用
+     *
+     * @param socketChannel
+     * @param ops
+     * @param client
+     * @return
+     * @throws ClosedChannelException
+     */
+    SelectionKey register(SocketChannel socketChannel, int ops, MiniTCPClient client) throws ClosedChannelException {
+        if (!inEventLoop()) {
+            throw new IllegalStateException("register must be called in event loop");
+        }
+        return socketChannel.register(selector, ops, client);
+    }
+
+    /**
+     * 停止事件循环，之后不再接受新任务，绑定在此循环上的连接都会被停止，包括等待重连的连接
+     */
+    public void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!shutdown) {
+            try {
+                long timeout = nextScheduledTaskDelay();
+                if (!taskQueue.isEmpty() || timeout == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                currentTimeMillis = System.currentTimeMillis();
+                processSelectedKeys();
+                runTasks();
+                runScheduledTasks();
+            } catch (Throwable e) {
+                //Selector异常影响此循环上的所有连接
+                for (SelectionKey key : selector.keys()) {
+                    onTaskError(key.attachment(), e);
+                }
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * 内部方法
+     * 任务异常回调所属连接的onError，无法确定所属连接时打印
+     *
+     * @param task 任务或者SelectionKey的attachment
+     * @param e
+     */
+    private void onTaskError(Object task, Throwable e) {
+        if (task instanceof MiniTCPClient.ClientTask) {
+            ((MiniTCPClient.ClientTask) task).client().onTaskError(e);
+        } else if (task instanceof MiniTCPClient) {
+            ((MiniTCPClient) task).onTaskError(e);
+        } else {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 距离最近一个定时任务的时间，没有定时任务则返回SELECT_TIME_OUT
+     *
+     * @return
+     */
+    private long nextScheduledTaskDelay() {
+        ScheduledTask scheduledTask = scheduledTaskQueue.peek();
+        if (scheduledTask == null) {
+            return SELECT_TIME_OUT;
+        }
+        long delay = scheduledTask.deadline - System.currentTimeMillis();
+        return delay <= 0 ? 0 : Math.min(delay, SELECT_TIME_OUT);
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> ite = selector.selectedKeys().iterator();
+        while (ite.hasNext()) {
+            SelectionKey key = ite.next();
+            ite.remove();
+            Object attachment = key.attachment();
+            if (!key.isValid() || !(attachment instanceof MiniTCPClient)) {
+                continue;
+            }
+            try {
+                ((MiniTCPClient) attachment).processSelectionKey(key);
+            } catch (Throwable e) {
+                onTaskError(attachment, e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                onTaskError(task, e);
+            }
+        }
+    }
+
+    private void runScheduledTasks() {
+        long now = System.currentTimeMillis();
+        ScheduledTask scheduledTask;
+        while ((scheduledTask = scheduledTaskQueue.peek()) != null && scheduledTask.deadline <= now) {
+            scheduledTaskQueue.poll();
+            if (scheduledTask.cancelled) {
+                continue;
+            }
+            try {
+                scheduledTask.task.run();
+            } catch (Throwable e) {
+                onTaskError(scheduledTask.task, e);
+            }
+        }
+    }
+
+    /**
+     * 内部方法
+     * 退出循环前停止所有绑定在此循环上的连接，已经提交的任务执行完再关闭Selector
+     */
+    private void closeAll() {
+        runTasks();
+        List<MiniTCPClient> clients = new ArrayList<>(this.clients);
+        for (int i = 0; i < clients.size(); i++) {
+            try {
+                clients.get(i).onEventLoopShutdown(this);
+            } catch (Throwable e) {
+                clients.get(i).onTaskError(e);
+            }
+        }
+        this.clients.clear();
+        scheduledTaskQueue.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            if (clients.isEmpty()) {
+                e.printStackTrace();
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                clients.get(i).onTaskError(e);
+            }
+        }
+    }
+
+    /**
+     * 延迟任务
+     */
+    public static class ScheduledTask implements Comparable<ScheduledTask> {
+        private final Runnable task;
+        private final long deadline;
+        private long sequence;
+        private volatile boolean cancelled;
+
+        private ScheduledTask(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask o) {
+            if (deadline != o.deadline) {
+                return deadline < o.deadline ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
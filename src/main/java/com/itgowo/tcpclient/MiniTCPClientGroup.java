@@ -0,0 +1,82 @@
+package com.itgowo.tcpclient;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author lujianchao
+ * 事件循环组，多个MiniTCPClient共享少量Selector线程
+ * 例如5000个长连接可以只用CPU核数个线程维持，而不是每个连接一个线程一个Selector
+ */
+public class MiniTCPClientGroup {
+    private final MiniTCPClientEventLoop[] eventLoops;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    /**
+     * 默认线程数为CPU核数，非守护线程
+     */
+    public MiniTCPClientGroup() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public MiniTCPClientGroup(int threadCount) {
+        this(threadCount, false);
+    }
+
+    public MiniTCPClientGroup(int threadCount, boolean daemon) {
+        this(threadCount, daemon, "MiniTCPClient");
+    }
+
+    /**
+     * @param threadCount 事件循环线程数
+     * @param daemon      是否是守护线程
+     * @param threadName  线程名，多个线程时追加序号
+     */
+    public MiniTCPClientGroup(int threadCount, boolean daemon, String threadName) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount < 1");
+        }
+        eventLoops = new MiniTCPClientEventLoop[threadCount];
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                eventLoops[i] = new MiniTCPClientEventLoop(this, threadCount == 1 ? threadName : threadName + "-" + i, daemon);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("open selector failed", e);
+        }
+        for (MiniTCPClientEventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+    }
+
+    /**
+     * 轮询获取下一个事件循环
+     *
+     * @return
+     */
+    public MiniTCPClientEventLoop next() {
+        return eventLoops[(nextIndex.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+    }
+
+    public int getThreadCount() {
+        return eventLoops.length;
+    }
+
+    /**
+     * 停止所有事件循环，注册在上面的连接都会被停止
+     */
+    public void shutdown() {
+        for (MiniTCPClientEventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+
+    public boolean isShutdown() {
+        for (MiniTCPClientEventLoop eventLoop : eventLoops) {
+            if (!eventLoop.isShutdown()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
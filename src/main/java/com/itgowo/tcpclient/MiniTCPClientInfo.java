@@ -1,12 +1,22 @@
 package com.itgowo.tcpclient;
 
+import com.itgowo.tcp.buffer.AdaptiveReceiveSize;
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+import com.itgowo.tcp.codec.Codec;
+import com.itgowo.tcp.codec.FrameDecoder;
+import com.itgowo.tcp.codec.PackageMessageCodec;
+import com.itgowo.tcp.codec.PackageMessageForNioCodec;
+import com.itgowo.tcp.codec.RawCodec;
 import com.itgowo.tcp.me.PackageMessage;
 import com.itgowo.tcp.nio.PackageMessageForNio;
 
 import java.io.IOException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.nio.channels.Selector;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
 public class MiniTCPClientInfo {
@@ -14,38 +24,88 @@ public class MiniTCPClientInfo {
     public static final int RESULT_TYPE_PACKMESSAGE = 1;
     public static final int RESULT_TYPE_PACKMESSAGE_FOR_NIO = 2;
     protected SocketChannel socketChannel;
-    protected Selector selector;
-    protected Thread thread;
-    protected PackageMessage packageMessageDecoder;
-    protected PackageMessageForNio packageMessageForNioDecoder;
+    protected SelectionKey selectionKey;
+    /**
+     * 接收缓冲区，从分配器租用，连接内复用，每次读取前clear
+     */
+    protected PooledBuffer receiveBuffer;
+    /**
+     * 当前连接的自适应读取大小，每次连接新建
+     */
+    protected volatile AdaptiveReceiveSize receiveSize;
+    /**
+     * 发送队列，跨重连复用，断线时未写完的数据全部失败
+     */
+    protected final MiniTCPClientOutboundBuffer outboundBuffer = new MiniTCPClientOutboundBuffer();
+    /**
+     * 当前连接所在事件循环，未启动或已停止时为null
+     */
+    protected volatile MiniTCPClientEventLoop eventLoop;
+    /**
+     * 未指定共享事件循环组时，客户端独占的事件循环组，停止时一并关闭
+     */
+    protected MiniTCPClientGroup privateGroup;
+    /**
+     * 等待执行的重连任务
+     */
+    protected MiniTCPClientTimer.Timeout reconnectTask;
+    /**
+     * 下一次心跳任务
+     */
+    protected volatile MiniTCPClientTimer.Timeout heartTask;
+    /**
+     * 预先编码的只读心跳包，每次发送duplicate()，start时清空以便编解码设置变更后重新编码
+     */
+    protected ByteBuffer heartFrame;
+    /**
+     * 上次心跳检查时已写入的字节数(包括当次发送的心跳包)和检查时间，用于判断期间是否有业务数据，只在事件循环线程访问
+     */
+    protected long heartWrittenBytes;
+    protected long heartCheckTime;
+    /**
+     * 当前连接的空闲检测任务，只在事件循环线程访问
+     */
+    protected MiniTCPClientTimer.Timeout idleTask;
+    /**
+     * 连续重连次数，连接成功后清零
+     */
+    protected int reconnectAttempts;
+    /**
+     * 已解析的服务端地址，重连时复用，连接失败时清空，下次重新解析以便服务端地址变更后生效
+     */
+    protected InetSocketAddress remoteAddress;
+    protected boolean isReconnect = false;
+    /**
+     * 编解码方案，创建客户端时确定
+     */
+    protected Codec<?> codec;
+    /**
+     * 当前连接的解码器，每次建立连接时由codec重新创建，连接关闭后归还
+     */
+    protected FrameDecoder<?> decoder;
     protected int resultType = RESULT_TYPE_NIO;
     protected boolean isOffline = false;
     protected boolean isWritable = false;
 
     public void close() {
-        close(socketChannel, selector);
+        close(socketChannel, selectionKey);
+        selectionKey = null;
     }
 
     /**
      * 内部方法
-     * 关闭连接通道
+     * 关闭连接通道，Selector由事件循环共享，这里只取消注册
      *
      * @param socketChannel
-     * @param selector
+     * @param selectionKey
      */
-    protected void close(SocketChannel socketChannel, Selector selector) {
-        if (selector != null) {
-            try {
-                selector.close();
-                selector = null;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    protected void close(SocketChannel socketChannel, SelectionKey selectionKey) {
+        if (selectionKey != null) {
+            selectionKey.cancel();
         }
         if (socketChannel != null) {
             try {
                 socketChannel.close();
-                socketChannel = null;
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -55,21 +115,101 @@ public class MiniTCPClientInfo {
 
     /**
      * 内部方法
-     * 判断服务初始类型，分为返回Java Nio ByteBuffer、PackageMessage和PackageMessageForNio三种
-     */
-    protected int getResultType(onMiniTCPClientListener clientListener) {
-        Type[] types = clientListener.getClass().getGenericInterfaces();
-        if (types[0] instanceof ParameterizedType) {
-            ParameterizedType parameterizedType = (ParameterizedType) types[0];
-            Type[] actualTypeArguments = parameterizedType.getActualTypeArguments();
-            if (actualTypeArguments[0].equals(PackageMessage.class)) {
-                packageMessageDecoder = PackageMessage.getPackageMessage();
-                resultType = RESULT_TYPE_PACKMESSAGE;
-            } else if (actualTypeArguments[0].equals(PackageMessageForNio.class)) {
-                packageMessageForNioDecoder = PackageMessageForNio.getPackageMessage();
-                resultType = RESULT_TYPE_PACKMESSAGE_FOR_NIO;
+     * 获取复用的接收缓冲区，容量不够或者超过bufferSize 4倍时重新租用，读取大小变小后归还大缓冲区
+     * 需要解码的类型使用allocator偏好的缓冲区(默认堆外)，原始ByteBuffer类型会直接交给回调，使用堆内缓冲区保证array()可用
+     *
+     * @param allocator
+     * @param bufferSize
+     * @return 已clear的缓冲区，limit为bufferSize
+     */
+    protected ByteBuffer receiveBuffer(BufferAllocator allocator, int bufferSize) {
+        if (receiveBuffer == null || receiveBuffer.capacity() < bufferSize || receiveBuffer.capacity() / 4 >= bufferSize) {
+            if (receiveBuffer != null) {
+                receiveBuffer.release();
+            }
+            receiveBuffer = codec.isHeapReceiveBuffer() ? allocator.heapBuffer(bufferSize) : allocator.buffer(bufferSize);
+        }
+        ByteBuffer byteBuffer = receiveBuffer.buffer();
+        byteBuffer.clear();
+        byteBuffer.limit(bufferSize);
+        return byteBuffer;
+    }
+
+    /**
+     * 内部方法
+     * 每次建立连接前创建新的解码器，上一个连接残留的半包、流式接收和解压状态不会带到新连接
+     *
+     * @param allocator
+     */
+    protected void newDecoder(BufferAllocator allocator) {
+        releaseDecoder();
+        decoder = codec.newDecoder();
+        decoder.setBufferAllocator(allocator);
+    }
+
+    /**
+     * 内部方法
+     * 连接关闭后归还解码器持有的池化缓冲区
+     */
+    protected void releaseDecoder() {
+        if (decoder != null) {
+            decoder.releaseDecoder();
+            decoder = null;
+        }
+    }
+
+    /**
+     * 内部方法
+     * 停止后归还接收缓冲区和解码器持有的池化缓冲区
+     */
+    protected void releaseBuffers() {
+        if (receiveBuffer != null) {
+            receiveBuffer.release();
+            receiveBuffer = null;
+        }
+        releaseDecoder();
+    }
+
+    /**
+     * 内部方法
+     * 指定编解码方案
+     *
+     * @param codec
+     */
+    protected void setCodec(Codec<?> codec) {
+        this.codec = codec;
+        if (codec instanceof PackageMessageCodec) {
+            resultType = RESULT_TYPE_PACKMESSAGE;
+        } else if (codec instanceof PackageMessageForNioCodec) {
+            resultType = RESULT_TYPE_PACKMESSAGE_FOR_NIO;
+        } else {
+            resultType = RESULT_TYPE_NIO;
+        }
+    }
+
+    /**
+     * 内部方法
+     * 未指定编解码方案时，根据回调的泛型类型选择内置方案，分为返回Java Nio ByteBuffer、PackageMessage和PackageMessageForNio三种
+     * 沿父类查找onMiniTCPClientListener的泛型参数，Lambda和未声明泛型的回调无法得到类型，使用RawCodec
+     */
+    protected int getResultType(onMiniTCPClientListener<?> clientListener) {
+        Codec<?> codec = null;
+        for (Class<?> c = clientListener.getClass(); c != null && codec == null; c = c.getSuperclass()) {
+            for (Type type : c.getGenericInterfaces()) {
+                if (type instanceof ParameterizedType && ((ParameterizedType) type).getRawType() == onMiniTCPClientListener.class) {
+                    Type actualType = ((ParameterizedType) type).getActualTypeArguments()[0];
+                    if (actualType.equals(PackageMessage.class)) {
+                        codec = new PackageMessageCodec();
+                    } else if (actualType.equals(PackageMessageForNio.class)) {
+                        codec = new PackageMessageForNioCodec();
+                    } else {
+                        codec = new RawCodec();
+                    }
+                    break;
+                }
             }
         }
+        setCodec(codec == null ? new RawCodec() : codec);
         return resultType;
     }
 
@@ -0,0 +1,278 @@
+package com.itgowo.tcpclient;
+
+import com.itgowo.tcp.buffer.PooledBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author lujianchao
+ * 连接的发送队列，任意线程入队，只在事件循环线程写入Socket
+ * Socket发送缓冲区满时未写完的数据留在队列中，由OP_WRITE事件继续写入，保证数据不丢失且顺序不变
+ * 队列中的多条数据合并为一次GatheringByteChannel.write(ByteBuffer[])写入
+ * 带文件的数据先写ByteBuffer部分，再用FileChannel.transferTo把文件内容直接写入Socket，不经过用户态缓冲区
+ */
+class MiniTCPClientOutboundBuffer {
+    /**
+     * 一次合并写入的最大ByteBuffer数量，不超过系统IOV_MAX
+     */
+    private static final int MAX_GATHER_COUNT = 1024;
+    private final Queue<WriteEntry> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * 正在写入的数据，只在事件循环线程访问
+     */
+    private final ArrayDeque<WriteEntry> flushing = new ArrayDeque<>();
+    /**
+     * 合并写入用的数组，只在事件循环线程访问
+     */
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_COUNT];
+    /**
+     * 队列中未写入的字节数
+     */
+    private final AtomicLong pendingBytes = new AtomicLong();
+    /**
+     * 累计写入Socket的字节数，只在事件循环线程更新
+     */
+    private volatile long writtenBytes;
+    /**
+     * 是否已经提交了写入任务，避免每次write都向事件循环提交任务
+     */
+    final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /**
+     * 批量发送模式下是否已经安排了延迟写入
+     */
+    final AtomicBoolean lingerScheduled = new AtomicBoolean();
+    /**
+     * 是否正在写入，写入完成回调中再次write时不重入，由外层循环继续写
+     */
+    private boolean inFlush;
+
+    void add(ByteBuffer[] byteBuffers, PooledBuffer pooledBuffer, onMiniTCPClientWriteListener writeListener) {
+        add(new WriteEntry(byteBuffers, pooledBuffer, writeListener, null, 0, 0, false));
+    }
+
+    /**
+     * 加入带文件的数据，byteBuffers写完后发送文件从position开始的count个字节
+     *
+     * @param byteBuffers   一般为包头
+     * @param fileChannel
+     * @param position
+     * @param count
+     * @param closeFile     写完或者失败后是否关闭fileChannel
+     * @param writeListener
+     */
+    void add(ByteBuffer[] byteBuffers, FileChannel fileChannel, long position, long count, boolean closeFile, onMiniTCPClientWriteListener writeListener) {
+        add(new WriteEntry(byteBuffers, null, writeListener, fileChannel, position, count, closeFile));
+    }
+
+    private void add(WriteEntry entry) {
+        pendingBytes.addAndGet(entry.totalBytes);
+        queue.add(entry);
+    }
+
+    long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    long writtenBytes() {
+        return writtenBytes;
+    }
+
+    boolean isEmpty() {
+        return flushing.isEmpty() && queue.isEmpty();
+    }
+
+    boolean isInFlush() {
+        return inFlush;
+    }
+
+    /**
+     * 尽量写入队列数据，在事件循环线程调用，多条数据合并为一次写入
+     *
+     * @param socketChannel
+     * @param client
+     * @return 是否全部写完，false表示Socket发送缓冲区已满，需要等待OP_WRITE
+     * @throws IOException
+     */
+    boolean flush(SocketChannel socketChannel, MiniTCPClient client) throws IOException {
+        inFlush = true;
+        try {
+            return doFlush(socketChannel, client);
+        } finally {
+            inFlush = false;
+        }
+    }
+
+    private boolean doFlush(SocketChannel socketChannel, MiniTCPClient client) throws IOException {
+        while (true) {
+            WriteEntry entry;
+            while ((entry = queue.poll()) != null) {
+                flushing.add(entry);
+            }
+            if (flushing.isEmpty()) {
+                return true;
+            }
+            entry = flushing.peek();
+            if (entry.remaining == 0 && entry.fileRemaining > 0) {
+                long count = entry.transferFile(socketChannel);
+                pendingBytes.addAndGet(-count);
+                writtenBytes += count;
+                if (entry.fileRemaining > 0) {
+                    return false;
+                }
+                flushing.poll();
+                entry.complete(client, null);
+                continue;
+            }
+            int gatherCount = 0;
+            long gatherBytes = 0;
+            for (WriteEntry e : flushing) {
+                for (int i = e.offset; i < e.byteBuffers.length && gatherCount < MAX_GATHER_COUNT; i++) {
+                    gatherBuffers[gatherCount++] = e.byteBuffers[i];
+                    gatherBytes += e.byteBuffers[i].remaining();
+                }
+                //文件内容不能合并写入，合并到带文件数据的ByteBuffer部分为止
+                if (gatherCount == MAX_GATHER_COUNT || e.fileRemaining > 0) {
+                    break;
+                }
+            }
+            long count;
+            try {
+                count = socketChannel.write(gatherBuffers, 0, gatherCount);
+            } finally {
+                for (int i = 0; i < gatherCount; i++) {
+                    gatherBuffers[i] = null;
+                }
+            }
+            pendingBytes.addAndGet(-count);
+            writtenBytes += count;
+            long written = count;
+            while (written > 0 || (!flushing.isEmpty() && flushing.peek().remaining == 0)) {
+                entry = flushing.peek();
+                long consumed = Math.min(written, entry.remaining);
+                entry.remaining -= consumed;
+                written -= consumed;
+                while (entry.offset < entry.byteBuffers.length && !entry.byteBuffers[entry.offset].hasRemaining()) {
+                    entry.offset++;
+                }
+                if (entry.remaining > 0 || entry.fileRemaining > 0) {
+                    break;
+                }
+                flushing.poll();
+                entry.complete(client, null);
+            }
+            if (count < gatherBytes) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 连接断开，未写完的数据全部失败
+     *
+     * @param client
+     * @param e
+     */
+    void failAll(MiniTCPClient client, Exception e) {
+        WriteEntry entry;
+        while ((entry = flushing.poll()) != null) {
+            pendingBytes.addAndGet(-entry.remaining - entry.fileRemaining);
+            entry.complete(client, e);
+        }
+        while ((entry = queue.poll()) != null) {
+            pendingBytes.addAndGet(-entry.remaining - entry.fileRemaining);
+            entry.complete(client, e);
+        }
+    }
+
+    private static class WriteEntry {
+        private final ByteBuffer[] byteBuffers;
+        private final PooledBuffer pooledBuffer;
+        private final onMiniTCPClientWriteListener writeListener;
+        private final FileChannel fileChannel;
+        private final boolean closeFile;
+        private final long totalBytes;
+        /**
+         * byteBuffers未写入的字节数
+         */
+        private long remaining;
+        private int offset;
+        private long filePosition;
+        private long fileRemaining;
+
+        private WriteEntry(ByteBuffer[] byteBuffers, PooledBuffer pooledBuffer, onMiniTCPClientWriteListener writeListener,
+                           FileChannel fileChannel, long filePosition, long fileCount, boolean closeFile) {
+            this.byteBuffers = byteBuffers;
+            this.pooledBuffer = pooledBuffer;
+            this.writeListener = writeListener;
+            this.fileChannel = fileChannel;
+            this.filePosition = filePosition;
+            this.fileRemaining = fileCount;
+            this.closeFile = closeFile;
+            long total = 0;
+            for (ByteBuffer byteBuffer : byteBuffers) {
+                total += byteBuffer.remaining();
+            }
+            this.totalBytes = total + fileCount;
+            this.remaining = total;
+        }
+
+        /**
+         * 文件内容由内核直接写入Socket，Socket发送缓冲区满时返回
+         *
+         * @param socketChannel
+         * @return 本次写入的字节数
+         * @throws IOException
+         */
+        private long transferFile(SocketChannel socketChannel) throws IOException {
+            long count = 0;
+            while (fileRemaining > 0) {
+                long n = fileChannel.transferTo(filePosition, fileRemaining, socketChannel);
+                if (n <= 0) {
+                    //文件被截断时transferTo一直返回0，不能继续等待OP_WRITE，本次已写入的先返回计入统计，下次再抛出
+                    if (count == 0 && filePosition >= fileChannel.size()) {
+                        throw new EOFException("file truncated at " + filePosition);
+                    }
+                    break;
+                }
+                filePosition += n;
+                fileRemaining -= n;
+                count += n;
+            }
+            return count;
+        }
+
+        private void complete(MiniTCPClient client, Exception e) {
+            if (pooledBuffer != null) {
+                pooledBuffer.release();
+            }
+            if (fileChannel != null && closeFile) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e1) {
+                    client.clientListener.onError("close file", e1);
+                }
+            }
+            if (writeListener == null) {
+                return;
+            }
+            if (e == null) {
+                try {
+                    writeListener.onWriteCompleted(client, totalBytes);
+                } catch (Exception e1) {
+                    client.clientListener.onError("onWriteCompleted", e1);
+                }
+            } else {
+                writeListener.onWriteFailed(client, e);
+            }
+        }
+    }
+}
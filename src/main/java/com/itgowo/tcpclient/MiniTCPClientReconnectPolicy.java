@@ -0,0 +1,15 @@
+package com.itgowo.tcpclient;
+
+/**
+ * 重连策略，决定断线后第几次重连前等待多久，在事件循环线程调用
+ * 未设置时断线后立即重连一次，之后每次间隔sendHeartTimeInterval
+ */
+public interface MiniTCPClientReconnectPolicy {
+    /**
+     * 下一次重连的延迟时间
+     *
+     * @param attempt 连续重连次数，断线后第一次为0，连接成功后清零
+     * @return 延迟时间，单位毫秒，小于0表示放弃重连并停止客户端
+     */
+    long nextDelayMillis(int attempt);
+}
@@ -0,0 +1,362 @@
+package com.itgowo.tcpclient;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author lujianchao
+ * 时间轮定时器，所有MiniTCPClient共用一个线程处理心跳、空闲检测和重连延迟
+ * 时间轮有ticksPerWheel个格子，每tickMillis前进一格，任务按到期时间放入格子，超过一圈的记录剩余圈数
+ * 添加和取消都是O(1)，精度为一个tick，适合大量连接的秒级定时任务，不适合毫秒级任务
+ * 任务在定时器线程执行，需要快速返回，连接相关的操作提交到连接的事件循环执行
+ */
+public class MiniTCPClientTimer {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    private static final int STATE_INIT = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_SHUTDOWN = 2;
+    private static final AtomicInteger TIMER_INDEX = new AtomicInteger();
+    /**
+     * 默认共享定时器，守护线程，第一次添加任务时启动
+     */
+    public static final MiniTCPClientTimer DEFAULT = new MiniTCPClientTimer();
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    /**
+     * 新添加的任务，定时器线程每个tick放入时间轮
+     */
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    /**
+     * 已取消的任务，定时器线程每个tick从格子中移除
+     */
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final Thread thread;
+    /**
+     * 启动时间，任务到期时间相对于此时间
+     */
+    private volatile long startTime;
+    /**
+     * 已经处理到的tick，只在定时器线程访问
+     */
+    private long tick;
+
+    public MiniTCPClientTimer() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @param tickMillis    每格时间，单位毫秒，也是定时精度
+     * @param ticksPerWheel 时间轮格子数，向上取2的幂，tickMillis * ticksPerWheel以内的任务不需要记录圈数
+     */
+    public MiniTCPClientTimer(long tickMillis, int ticksPerWheel) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis <= 0");
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("ticksPerWheel: " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickNanos = tickMillis * 1000000L;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.thread = new Thread(new Worker(), "MiniTCPClientTimer-" + TIMER_INDEX.getAndIncrement());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 添加延迟任务，任务在定时器线程执行
+     *
+     * @param task        MiniTCPClient的任务异常时回调所属连接的onError
+     * @param delayMillis 延迟时间，单位毫秒，实际执行时间误差为一个tick
+     * @return 可用于取消任务
+     */
+    public Timeout newTimeout(Runnable task, long delayMillis) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        start();
+        long deadline = System.nanoTime() + Math.max(0, delayMillis) * 1000000L - startTime;
+        Timeout timeout = new Timeout(this, task, deadline);
+        pendingCount.incrementAndGet();
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void start() {
+        switch (state.get()) {
+            case STATE_INIT:
+                if (state.compareAndSet(STATE_INIT, STATE_STARTED)) {
+                    startTime = System.nanoTime();
+                    if (startTime == 0) {
+                        //0表示未启动
+                        startTime = 1;
+                    }
+                    thread.start();
+                }
+                while (startTime == 0) {
+                    Thread.yield();
+                }
+                break;
+            case STATE_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("timer is shutdown");
+        }
+    }
+
+    /**
+     * 停止定时器，未到期的任务不再执行，DEFAULT不能停止
+     */
+    public void shutdown() {
+        if (this == DEFAULT) {
+            throw new IllegalStateException("can not shutdown DEFAULT timer");
+        }
+        if (state.getAndSet(STATE_SHUTDOWN) == STATE_STARTED) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isShutdown() {
+        return state.get() == STATE_SHUTDOWN;
+    }
+
+    /**
+     * 等待执行的任务数量
+     *
+     * @return
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * 累计执行的任务数量
+     *
+     * @return
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    public long getTickMillis() {
+        return tickNanos / 1000000L;
+    }
+
+    public int getTicksPerWheel() {
+        return wheel.length;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MiniTCPClientTimer{");
+        sb.append("tickMillis=").append(getTickMillis());
+        sb.append(", ticksPerWheel=").append(wheel.length);
+        sb.append(", pendingCount=").append(getPendingCount());
+        sb.append(", expiredCount=").append(getExpiredCount());
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (state.get() == STATE_STARTED) {
+                if (!waitForNextTick()) {
+                    continue;
+                }
+                removeCancelled();
+                transferPending();
+                wheel[(int) (tick & mask)].expire();
+                tick++;
+            }
+        }
+
+        /**
+         * 等待到下一个tick
+         *
+         * @return 是否到达，停止时返回false
+         */
+        private boolean waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            while (true) {
+                long current = System.nanoTime() - startTime;
+                long sleepMillis = (deadline - current + 999999) / 1000000;
+                if (sleepMillis <= 0) {
+                    return true;
+                }
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if (state.get() == STATE_SHUTDOWN) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        private void removeCancelled() {
+            Timeout timeout;
+            while ((timeout = cancelledTimeouts.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+
+        /**
+         * 新任务放入时间轮，每个tick最多处理10万个，避免添加太快时定时器线程一直处理新任务
+         */
+        private void transferPending() {
+            for (int i = 0; i < 100000; i++) {
+                Timeout timeout = pendingTimeouts.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.state.get() == Timeout.ST_CANCELLED) {
+                    continue;
+                }
+                long calculated = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                //已经过期的放到当前格子，本次tick执行
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+    }
+
+    /**
+     * 时间轮格子，双向链表，只在定时器线程访问
+     */
+    private final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * 执行剩余圈数为0的任务，其他任务圈数减一
+         */
+        private void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.state.get() == Timeout.ST_CANCELLED) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    /**
+     * 延迟任务
+     */
+    public static final class Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private final MiniTCPClientTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+        /**
+         * 以下只在定时器线程访问
+         */
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout next;
+        private Bucket bucket;
+
+        private Timeout(MiniTCPClientTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消任务，已经执行的任务取消无效
+         *
+         * @return 是否取消成功
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            timer.pendingCount.decrementAndGet();
+            timer.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            timer.pendingCount.decrementAndGet();
+            timer.expiredCount.incrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable e) {
+                if (task instanceof MiniTCPClient.ClientTask) {
+                    ((MiniTCPClient.ClientTask) task).client().onTaskError(e);
+                } else {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
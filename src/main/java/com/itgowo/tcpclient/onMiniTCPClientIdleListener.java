@@ -0,0 +1,15 @@
+package com.itgowo.tcpclient;
+
+/**
+ * 空闲回调，在事件循环线程执行
+ */
+public interface onMiniTCPClientIdleListener {
+    /**
+     * 连接空闲，IDLE_TYPE_READER和IDLE_TYPE_ALL回调后立即关闭连接，开启自动重连时重连
+     *
+     * @param tcpClient
+     * @param idleType  MiniTCPClient.IDLE_TYPE_READER、IDLE_TYPE_WRITER、IDLE_TYPE_ALL
+     * @throws Exception
+     */
+    void onIdle(MiniTCPClient tcpClient, int idleType) throws Exception;
+}
@@ -7,6 +7,13 @@ public interface onMiniTCPClientListener<ResultType> {
 
     void onOffline(MiniTCPClient tcpClient) throws Exception;
 
+    /**
+     * 收到数据，ResultType为Java Nio ByteBuffer时是连接复用的接收缓冲区，只在回调内有效，需要保留请复制
+     *
+     * @param tcpClient
+     * @param resultType
+     * @throws Exception
+     */
     void onReadable(MiniTCPClient tcpClient, ResultType resultType) throws Exception;
 
     void onWritable(MiniTCPClient tcpClient) throws Exception;
@@ -0,0 +1,23 @@
+package com.itgowo.tcpclient;
+
+/**
+ * 写入结果回调，在事件循环线程执行
+ */
+public interface onMiniTCPClientWriteListener {
+    /**
+     * 数据已全部写入Socket
+     *
+     * @param tcpClient
+     * @param writtenBytes 本次写入的字节数
+     * @throws Exception
+     */
+    void onWriteCompleted(MiniTCPClient tcpClient, long writtenBytes) throws Exception;
+
+    /**
+     * 写入失败，连接断开时未写完的数据全部失败
+     *
+     * @param tcpClient
+     * @param e
+     */
+    void onWriteFailed(MiniTCPClient tcpClient, Exception e);
+}
@@ -0,0 +1,81 @@
+package com.itgowo.tcp.buffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lujianchao
+ * 自适应读取大小测试
+ */
+public class AdaptiveReceiveSizeTest {
+
+    /**
+     * 读满时翻倍，不超过maxSize
+     */
+    @Test
+    public void testGrow() {
+        AdaptiveReceiveSize receiveSize = new AdaptiveReceiveSize(64, 1024, 5000);
+        assertEquals(1024, receiveSize.size());
+        receiveSize.record(1024);
+        assertEquals(2048, receiveSize.size());
+        receiveSize.record(3000);
+        assertEquals(4096, receiveSize.size());
+        receiveSize.record(4096);
+        assertEquals(5000, receiveSize.size());
+        receiveSize.record(5000);
+        assertEquals(5000, receiveSize.size());
+        assertEquals(3, receiveSize.getGrowCount());
+    }
+
+    /**
+     * 连续两次不超过一半才减半，中间有一次读取较多时重新计数，不小于minSize
+     */
+    @Test
+    public void testShrink() {
+        AdaptiveReceiveSize receiveSize = new AdaptiveReceiveSize(100, 1024, 4096);
+        receiveSize.record(10);
+        assertEquals(1024, receiveSize.size());
+        receiveSize.record(600);
+        receiveSize.record(10);
+        assertEquals(1024, receiveSize.size());
+        receiveSize.record(512);
+        assertEquals(512, receiveSize.size());
+        for (int i = 0; i < 10; i++) {
+            receiveSize.record(1);
+        }
+        assertEquals(100, receiveSize.size());
+        assertEquals(4, receiveSize.getShrinkCount());
+        receiveSize.record(100);
+        assertEquals(200, receiveSize.size());
+        receiveSize.reset();
+        assertEquals(1024, receiveSize.size());
+    }
+
+    /**
+     * 初始大小超出范围时取边界值，minSize与maxSize相同时不调整
+     */
+    @Test
+    public void testBounds() {
+        assertEquals(4096, new AdaptiveReceiveSize(64, 100000, 4096).size());
+        assertEquals(64, new AdaptiveReceiveSize(64, 1, 4096).size());
+        AdaptiveReceiveSize fixed = new AdaptiveReceiveSize(2048, 2048, 2048);
+        fixed.record(2048);
+        fixed.record(0);
+        fixed.record(0);
+        assertEquals(2048, fixed.size());
+        assertEquals(0, fixed.getGrowCount());
+        assertEquals(0, fixed.getShrinkCount());
+        try {
+            new AdaptiveReceiveSize(0, 1024, 4096);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new AdaptiveReceiveSize(4096, 1024, 1024);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
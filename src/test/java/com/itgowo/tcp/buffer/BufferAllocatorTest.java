@@ -0,0 +1,157 @@
+package com.itgowo.tcp.buffer;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lujianchao
+ * 池化分配器引用计数和复用测试
+ */
+public class BufferAllocatorTest {
+
+    /**
+     * 按大小等级分配，limit为申请容量
+     */
+    @Test
+    public void testSizeClass() {
+        BufferAllocator allocator = new BufferAllocator(false, 1024, 4, 4);
+        PooledBuffer heap = allocator.buffer(100);
+        assertTrue(heap.hasArray());
+        assertEquals(128, heap.capacity());
+        assertEquals(100, heap.buffer().limit());
+        assertEquals(0, heap.buffer().position());
+        PooledBuffer small = allocator.heapBuffer(0);
+        assertEquals(64, small.capacity());
+        PooledBuffer direct = allocator.directBuffer(64);
+        assertTrue(direct.isDirect());
+        assertEquals(64, direct.capacity());
+        assertEquals(2, allocator.getHeapArena().getActiveCount());
+        assertEquals(128 + 64, allocator.getHeapArena().getActiveBytes());
+        assertEquals(1, allocator.getDirectArena().getActiveCount());
+        heap.release();
+        small.release();
+        direct.release();
+        assertEquals(0, allocator.getActiveCount());
+        assertEquals(0, allocator.getActiveBytes());
+        try {
+            allocator.buffer(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * 引用计数归零才归还，多次释放抛出异常
+     */
+    @Test
+    public void testRefCnt() {
+        BufferAllocator allocator = new BufferAllocator(false, 1024, 4, 4);
+        PooledBuffer buffer = allocator.buffer(10);
+        assertEquals(1, buffer.refCnt());
+        assertSame(buffer, buffer.retain());
+        assertEquals(2, buffer.refCnt());
+        assertFalse(buffer.release());
+        assertEquals(1, allocator.getActiveCount());
+        assertTrue(buffer.release());
+        assertEquals(0, buffer.refCnt());
+        assertEquals(0, allocator.getActiveCount());
+        try {
+            buffer.release();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(0, buffer.refCnt());
+        assertEquals(1, allocator.getHeapArena().getReleaseCount());
+        try {
+            buffer.retain();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    /**
+     * 归还后同线程再次分配命中线程缓存，状态被重置
+     */
+    @Test
+    public void testThreadCacheReuse() {
+        BufferAllocator allocator = new BufferAllocator(false, 1024, 4, 4);
+        PooledBuffer buffer = allocator.buffer(100);
+        buffer.buffer().put((byte) 1).put((byte) 2);
+        buffer.release();
+        PooledBuffer reused = allocator.buffer(80);
+        assertSame(buffer, reused);
+        assertEquals(1, reused.refCnt());
+        assertEquals(0, reused.buffer().position());
+        assertEquals(80, reused.buffer().limit());
+        PoolArena arena = allocator.getHeapArena();
+        assertEquals(1, arena.getNewAllocationCount());
+        assertEquals(1, arena.getThreadCacheHitCount());
+        assertEquals(0, arena.getSharedPoolHitCount());
+        reused.release();
+    }
+
+    /**
+     * 线程缓存已满时归还到共享池，其他线程可以取到，共享池超过上限的丢弃
+     */
+    @Test
+    public void testSharedPool() throws Exception {
+        final BufferAllocator allocator = new BufferAllocator(false, 1024, 0, 2);
+        PooledBuffer[] buffers = new PooledBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = allocator.buffer(64);
+        }
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i].release();
+        }
+        final AtomicReference<PooledBuffer> result = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(allocator.buffer(64));
+            }
+        });
+        thread.start();
+        thread.join();
+        PoolArena arena = allocator.getHeapArena();
+        assertSame(buffers[0], result.get());
+        assertEquals(1, arena.getSharedPoolHitCount());
+        assertEquals(0, arena.getThreadCacheHitCount());
+        result.get().release();
+        allocator.buffer(64).release();
+        allocator.buffer(64).release();
+        assertEquals(3, arena.getNewAllocationCount());
+        allocator.buffer(64);
+        allocator.buffer(64);
+        allocator.buffer(64);
+        assertEquals(4, arena.getNewAllocationCount());
+    }
+
+    /**
+     * 超过池化上限的直接分配，归还后不复用
+     */
+    @Test
+    public void testUnpooled() {
+        BufferAllocator allocator = new BufferAllocator(true, 1024, 4, 4);
+        PooledBuffer buffer = allocator.buffer(1025);
+        assertTrue(buffer.isDirect());
+        assertEquals(1025, buffer.capacity());
+        assertEquals(1025, allocator.getActiveBytes());
+        assertTrue(buffer.release());
+        assertEquals(0, allocator.getActiveBytes());
+        PooledBuffer other = allocator.buffer(1025);
+        assertNotSame(buffer, other);
+        PoolArena arena = allocator.getDirectArena();
+        assertEquals(2, arena.getUnpooledAllocationCount());
+        assertEquals(0, arena.getNewAllocationCount());
+        assertEquals(0, arena.getThreadCacheHitCount());
+        other.release();
+    }
+}
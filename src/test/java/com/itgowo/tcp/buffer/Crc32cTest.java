@@ -0,0 +1,56 @@
+package com.itgowo.tcp.buffer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author lujianchao
+ * CRC32C查表实现和JDK实现结果一致
+ */
+public class Crc32cTest {
+
+    /**
+     * 标准测试向量
+     */
+    @Test
+    public void testCheckValue() {
+        byte[] bytes = "123456789".getBytes();
+        assertEquals(0xE3069283, Crc32c.compute(bytes, 0, bytes.length));
+        Crc32c crc32c = new Crc32c();
+        crc32c.update(bytes, 0, bytes.length);
+        assertEquals(0xE3069283L, crc32c.getValue());
+        Checksum checksum = Crc32c.newChecksum();
+        checksum.update(bytes, 0, bytes.length);
+        assertEquals(0xE3069283L, checksum.getValue());
+    }
+
+    /**
+     * 各种长度和偏移的查表实现、堆外缓冲区与JDK实现结果一致
+     */
+    @Test
+    public void testSameAsJdk() {
+        byte[] bytes = new byte[10000];
+        new Random(4).nextBytes(bytes);
+        Random random = new Random(5);
+        for (int i = 0; i < 200; i++) {
+            int off = random.nextInt(100);
+            int len = random.nextInt(bytes.length - off);
+            Crc32c crc32c = new Crc32c();
+            crc32c.update(bytes, off, len);
+            Checksum checksum = Crc32c.newChecksum();
+            for (int j = off; j < off + len; j++) {
+                checksum.update(bytes[j]);
+            }
+            assertEquals(checksum.getValue(), crc32c.getValue());
+            ByteBuffer direct = ByteBuffer.allocateDirect(len);
+            direct.put(bytes, off, len).flip();
+            assertEquals((int) crc32c.getValue(), Crc32c.compute(direct));
+            assertEquals(0, direct.position());
+        }
+    }
+}
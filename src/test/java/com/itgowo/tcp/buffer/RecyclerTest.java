@@ -0,0 +1,70 @@
+package com.itgowo.tcp.buffer;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author lujianchao
+ * 线程本地对象池测试
+ */
+public class RecyclerTest {
+
+    /**
+     * 归还的对象被同线程复用，超过上限的不放入池中
+     */
+    @Test
+    public void testRecycle() {
+        Recycler<Object> recycler = newRecycler(2);
+        Object a = recycler.get();
+        Object b = recycler.get();
+        Object c = recycler.get();
+        assertEquals(3, recycler.getNewObjectCount());
+        assertTrue(recycler.recycle(a));
+        assertTrue(recycler.recycle(b));
+        assertFalse(recycler.recycle(c));
+        assertSame(b, recycler.get());
+        assertSame(a, recycler.get());
+        assertNotSame(c, recycler.get());
+        assertEquals(4, recycler.getNewObjectCount());
+    }
+
+    /**
+     * 对象归还到调用recycle()的线程，其他线程取不到
+     */
+    @Test
+    public void testThreadLocal() throws Exception {
+        final Recycler<Object> recycler = newRecycler(4);
+        final Object a = recycler.get();
+        recycler.recycle(a);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(recycler.get());
+                recycler.recycle(result.get());
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotSame(a, result.get());
+        assertSame(a, recycler.get());
+        assertEquals(2, recycler.getNewObjectCount());
+        assertNotSame(result.get(), recycler.get());
+    }
+
+    private static Recycler<Object> newRecycler(int maxCapacity) {
+        return new Recycler<Object>(maxCapacity) {
+            @Override
+            protected Object newObject() {
+                return new Object();
+            }
+        };
+    }
+}
@@ -0,0 +1,60 @@
+package com.itgowo.tcp.codec;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author lujianchao
+ * FrameCompressor压缩解压测试
+ */
+public class FrameCompressorTest {
+
+    /**
+     * 超过共用缓冲区上限的大数据和之后的小数据都能正确压缩解压
+     */
+    @Test
+    public void testLargeThenSmall() throws Exception {
+        FrameCompressor compressor = new FrameCompressor();
+        Inflater inflater = compressor.newInflater();
+        try {
+            byte[] large = text(1024 * 1024);
+            byte[] small = text(100);
+            for (byte[] bytes : new byte[][]{small, large, small, large}) {
+                byte[] compressed = compressor.compress(bytes, 0, bytes.length);
+                assertTrue(compressed.length < bytes.length);
+                assertArrayEquals(bytes, compressor.decompress(inflater, compressed, 0, compressed.length));
+            }
+            assertEquals(4, compressor.getCompressedCount());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 压缩后不比原数据小时返回null
+     */
+    @Test
+    public void testUncompressible() {
+        FrameCompressor compressor = new FrameCompressor();
+        byte[] bytes = new byte[200 * 1024];
+        new Random(3).nextBytes(bytes);
+        assertNull(compressor.compress(bytes, 0, bytes.length));
+        assertEquals(1, compressor.getUncompressibleCount());
+    }
+
+    private static byte[] text(int length) {
+        byte[] bytes = new byte[length];
+        Random random = new Random(length);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,189 @@
+package com.itgowo.tcp.codec;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lujianchao
+ * LengthFieldCodec按字节解码测试
+ */
+public class LengthFieldCodecTest {
+
+    /**
+     * 2 byte长度，长度不含包头，去掉包头
+     */
+    @Test
+    public void testShortLengthStripped() throws Exception {
+        LengthFieldCodec codec = new LengthFieldCodec(0, 2, 0, 2);
+        byte[] bytes = {0, 3, 'a', 'b', 'c', 0, 0, 0, 2, 'd', 'e'};
+        assertEquals(list("abc", "", "de"), decode(codec, bytes, bytes.length));
+        assertEquals(list("abc", "", "de"), decode(codec, bytes, 1));
+    }
+
+    /**
+     * 4 byte小端长度，长度包含包头，保留包头
+     */
+    @Test
+    public void testLengthIncludesHead() throws Exception {
+        LengthFieldCodec codec = new LengthFieldCodec(0, 4, -4, 0).setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        byte[] bytes = {6, 0, 0, 0, 'a', 'b', 5, 0, 0, 0, 'c'};
+        assertEquals(list("\6\0\0\0ab", "\5\0\0\0c"), decode(codec, bytes, 3));
+    }
+
+    /**
+     * 1 byte类型 + varint长度
+     */
+    @Test
+    public void testVarintAfterType() throws Exception {
+        LengthFieldCodec codec = new LengthFieldCodec(1, LengthFieldCodec.LENGTH_FIELD_VARINT, 0, 3);
+        byte[] data = new byte[200];
+        byte[] bytes = new byte[3 + data.length];
+        bytes[0] = 9;
+        bytes[1] = (byte) (200 & 0x7F | 0x80);
+        bytes[2] = 1;
+        List<String> frames = decode(codec, bytes, 2);
+        assertEquals(1, frames.size());
+        assertEquals(new String(data), frames.get(0));
+    }
+
+    /**
+     * 编码结果可以被同样配置的解码器解码
+     */
+    @Test
+    public void testEncode() throws Exception {
+        LengthFieldCodec codec = new LengthFieldCodec(0, 3, 0, 3);
+        PooledBuffer pooledBuffer = codec.getEncoder().encode(ByteBuffer.wrap("hello".getBytes()), BufferAllocator.DEFAULT);
+        byte[] bytes = new byte[pooledBuffer.buffer().remaining()];
+        pooledBuffer.buffer().get(bytes);
+        pooledBuffer.release();
+        assertArrayEquals(new byte[]{0, 0, 5, 'h', 'e', 'l', 'l', 'o'}, bytes);
+        assertEquals(list("hello"), decode(codec, bytes, 4));
+    }
+
+    /**
+     * 超过maxFrameLength时抛出IOException，丢弃已接收数据，之后的数据重新开始解码
+     */
+    @Test
+    public void testMaxFrameLength() throws Exception {
+        LengthFieldCodec codec = new LengthFieldCodec(0, 2, 0, 2).setMaxFrameLength(16);
+        FrameDecoder<ByteBuffer> decoder = codec.newDecoder();
+        List<String> frames = new ArrayList<>();
+        try {
+            decoder.decode(ByteBuffer.wrap(new byte[]{0, 100, 1, 2, 3}), handler(frames));
+            fail("invalid frame length");
+        } catch (IOException e) {
+            //包长度超过上限
+        }
+        decoder.decode(ByteBuffer.wrap(new byte[]{0, 1, 'a'}), handler(frames));
+        assertEquals(list("a"), frames);
+        try {
+            codec.setMaxFrameLength(0);
+            fail("maxFrameLength <= 0");
+        } catch (IllegalArgumentException e) {
+            assertEquals(16, codec.getMaxFrameLength());
+        }
+    }
+
+    /**
+     * varint第5字节超过低4位时超过32位，不能截断成较小的长度
+     */
+    @Test
+    public void testVarintOverflow() throws Exception {
+        LengthFieldCodec codec = new LengthFieldCodec(0, LengthFieldCodec.LENGTH_FIELD_VARINT, 0, 5);
+        byte[] bytes = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0, (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 'a'};
+        FrameDecoder<ByteBuffer> decoder = codec.newDecoder();
+        List<String> frames = new ArrayList<>();
+        try {
+            decoder.decode(ByteBuffer.wrap(bytes), handler(frames));
+            fail("varint overflow");
+        } catch (IOException e) {
+            assertEquals("varint length field too long", e.getMessage());
+        }
+        assertEquals(list(""), frames);
+        try {
+            decoder.decode(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}), handler(frames));
+            fail("invalid frame length");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("invalid frame length: 4294967300"));
+        }
+    }
+
+    /**
+     * 回调异常时后面已到达的包仍然交给回调，最后抛出第一个异常
+     */
+    @Test
+    public void testFrameHandlerError() throws Exception {
+        LengthFieldCodec codec = new LengthFieldCodec(0, 1, 0, 1);
+        final List<String> frames = new ArrayList<>();
+        try {
+            codec.newDecoder().decode(ByteBuffer.wrap(new byte[]{1, 'a', 1, 'b'}), new FrameHandler<ByteBuffer>() {
+                @Override
+                public void onFrame(ByteBuffer message) throws Exception {
+                    frames.add(string(message));
+                    if (frames.size() == 1) {
+                        throw new IllegalStateException("first");
+                    }
+                }
+            });
+            fail("onFrame error");
+        } catch (IllegalStateException e) {
+            assertEquals("first", e.getMessage());
+        }
+        assertEquals(list("a", "b"), frames);
+    }
+
+    /**
+     * 按step字节拆分输入解码
+     *
+     * @param codec
+     * @param bytes
+     * @param step
+     * @return
+     * @throws Exception
+     */
+    private static List<String> decode(LengthFieldCodec codec, byte[] bytes, int step) throws Exception {
+        FrameDecoder<ByteBuffer> decoder = codec.newDecoder();
+        decoder.setBufferAllocator(BufferAllocator.DEFAULT);
+        List<String> frames = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i += step) {
+            decoder.decode(ByteBuffer.wrap(bytes, i, Math.min(step, bytes.length - i)), handler(frames));
+        }
+        decoder.releaseDecoder();
+        return frames;
+    }
+
+    private static FrameHandler<ByteBuffer> handler(final List<String> frames) {
+        return new FrameHandler<ByteBuffer>() {
+            @Override
+            public void onFrame(ByteBuffer message) {
+                frames.add(string(message));
+            }
+        };
+    }
+
+    private static String string(ByteBuffer byteBuffer) {
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.duplicate().get(bytes);
+        return new String(bytes);
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,90 @@
+package com.itgowo.tcp.codec;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+import com.itgowo.tcp.me.PackageMessage;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author lujianchao
+ * PackageMessageCodec编解码测试
+ */
+public class PackageMessageCodecTest {
+
+    /**
+     * 多个线程同时用不同signMode编码同一个消息，结果一致，消息的长度和data的readerIndex不变
+     */
+    @Test
+    public void testConcurrentEncode() throws Exception {
+        final PackageMessage message = PackageMessage.getPackageMessage().setType(PackageMessage.TYPE_COMPACT)
+                .setCompactSign(true).setDataType(4).setData("shared compact message".getBytes());
+        final int length = message.getLength();
+        final PackageMessageCodec[] codecs = {
+                new PackageMessageCodec().setSignMode(PackageMessage.SIGN_MODE_NONE),
+                new PackageMessageCodec().setSignMode(PackageMessage.SIGN_MODE_CRC32C)};
+        final ByteBuffer[] expected = {encode(codecs[0], message), encode(codecs[1], message)};
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i % codecs.length;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 2000; j++) {
+                            assertEquals(expected[index], encode(codecs[index], message));
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+        assertEquals(length, message.getLength());
+        assertEquals(0, message.getData().readerIndex());
+        assertEquals(PackageMessage.SIGN_MODE_LEGACY, message.getSignMode());
+        assertEquals(list("shared compact message"), decode(codecs[1], expected[1]));
+    }
+
+    private static ByteBuffer encode(PackageMessageCodec codec, PackageMessage message) throws Exception {
+        PooledBuffer pooledBuffer = codec.getEncoder().encode(message, BufferAllocator.DEFAULT);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(pooledBuffer.buffer().remaining());
+        byteBuffer.put(pooledBuffer.buffer()).flip();
+        pooledBuffer.release();
+        return byteBuffer;
+    }
+
+    private static List<String> decode(PackageMessageCodec codec, ByteBuffer byteBuffer) throws Exception {
+        final List<String> frames = new ArrayList<>();
+        FrameDecoder<PackageMessage> decoder = codec.newDecoder();
+        decoder.decode(byteBuffer, new FrameHandler<PackageMessage>() {
+            @Override
+            public void onFrame(PackageMessage message) {
+                frames.add(new String(message.getData().readableBytesArray()));
+            }
+        });
+        decoder.releaseDecoder();
+        return frames;
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,156 @@
+package com.itgowo.tcp.codec;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+import com.itgowo.tcp.nio.PackageMessageForNio;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lujianchao
+ * PackageMessageForNioCodec编解码测试
+ */
+public class PackageMessageForNioCodecTest {
+
+    /**
+     * 按编解码方案的signMode编码，不修改调用方的消息
+     */
+    @Test
+    public void testEncodeSignMode() throws Exception {
+        PackageMessageForNioCodec codec = new PackageMessageForNioCodec().setSignMode(PackageMessageForNio.SIGN_MODE_CRC32C);
+        PackageMessageForNio message = PackageMessageForNio.getPackageMessage().setDataType(4).setData("shared message".getBytes());
+        int dataSign = message.getDataSign();
+        ByteBuffer bytes = encode(codec, message);
+        assertEquals(PackageMessageForNio.SIGN_MODE_LEGACY, message.getSignMode());
+        assertEquals(dataSign, message.getDataSign());
+        assertEquals(list("shared message"), decode(codec, bytes));
+        assertEquals(0, codec.getSignErrorCount());
+    }
+
+    /**
+     * 压缩后的包解码时还原
+     */
+    @Test
+    public void testCompress() throws Exception {
+        PackageMessageForNioCodec codec = new PackageMessageForNioCodec().setCompressor(new FrameCompressor());
+        String text = new String(new byte[1000]).replace('\0', 'a');
+        ByteBuffer bytes = encode(codec, PackageMessageForNio.getPackageMessage().setDataType(PackageMessageForNio.DATA_TYPE_TEXT).setData(text.getBytes()));
+        assertTrue(bytes.remaining() < text.length());
+        assertEquals(list(text), decode(codec, bytes));
+    }
+
+    /**
+     * 回调异常时后面的包仍然交给回调，最后抛出第一个异常
+     */
+    @Test
+    public void testFrameHandlerError() throws Exception {
+        PackageMessageForNioCodec codec = new PackageMessageForNioCodec().setRecycle(true);
+        ByteBuffer first = encode(codec, PackageMessageForNio.getPackageMessage().setDataType(4).setData("a".getBytes()));
+        ByteBuffer second = encode(codec, PackageMessageForNio.getPackageMessage().setDataType(4).setData("b".getBytes()));
+        ByteBuffer bytes = ByteBuffer.allocate(first.remaining() + second.remaining());
+        bytes.put(first).put(second).flip();
+        final List<String> frames = new ArrayList<>();
+        FrameDecoder<PackageMessageForNio> decoder = codec.newDecoder();
+        try {
+            decoder.decode(bytes, new FrameHandler<PackageMessageForNio>() {
+                @Override
+                public void onFrame(PackageMessageForNio message) {
+                    frames.add(string(message));
+                    if (frames.size() == 1) {
+                        throw new IllegalStateException("first");
+                    }
+                }
+            });
+            fail("onFrame error");
+        } catch (IllegalStateException e) {
+            assertEquals("first", e.getMessage());
+        }
+        decoder.releaseDecoder();
+        assertEquals(list("a", "b"), frames);
+    }
+
+    /**
+     * 多个线程同时用不同signMode编码同一个消息，结果一致，消息的长度和data的position不变
+     */
+    @Test
+    public void testConcurrentEncode() throws Exception {
+        final PackageMessageForNio message = PackageMessageForNio.getPackageMessage().setType(PackageMessageForNio.TYPE_COMPACT)
+                .setCompactSign(true).setDataType(4).setData("shared compact message".getBytes());
+        final int length = message.getLength();
+        final PackageMessageForNioCodec[] codecs = {
+                new PackageMessageForNioCodec().setSignMode(PackageMessageForNio.SIGN_MODE_NONE),
+                new PackageMessageForNioCodec().setSignMode(PackageMessageForNio.SIGN_MODE_CRC32C)};
+        final ByteBuffer[] expected = {encode(codecs[0], message), encode(codecs[1], message)};
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i % codecs.length;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 2000; j++) {
+                            assertEquals(expected[index], encode(codecs[index], message));
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+        assertEquals(length, message.getLength());
+        assertEquals(0, message.getData().position());
+        assertEquals(list("shared compact message"), decode(codecs[1], expected[1]));
+    }
+
+    private static ByteBuffer encode(PackageMessageForNioCodec codec, PackageMessageForNio message) throws Exception {
+        PooledBuffer pooledBuffer = codec.getEncoder().encode(message, BufferAllocator.DEFAULT);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(pooledBuffer.buffer().remaining());
+        byteBuffer.put(pooledBuffer.buffer()).flip();
+        pooledBuffer.release();
+        return byteBuffer;
+    }
+
+    private static List<String> decode(PackageMessageForNioCodec codec, ByteBuffer byteBuffer) throws Exception {
+        final List<String> frames = new ArrayList<>();
+        FrameDecoder<PackageMessageForNio> decoder = codec.newDecoder();
+        decoder.decode(byteBuffer, new FrameHandler<PackageMessageForNio>() {
+            @Override
+            public void onFrame(PackageMessageForNio message) {
+                frames.add(string(message));
+            }
+        });
+        decoder.releaseDecoder();
+        return frames;
+    }
+
+    private static String string(PackageMessageForNio message) {
+        ByteBuffer data = message.getData().duplicate();
+        data.position(0);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new String(bytes);
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
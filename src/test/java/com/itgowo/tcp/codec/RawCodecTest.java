@@ -0,0 +1,35 @@
+package com.itgowo.tcp.codec;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author lujianchao
+ * RawCodec编码测试
+ */
+public class RawCodecTest {
+
+    /**
+     * 编码复制剩余数据，不移动调用方ByteBuffer的position，同一个消息可以重复发送
+     */
+    @Test
+    public void testEncodeKeepsPosition() throws Exception {
+        RawCodec codec = new RawCodec();
+        ByteBuffer message = ByteBuffer.wrap("xabc".getBytes());
+        message.position(1);
+        for (int i = 0; i < 2; i++) {
+            PooledBuffer pooledBuffer = codec.getEncoder().encode(message, BufferAllocator.DEFAULT);
+            ByteBuffer byteBuffer = pooledBuffer.buffer();
+            byte[] bytes = new byte[byteBuffer.remaining()];
+            byteBuffer.get(bytes);
+            pooledBuffer.release();
+            assertEquals("abc", new String(bytes));
+            assertEquals(1, message.position());
+        }
+    }
+}
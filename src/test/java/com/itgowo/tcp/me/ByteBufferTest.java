@@ -0,0 +1,191 @@
+package com.itgowo.tcp.me;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lujianchao
+ * me.ByteBuffer扩容、缩容和基本类型读写测试
+ */
+public class ByteBufferTest {
+
+    /**
+     * 小于阈值时翻倍扩容，超过阈值按阈值递增，数据不变
+     */
+    @Test
+    public void testGrowth() throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.newByteBuffer(16).setGrowthThreshold(1024);
+        byte[] bytes = data(2000);
+        byteBuffer.writeBytes(bytes, 0, 17);
+        assertEquals(256, byteBuffer.capacity());
+        byteBuffer.writeBytes(bytes, 17, 283);
+        assertEquals(512, byteBuffer.capacity());
+        byteBuffer.writeBytes(bytes, 300, 700);
+        assertEquals(1024, byteBuffer.capacity());
+        byteBuffer.writeBytes(bytes, 1000, 1000);
+        assertEquals(2048, byteBuffer.capacity());
+        byteBuffer.writeBytes(new byte[100]);
+        assertEquals(3072, byteBuffer.capacity());
+        assertEquals(2100, byteBuffer.writerIndex());
+        byte[] result = new byte[2000];
+        byteBuffer.readBytes(result);
+        assertArrayEquals(bytes, result);
+        try {
+            byteBuffer.setGrowthThreshold(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * 删除已读部分时在原数组内移动
+     */
+    @Test
+    public void testDiscardReadBytes() throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.newByteBuffer();
+        byteBuffer.writeBytes(new byte[]{1, 2, 3, 4, 5});
+        byteBuffer.readByte();
+        byteBuffer.readByte();
+        byte[] array = byteBuffer.array();
+        byteBuffer.discardReadBytes();
+        assertSame(array, byteBuffer.array());
+        assertEquals(0, byteBuffer.readerIndex());
+        assertEquals(3, byteBuffer.writerIndex());
+        assertArrayEquals(new byte[]{3, 4, 5}, byteBuffer.readableBytesArray());
+    }
+
+    /**
+     * 未读数据不到1/4时容量减半，不小于初始容量
+     */
+    @Test
+    public void testShrink() throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.newByteBuffer(256);
+        byteBuffer.writeBytes(new byte[4000]);
+        assertEquals(4096, byteBuffer.capacity());
+        byteBuffer.readBytes(new byte[2000]);
+        assertFalse(byteBuffer.shrink());
+        byteBuffer.readBytes(new byte[1990]);
+        byteBuffer.writeBytes(new byte[]{7, 8});
+        assertTrue(byteBuffer.shrink());
+        assertEquals(2048, byteBuffer.capacity());
+        assertEquals(0, byteBuffer.readerIndex());
+        assertEquals(12, byteBuffer.readableBytes());
+        while (byteBuffer.shrink()) {
+        }
+        assertEquals(256, byteBuffer.capacity());
+        byteBuffer.readBytes(new byte[10]);
+        assertArrayEquals(new byte[]{7, 8}, byteBuffer.readableBytesArray());
+    }
+
+    /**
+     * 池化数组扩容和缩容时归还旧数组
+     */
+    @Test
+    public void testPooled() throws Exception {
+        BufferAllocator allocator = new BufferAllocator(false, 64 * 1024, 4, 4);
+        ByteBuffer byteBuffer = ByteBuffer.newByteBuffer(allocator, 256);
+        assertTrue(byteBuffer.isPooled());
+        byteBuffer.writeBytes(data(5000));
+        assertEquals(8192, byteBuffer.capacity());
+        assertEquals(1, allocator.getActiveCount());
+        byteBuffer.readBytes(new byte[5000]);
+        while (byteBuffer.shrink()) {
+        }
+        assertEquals(256, byteBuffer.capacity());
+        assertEquals(1, allocator.getActiveCount());
+        byteBuffer.release();
+        assertFalse(byteBuffer.isPooled());
+        assertEquals(0, allocator.getActiveCount());
+    }
+
+    /**
+     * 默认大端，与java.nio.ByteBuffer结果一致
+     */
+    @Test
+    public void testBigEndian() throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.newByteBuffer(4);
+        assertEquals(ByteOrder.BIG_ENDIAN, byteBuffer.order());
+        byteBuffer.writeShort(0x8182).writeInt(0x01020304).writeLong(0x1112131415161718L).writeByte((byte) -1);
+        java.nio.ByteBuffer expected = java.nio.ByteBuffer.allocate(15);
+        expected.putShort((short) 0x8182).putInt(0x01020304).putLong(0x1112131415161718L).put((byte) -1);
+        assertArrayEquals(expected.array(), byteBuffer.readableBytesArray());
+        assertEquals((short) 0x8182, byteBuffer.readShort());
+        assertEquals(0x01020304, byteBuffer.readInt());
+        assertEquals(0x1112131415161718L, byteBuffer.readLong());
+        assertEquals(-1, byteBuffer.readByte());
+        assertEquals(0, byteBuffer.readableBytes());
+    }
+
+    /**
+     * 小端读写，绝对位置读写不移动指针
+     */
+    @Test
+    public void testLittleEndian() throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.newByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.writeInt(0).writeShort(0x0102).writeLong(-2L);
+        java.nio.ByteBuffer expected = java.nio.ByteBuffer.allocate(14).order(ByteOrder.LITTLE_ENDIAN);
+        expected.putInt(0).putShort((short) 0x0102).putLong(-2L);
+        assertArrayEquals(expected.array(), byteBuffer.readableBytesArray());
+        byteBuffer.setInt(0, 0xA1B2C3D4);
+        assertEquals(0xD4, byteBuffer.getByte(0) & 0xFF);
+        assertEquals(0xA1B2C3D4, byteBuffer.getInt(0));
+        assertEquals((short) 0x0102, byteBuffer.getShort(4));
+        assertEquals(-2L, byteBuffer.getLong(6));
+        byteBuffer.setShort(4, 0xFFFE).setLong(6, Long.MIN_VALUE).setByte(13, 1);
+        assertEquals(0, byteBuffer.readerIndex());
+        assertEquals(14, byteBuffer.writerIndex());
+        assertEquals(0xA1B2C3D4, byteBuffer.readInt());
+        assertEquals((short) 0xFFFE, byteBuffer.readShort());
+        assertEquals(1L << 56, byteBuffer.readLong());
+        byteBuffer.order(ByteOrder.BIG_ENDIAN);
+        assertEquals((short) 0xFEFF, byteBuffer.getShort(4));
+    }
+
+    /**
+     * 越界读写抛出ByteBufferException
+     */
+    @Test
+    public void testOutOfBounds() throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.newByteBuffer();
+        byteBuffer.writeShort(1).writeByte((byte) 2);
+        try {
+            byteBuffer.getInt(0);
+            fail();
+        } catch (ByteBuffer.ByteBufferException e) {
+        }
+        try {
+            byteBuffer.setShort(2, 1);
+            fail();
+        } catch (ByteBuffer.ByteBufferException e) {
+        }
+        try {
+            byteBuffer.getByte(-1);
+            fail();
+        } catch (ByteBuffer.ByteBufferException e) {
+        }
+        byteBuffer.readShort();
+        try {
+            byteBuffer.readShort();
+            fail();
+        } catch (ByteBuffer.ByteBufferException e) {
+        }
+        assertEquals(2, byteBuffer.readerIndex());
+    }
+
+    private static byte[] data(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + i / 251);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,189 @@
+package com.itgowo.tcp.me;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author lujianchao
+ * PackageMessage按字节解码测试
+ */
+public class PackageMessageDecodeTest {
+
+    /**
+     * 每次只输入1 byte，各种包都能完整解码
+     */
+    @Test
+    public void testSplitEveryByte() {
+        byte[] bytes = join(frame(4, "first"), PackageMessage.getHeartPackageMessage().encodePackageMessage().readableBytesArray(),
+                compactFrame(5, "compact", true), frame(4, "last"));
+        PackageMessage decoder = PackageMessage.getPackageMessage();
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            for (PackageMessage packageMessage : decoder.packageMessage(wrap(new byte[]{b}))) {
+                assertTrue(packageMessage.isCompleted());
+                result.append(packageMessage.getDataType()).append(':').append(new String(data(packageMessage))).append(';');
+            }
+        }
+        assertEquals("4:first;2:;5:compact;4:last;", result.toString());
+        assertEquals(0, decoder.getResyncCount());
+    }
+
+    /**
+     * 错误数据中有和type相同的字节时，丢弃到下一个有效包头
+     */
+    @Test
+    public void testResyncAfterGarbage() {
+        byte[] garbage = {1, 2, PackageMessage.TYPE_DYNAMIC_LENGTH, 0x7F, 0x7F, 0x7F, 0x7F, 3, PackageMessage.TYPE_FIX_LENGTH, 9};
+        PackageMessage decoder = PackageMessage.getPackageMessage();
+        List<PackageMessage> list = decoder.packageMessage(wrap(garbage, frame(4, "after")));
+        assertEquals(1, list.size());
+        assertArrayEquals("after".getBytes(), data(list.get(0)));
+        assertTrue(decoder.getResyncCount() > 0);
+        assertEquals(garbage.length, decoder.getDiscardedBytes());
+    }
+
+    /**
+     * length为7-9的包头按错误数据处理，重新查找包头，后面的包正常解码
+     */
+    @Test
+    public void testInvalidLengthBelowHead() {
+        for (int length = 7; length < PackageMessage.LENGTH_HEAD; length++) {
+            PackageMessage decoder = PackageMessage.getPackageMessage();
+            byte[] invalid = {PackageMessage.TYPE_DYNAMIC_LENGTH, 0, 0, 0, (byte) length, 3, 0, 0, 0, 0, 0, 0};
+            List<PackageMessage> list = decoder.packageMessage(wrap(invalid, frame(4, "after")));
+            assertEquals(1, list.size());
+            assertArrayEquals("after".getBytes(), data(list.get(0)));
+            assertEquals(1, decoder.getResyncCount());
+            list = decoder.packageMessage(wrap(frame(4, "next")));
+            assertEquals(1, list.size());
+            assertArrayEquals("next".getBytes(), data(list.get(0)));
+        }
+    }
+
+    /**
+     * 紧凑类型：type(1) flag(1) varint长度 [dataSign(4)] data
+     */
+    @Test
+    public void testCompactFormat() {
+        byte[] bytes = compactFrame(5, "abc", false);
+        assertArrayEquals(new byte[]{PackageMessage.TYPE_COMPACT, 5, 3, 'a', 'b', 'c'}, bytes);
+        String large = new String(new byte[300]).replace('\0', 'x');
+        byte[] heart = PackageMessage.getCompactHeartPackageMessage().encodePackageMessage().readableBytesArray();
+        assertEquals(3, heart.length);
+
+        PackageMessage decoder = PackageMessage.getPackageMessage();
+        List<PackageMessage> list = decoder.packageMessage(wrap(bytes, heart, compactFrame(6, "", false), compactFrame(7, large, true)));
+        assertEquals(4, list.size());
+        assertArrayEquals("abc".getBytes(), data(list.get(0)));
+        assertEquals(PackageMessage.DATA_TYPE_HEART, list.get(1).getDataType());
+        assertEquals(0, data(list.get(2)).length);
+        assertArrayEquals(large.getBytes(), data(list.get(3)));
+        assertTrue(list.get(3).isCompactSign());
+        assertTrue(list.get(3).isCompleted());
+        assertEquals(0, decoder.getResyncCount());
+    }
+
+    /**
+     * CRC32C校验，data任意一个字节错误都能发现，丢弃后继续解码
+     */
+    @Test
+    public void testCrc32c() {
+        byte[] bytes = PackageMessage.getPackageMessage().setSignMode(PackageMessage.SIGN_MODE_CRC32C)
+                .setDataType(4).setData("crc32c payload".getBytes()).encodePackageMessage().readableBytesArray();
+        for (int i = PackageMessage.LENGTH_HEAD; i < bytes.length; i++) {
+            byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 1;
+            PackageMessage decoder = PackageMessage.getPackageMessage().setSignMode(PackageMessage.SIGN_MODE_CRC32C);
+            List<PackageMessage> list = decoder.packageMessage(wrap(corrupt, bytes));
+            assertEquals(1, list.size());
+            assertTrue(list.get(0).isCompleted());
+            assertArrayEquals("crc32c payload".getBytes(), data(list.get(0)));
+            assertEquals(1, decoder.getSignErrorCount());
+        }
+    }
+
+    /**
+     * 超过maxAggregation的data分段交给调用方，最后一段带整个data的校验结果
+     */
+    @Test
+    public void testStreamChunks() {
+        byte[] payload = new byte[3000];
+        new Random(1).nextBytes(payload);
+        byte[] bytes = join(frame(4, payload), frame(4, "after"));
+        PackageMessage decoder = PackageMessage.getPackageMessage().setMaxAggregation(1024);
+        java.nio.ByteBuffer received = java.nio.ByteBuffer.allocate(payload.length);
+        String after = null;
+        boolean end = false;
+        for (int i = 0; i < bytes.length; i += 500) {
+            for (PackageMessage packageMessage : decoder.packageMessage(java.nio.ByteBuffer.wrap(bytes, i, Math.min(500, bytes.length - i)))) {
+                if (packageMessage.isStreamChunk()) {
+                    assertFalse(end);
+                    assertEquals(received.position(), packageMessage.getStreamOffset());
+                    received.put(data(packageMessage));
+                    if (packageMessage.isStreamEnd()) {
+                        assertTrue(packageMessage.isCompleted());
+                        end = true;
+                    }
+                } else {
+                    after = new String(data(packageMessage));
+                }
+            }
+        }
+        assertTrue(end);
+        assertArrayEquals(payload, received.array());
+        assertEquals("after", after);
+    }
+
+    /**
+     * 临时文件创建失败时丢弃这个包，后面已经到达的包继续解码
+     */
+    @Test
+    public void testStreamSpillError() {
+        byte[] payload = new byte[3000];
+        PackageMessage decoder = PackageMessage.getPackageMessage().setMaxAggregation(1024)
+                .setSpillDirectory(new File("/nonexistent/MiniTCPClientTest"));
+        List<PackageMessage> list = decoder.packageMessage(wrap(frame(4, payload), frame(4, "after")));
+        assertNotNull(decoder.getSpillError());
+        assertEquals(1, list.size());
+        assertArrayEquals("after".getBytes(), data(list.get(0)));
+        assertEquals(payload.length, decoder.getDiscardedBytes());
+    }
+
+    static byte[] frame(int dataType, String data) {
+        return frame(dataType, data.getBytes());
+    }
+
+    static byte[] frame(int dataType, byte[] data) {
+        return PackageMessage.getPackageMessage().setDataType(dataType).setData(data).encodePackageMessage().readableBytesArray();
+    }
+
+    static byte[] compactFrame(int dataType, String data, boolean compactSign) {
+        return PackageMessage.getPackageMessage().setType(PackageMessage.TYPE_COMPACT).setCompactSign(compactSign)
+                .setDataType(dataType).setData(data.getBytes()).encodePackageMessage().readableBytesArray();
+    }
+
+    static byte[] join(byte[]... parts) {
+        return wrap(parts).readableBytesArray();
+    }
+
+    static ByteBuffer wrap(byte[]... parts) {
+        ByteBuffer byteBuffer = ByteBuffer.newByteBuffer();
+        for (byte[] part : parts) {
+            byteBuffer.writeBytes(part);
+        }
+        return byteBuffer;
+    }
+
+    static byte[] data(PackageMessage packageMessage) {
+        return packageMessage.getData() == null ? new byte[0] : packageMessage.getData().readableBytesArray();
+    }
+}
@@ -0,0 +1,277 @@
+package com.itgowo.tcp.nio;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author lujianchao
+ * PackageMessageForNio按字节解码测试
+ */
+public class PackageMessageForNioDecodeTest {
+
+    /**
+     * 每次只输入1 byte，各种包都能完整解码
+     */
+    @Test
+    public void testSplitEveryByte() {
+        byte[] bytes = join(frame(4, "first"), PackageMessageForNio.getHeartPackageMessage().encodePackageMessage().array(),
+                compactFrame(5, "compact", false), frame(4, "last"));
+        PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage();
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            for (PackageMessageForNio packageMessage : decoder.packageMessage(wrap(new byte[]{b}))) {
+                assertTrue(packageMessage.isCompleted());
+                result.append(packageMessage.getDataType()).append(':').append(new String(data(packageMessage))).append(';');
+            }
+        }
+        assertEquals("4:first;2:;5:compact;4:last;", result.toString());
+        assertEquals(0, decoder.getResyncCount());
+    }
+
+    /**
+     * 错误数据中有和type相同的字节时，丢弃到下一个有效包头
+     */
+    @Test
+    public void testResyncAfterGarbage() {
+        byte[] garbage = {1, 2, PackageMessageForNio.TYPE_DYNAMIC_LENGTH, 0x7F, 0x7F, 0x7F, 0x7F, 3, PackageMessageForNio.TYPE_FIX_LENGTH, 9};
+        PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage();
+        List<PackageMessageForNio> list = decoder.packageMessage(wrap(join(garbage, frame(4, "after"))));
+        assertEquals(1, list.size());
+        assertArrayEquals("after".getBytes(), data(list.get(0)));
+        assertTrue(decoder.getResyncCount() > 0);
+        assertEquals(garbage.length, decoder.getDiscardedBytes());
+    }
+
+    /**
+     * length为7-9的包头按错误数据处理，重新查找包头，后面的包正常解码，之后的数据也不受影响
+     */
+    @Test
+    public void testInvalidLengthBelowHead() {
+        for (int length = 7; length < PackageMessageForNio.LENGTH_HEAD; length++) {
+            PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage();
+            byte[] invalid = {PackageMessageForNio.TYPE_DYNAMIC_LENGTH, 0, 0, 0, (byte) length, 3, 0, 0, 0, 0, 0, 0};
+            List<PackageMessageForNio> list = decoder.packageMessage(wrap(invalid, frame(4, "after")));
+            assertEquals(1, list.size());
+            assertArrayEquals("after".getBytes(), data(list.get(0)));
+            assertEquals(1, decoder.getResyncCount());
+            list = decoder.packageMessage(wrap(frame(4, "next")));
+            assertEquals(1, list.size());
+            assertArrayEquals("next".getBytes(), data(list.get(0)));
+        }
+    }
+
+    /**
+     * 超过maxLength的包头按错误数据处理
+     */
+    @Test
+    public void testLengthOverMaxLength() {
+        PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage().setMaxLength(64);
+        List<PackageMessageForNio> list = decoder.packageMessage(wrap(frame(4, new String(new byte[100])), frame(4, "small")));
+        assertEquals(1, list.size());
+        assertArrayEquals("small".getBytes(), data(list.get(0)));
+        assertTrue(decoder.getResyncCount() > 0);
+    }
+
+    /**
+     * 紧凑类型：type(1) flag(1) varint长度 [dataSign(4)] data
+     */
+    @Test
+    public void testCompactFormat() {
+        byte[] bytes = compactFrame(5, "abc", false);
+        assertArrayEquals(new byte[]{PackageMessageForNio.TYPE_COMPACT, 5, 3, 'a', 'b', 'c'}, bytes);
+        byte[] signed = compactFrame(5, "abc", true);
+        assertEquals(PackageMessageForNio.TYPE_COMPACT, signed[0]);
+        assertEquals((byte) (5 | PackageMessageForNio.COMPACT_FLAG_SIGN), signed[1]);
+        assertEquals(3 + 4 + 3, signed.length);
+        byte[] heart = PackageMessageForNio.getCompactHeartPackageMessage().encodePackageMessage().array();
+        assertEquals(3, heart.length);
+
+        String large = new String(new byte[300]).replace('\0', 'x');
+        PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage();
+        List<PackageMessageForNio> list = decoder.packageMessage(wrap(bytes, signed, heart, compactFrame(6, "", false), compactFrame(7, large, true)));
+        assertEquals(5, list.size());
+        assertArrayEquals("abc".getBytes(), data(list.get(0)));
+        assertTrue(list.get(1).isCompactSign());
+        assertTrue(list.get(1).isCompleted());
+        assertEquals(PackageMessageForNio.DATA_TYPE_HEART, list.get(2).getDataType());
+        assertEquals(0, data(list.get(3)).length);
+        assertArrayEquals(large.getBytes(), data(list.get(4)));
+        assertTrue(list.get(4).isCompleted());
+        assertEquals(0, decoder.getResyncCount());
+    }
+
+    /**
+     * 紧凑类型varint超过5 byte时按错误数据处理
+     */
+    @Test
+    public void testCompactVarintTooLong() {
+        byte[] invalid = {PackageMessageForNio.TYPE_COMPACT, 5, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+        PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage();
+        List<PackageMessageForNio> list = decoder.packageMessage(wrap(invalid, compactFrame(5, "after", false)));
+        assertEquals(1, list.size());
+        assertArrayEquals("after".getBytes(), data(list.get(0)));
+        assertTrue(decoder.getResyncCount() > 0);
+    }
+
+    /**
+     * CRC32C校验，data任意一个字节错误都能发现，丢弃后继续解码
+     */
+    @Test
+    public void testCrc32c() {
+        byte[] bytes = PackageMessageForNio.getPackageMessage().setSignMode(PackageMessageForNio.SIGN_MODE_CRC32C)
+                .setDataType(4).setData("crc32c payload".getBytes()).encodePackageMessage().array();
+        PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage().setSignMode(PackageMessageForNio.SIGN_MODE_CRC32C);
+        List<PackageMessageForNio> list = decoder.packageMessage(wrap(bytes));
+        assertEquals(1, list.size());
+        assertTrue(list.get(0).isCompleted());
+        for (int i = PackageMessageForNio.LENGTH_HEAD; i < bytes.length; i++) {
+            byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 1;
+            decoder = PackageMessageForNio.getPackageMessage().setSignMode(PackageMessageForNio.SIGN_MODE_CRC32C);
+            list = decoder.packageMessage(wrap(corrupt, bytes));
+            assertEquals(1, list.size());
+            assertArrayEquals("crc32c payload".getBytes(), data(list.get(0)));
+            assertEquals(1, decoder.getSignErrorCount());
+        }
+    }
+
+    /**
+     * 超过maxAggregation的data分段交给调用方，最后一段带整个data的校验结果
+     */
+    @Test
+    public void testStreamChunks() {
+        byte[] payload = new byte[3000];
+        new Random(1).nextBytes(payload);
+        byte[] bytes = join(frame(4, payload), frame(4, "after"));
+        PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage().setMaxAggregation(1024);
+        ByteBuffer received = ByteBuffer.allocate(payload.length);
+        String after = null;
+        int chunks = 0;
+        boolean end = false;
+        for (int i = 0; i < bytes.length; i += 500) {
+            for (PackageMessageForNio packageMessage : decoder.packageMessage(wrap(slice(bytes, i, Math.min(500, bytes.length - i))))) {
+                if (packageMessage.isStreamChunk()) {
+                    assertFalse(end);
+                    assertEquals(received.position(), packageMessage.getStreamOffset());
+                    received.put(data(packageMessage));
+                    chunks++;
+                    if (packageMessage.isStreamEnd()) {
+                        assertTrue(packageMessage.isCompleted());
+                        end = true;
+                    }
+                } else {
+                    after = new String(data(packageMessage));
+                }
+            }
+        }
+        assertTrue(end);
+        assertTrue(chunks > 1);
+        assertArrayEquals(payload, received.array());
+        assertEquals("after", after);
+    }
+
+    /**
+     * 有临时文件目录时大包写入文件，完整后返回带文件的消息
+     */
+    @Test
+    public void testStreamSpill() throws IOException {
+        File directory = Files.createTempDirectory("MiniTCPClientTest").toFile();
+        try {
+            byte[] payload = new byte[3000];
+            new Random(2).nextBytes(payload);
+            PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage().setMaxAggregation(1024).setSpillDirectory(directory);
+            List<PackageMessageForNio> list = decoder.packageMessage(wrap(frame(4, payload), frame(4, "after")));
+            assertNull(decoder.getSpillError());
+            assertEquals(2, list.size());
+            File spillFile = list.get(0).getSpillFile();
+            assertNotNull(spillFile);
+            assertTrue(list.get(0).isCompleted());
+            assertArrayEquals(payload, Files.readAllBytes(spillFile.toPath()));
+            assertTrue(spillFile.delete());
+            assertArrayEquals("after".getBytes(), data(list.get(1)));
+        } finally {
+            directory.delete();
+        }
+    }
+
+    /**
+     * 临时文件创建失败时丢弃这个包，后面已经到达的包继续解码
+     */
+    @Test
+    public void testStreamSpillError() {
+        byte[] payload = new byte[3000];
+        PackageMessageForNio decoder = PackageMessageForNio.getPackageMessage().setMaxAggregation(1024)
+                .setSpillDirectory(new File("/nonexistent/MiniTCPClientTest"));
+        List<PackageMessageForNio> list = decoder.packageMessage(wrap(frame(4, payload), frame(4, "after")));
+        assertNotNull(decoder.getSpillError());
+        assertEquals(1, list.size());
+        assertArrayEquals("after".getBytes(), data(list.get(0)));
+        assertEquals(payload.length, decoder.getDiscardedBytes());
+        list = decoder.packageMessage(wrap(frame(4, "next")));
+        assertNull(decoder.getSpillError());
+        assertEquals(1, list.size());
+    }
+
+    static byte[] frame(int dataType, String data) {
+        return frame(dataType, data.getBytes());
+    }
+
+    static byte[] frame(int dataType, byte[] data) {
+        return PackageMessageForNio.getPackageMessage().setDataType(dataType).setData(data).encodePackageMessage().array();
+    }
+
+    static byte[] compactFrame(int dataType, String data, boolean compactSign) {
+        ByteBuffer byteBuffer = PackageMessageForNio.getPackageMessage().setType(PackageMessageForNio.TYPE_COMPACT)
+                .setCompactSign(compactSign).setDataType(dataType).setData(data.getBytes()).encodePackageMessage();
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.get(bytes);
+        return bytes;
+    }
+
+    static byte[] join(byte[]... parts) {
+        return wrap(parts).array();
+    }
+
+    static byte[] slice(byte[] bytes, int offset, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(bytes, offset, result, 0, length);
+        return result;
+    }
+
+    static ByteBuffer wrap(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            byteBuffer.put(part);
+        }
+        byteBuffer.flip();
+        return byteBuffer;
+    }
+
+    static byte[] data(PackageMessageForNio packageMessage) {
+        if (packageMessage.getData() == null) {
+            return new byte[0];
+        }
+        ByteBuffer data = packageMessage.getData().duplicate();
+        data.position(0);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+}
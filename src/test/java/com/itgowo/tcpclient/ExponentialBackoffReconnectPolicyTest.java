@@ -0,0 +1,97 @@
+package com.itgowo.tcpclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lujianchao
+ * 指数退避重连策略测试
+ */
+public class ExponentialBackoffReconnectPolicyTest {
+
+    /**
+     * 每次翻倍，达到maxMillis后不再增加
+     */
+    @Test
+    public void testCeiling() {
+        ExponentialBackoffReconnectPolicy policy = new ExponentialBackoffReconnectPolicy(100, 800).setJitter(false);
+        long[] expected = {100, 100, 200, 400, 800, 800, 800};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], policy.getCeilingMillis(i - 1));
+            assertEquals(expected[i], policy.nextDelayMillis(i - 1));
+        }
+        assertEquals(800, policy.getCeilingMillis(1000));
+        assertEquals(800, policy.getCeilingMillis(Integer.MAX_VALUE));
+    }
+
+    /**
+     * 左移会溢出时返回maxMillis，不会变成负数或0
+     */
+    @Test
+    public void testOverflow() {
+        ExponentialBackoffReconnectPolicy policy = new ExponentialBackoffReconnectPolicy(1, Long.MAX_VALUE);
+        assertEquals(1L << 61, policy.getCeilingMillis(61));
+        assertEquals(Long.MAX_VALUE, policy.getCeilingMillis(62));
+        assertEquals(Long.MAX_VALUE, policy.getCeilingMillis(63));
+        assertEquals(Long.MAX_VALUE, policy.getCeilingMillis(64));
+        policy = new ExponentialBackoffReconnectPolicy(Long.MAX_VALUE / 2, Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE / 2, policy.getCeilingMillis(0));
+        assertEquals(Long.MAX_VALUE, policy.getCeilingMillis(1));
+        policy = new ExponentialBackoffReconnectPolicy(3000, 3000);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(3000, policy.getCeilingMillis(i));
+        }
+    }
+
+    /**
+     * 抖动后的等待时间在[0, 上限]内
+     */
+    @Test
+    public void testJitter() {
+        ExponentialBackoffReconnectPolicy policy = new ExponentialBackoffReconnectPolicy(100, 800);
+        assertTrue(policy.isJitter());
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long ceiling = policy.getCeilingMillis(attempt);
+            for (int i = 0; i < 1000; i++) {
+                long delay = policy.nextDelayMillis(attempt);
+                assertTrue(delay + " > " + ceiling, delay >= 0 && delay <= ceiling);
+            }
+        }
+    }
+
+    /**
+     * 达到最大重连次数后返回-1，0表示不限制
+     */
+    @Test
+    public void testMaxAttempts() {
+        ExponentialBackoffReconnectPolicy policy = new ExponentialBackoffReconnectPolicy(100, 800).setJitter(false).setMaxAttempts(3);
+        assertEquals(100, policy.nextDelayMillis(0));
+        assertEquals(400, policy.nextDelayMillis(2));
+        assertEquals(-1, policy.nextDelayMillis(3));
+        assertEquals(-1, policy.nextDelayMillis(100));
+        policy.setMaxAttempts(0);
+        assertEquals(800, policy.nextDelayMillis(100));
+    }
+
+    @Test
+    public void testIllegalArguments() {
+        try {
+            new ExponentialBackoffReconnectPolicy(0, 100);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new ExponentialBackoffReconnectPolicy(200, 100);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new ExponentialBackoffReconnectPolicy().setMaxAttempts(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.itgowo.tcpclient;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author lujianchao
+ * 延迟直方图测试
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * 32以下每个值一个格子，百分位是精确值
+     */
+    @Test
+    public void testLinear() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 20; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10, histogram.getP50());
+        assertEquals(20, histogram.getP99());
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(2, histogram.getValueAtPercentile(10));
+        assertEquals(20, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getMin());
+        assertEquals(20, histogram.getMax());
+        assertEquals(10.5, histogram.getMean(), 0.0001);
+    }
+
+    /**
+     * 百分位不小于精确值，误差不超过1/16，不超过最大值
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        double[] percentiles = {1, 25, 50, 90, 99, 99.9, 99.99};
+        for (double percentile : percentiles) {
+            long exact = (long) Math.ceil(percentile / 100 * 100000);
+            long value = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + value, value >= exact && value <= exact + exact / 16);
+        }
+        assertEquals(100000, histogram.getValueAtPercentile(100));
+        assertEquals(100000, histogram.getCount());
+    }
+
+    /**
+     * 随机值的百分位与排序后的精确值比较
+     */
+    @Test
+    public void testRandom() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(7);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 20);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        double[] percentiles = {50, 90, 99, 99.9};
+        for (double percentile : percentiles) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long value = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + value + " " + exact, value >= exact && value <= exact + exact / 16);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values[0], histogram.getMin());
+    }
+
+    /**
+     * 负数按0记录，超过MAX_VALUE按MAX_VALUE记录，reset后清空
+     */
+    @Test
+    public void testBoundsAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getP99());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMean(), 0);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMin());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+        assertEquals(0, histogram.getP50());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getP99());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(1000));
+        assertEquals(0, histogram.getValueAtPercentile(-1));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getP50());
+    }
+
+    /**
+     * 多个线程同时记录不丢计数
+     */
+    @Test
+    public void testConcurrentRecord() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 1; j <= 10000; j++) {
+                        histogram.record(j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 0.0001);
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+    }
+}
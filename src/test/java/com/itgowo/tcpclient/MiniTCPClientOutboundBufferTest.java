@@ -0,0 +1,258 @@
+package com.itgowo.tcpclient;
+
+import com.itgowo.tcp.buffer.BufferAllocator;
+import com.itgowo.tcp.buffer.PooledBuffer;
+import com.itgowo.tcp.codec.RawCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lujianchao
+ * 发送队列写入测试，使用本地回环连接
+ */
+public class MiniTCPClientOutboundBufferTest {
+    private ServerSocketChannel serverChannel;
+    private SocketChannel socketChannel;
+    private SocketChannel peerChannel;
+    private MiniTCPClient client;
+    private MiniTCPClientOutboundBuffer outboundBuffer;
+    private List<String> events;
+
+    @Before
+    public void setUp() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        socketChannel = SocketChannel.open();
+        socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+        socketChannel.connect(serverChannel.getLocalAddress());
+        socketChannel.configureBlocking(false);
+        peerChannel = serverChannel.accept();
+        peerChannel.configureBlocking(false);
+        client = new MiniTCPClient("127.0.0.1", 0, new onSimpleMiniTCPClientListener() {
+            @Override
+            public void onReadable(MiniTCPClient tcpClient, Object o) throws Exception {
+
+            }
+        }, null, new RawCodec());
+        outboundBuffer = new MiniTCPClientOutboundBuffer();
+        events = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socketChannel.close();
+        peerChannel.close();
+        serverChannel.close();
+    }
+
+    /**
+     * Socket发送缓冲区满时保留未写完的数据，后续flush继续写，完成回调只调用一次
+     */
+    @Test
+    public void testPartialWrite() throws IOException {
+        byte[] bytes = data(4 * 1024 * 1024);
+        BufferAllocator allocator = new BufferAllocator(false, 1024, 4, 4);
+        PooledBuffer pooledBuffer = allocator.buffer(8);
+        outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(bytes)}, pooledBuffer, listener("a"));
+        assertEquals(bytes.length, outboundBuffer.pendingBytes());
+        assertFalse(outboundBuffer.flush(socketChannel, client));
+        assertTrue(outboundBuffer.pendingBytes() > 0);
+        assertFalse(outboundBuffer.isEmpty());
+        assertTrue(events.isEmpty());
+        assertEquals(1, pooledBuffer.refCnt());
+        assertArrayEquals(bytes, flushAndRead(bytes.length));
+        assertEquals(list("a:" + bytes.length), events);
+        assertEquals(0, outboundBuffer.pendingBytes());
+        assertEquals(bytes.length, outboundBuffer.writtenBytes());
+        assertTrue(outboundBuffer.isEmpty());
+        assertEquals(0, pooledBuffer.refCnt());
+        assertEquals(0, allocator.getActiveCount());
+    }
+
+    /**
+     * 连接断开时写了一半和还在队列中的数据都回调失败并释放缓冲区
+     */
+    @Test
+    public void testFailAll() throws IOException {
+        BufferAllocator allocator = new BufferAllocator(false, 1024, 4, 4);
+        PooledBuffer pooledBuffer = allocator.buffer(8);
+        outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(data(4 * 1024 * 1024))}, null, listener("a"));
+        assertFalse(outboundBuffer.flush(socketChannel, client));
+        outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(data(10))}, pooledBuffer, listener("b"));
+        outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(data(10))}, null, null);
+        IOException e = new IOException("closed");
+        outboundBuffer.failAll(client, e);
+        assertEquals(list("a:closed", "b:closed"), events);
+        assertEquals(0, outboundBuffer.pendingBytes());
+        assertTrue(outboundBuffer.isEmpty());
+        assertEquals(0, allocator.getActiveCount());
+        assertTrue(outboundBuffer.flush(socketChannel, client));
+    }
+
+    /**
+     * 多条数据合并写入，空数据也按顺序完成
+     */
+    @Test
+    public void testGatheringWrite() throws IOException {
+        outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{1, 2}), ByteBuffer.wrap(new byte[]{3})}, null, listener("a"));
+        outboundBuffer.add(new ByteBuffer[]{ByteBuffer.allocate(0)}, null, listener("b"));
+        outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{4}), ByteBuffer.allocate(0), ByteBuffer.wrap(new byte[]{5, 6})}, null, listener("c"));
+        assertEquals(6, outboundBuffer.pendingBytes());
+        assertTrue(outboundBuffer.flush(socketChannel, client));
+        assertEquals(list("a:3", "b:0", "c:3"), events);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, flushAndRead(6));
+        assertEquals(0, outboundBuffer.pendingBytes());
+        assertEquals(6, outboundBuffer.writtenBytes());
+    }
+
+    /**
+     * ByteBuffer数量超过一次合并写入的上限时分多次写入
+     */
+    @Test
+    public void testGatheringOverMaxCount() throws IOException {
+        int count = 3000;
+        byte[] bytes = data(count);
+        for (int i = 0; i < count; i += 2) {
+            outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(bytes, i, 1), ByteBuffer.wrap(bytes, i + 1, 1)}, null, i == count - 2 ? listener("last") : null);
+        }
+        assertArrayEquals(bytes, flushAndRead(count));
+        assertEquals(list("last:2"), events);
+        assertTrue(outboundBuffer.isEmpty());
+    }
+
+    /**
+     * 先写包头再用transferTo写文件的一段，前后的数据顺序不变，写完关闭文件
+     */
+    @Test
+    public void testFileWrite() throws IOException {
+        File file = File.createTempFile("MiniTCPClientTest", ".tmp");
+        try {
+            byte[] bytes = data(2 * 1024 * 1024 + 100);
+            Files.write(file.toPath(), bytes);
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            int count = bytes.length - 100;
+            outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{1})}, null, listener("a"));
+            outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{2, 3})}, fileChannel, 50, count, true, listener("file"));
+            outboundBuffer.add(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{4})}, null, listener("b"));
+            assertEquals(1 + 2 + count + 1, outboundBuffer.pendingBytes());
+            byte[] expected = new byte[1 + 2 + count + 1];
+            expected[0] = 1;
+            expected[1] = 2;
+            expected[2] = 3;
+            System.arraycopy(bytes, 50, expected, 3, count);
+            expected[expected.length - 1] = 4;
+            assertArrayEquals(expected, flushAndRead(expected.length));
+            assertEquals(list("a:1", "file:" + (2 + count), "b:1"), events);
+            assertFalse(fileChannel.isOpen());
+            assertEquals(0, outboundBuffer.pendingBytes());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * 文件被截断时先计入已写入的部分，下次flush抛出EOFException，不会一直等待OP_WRITE，文件由failAll关闭
+     */
+    @Test
+    public void testFileTruncated() throws IOException {
+        File file = File.createTempFile("MiniTCPClientTest", ".tmp");
+        try {
+            Files.write(file.toPath(), data(100));
+            FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            outboundBuffer.add(new ByteBuffer[0], fileChannel, 0, 200, true, listener("file"));
+            assertFalse(outboundBuffer.flush(socketChannel, client));
+            assertEquals(100, outboundBuffer.writtenBytes());
+            assertEquals(100, outboundBuffer.pendingBytes());
+            try {
+                outboundBuffer.flush(socketChannel, client);
+                fail("file truncated");
+            } catch (EOFException e) {
+                outboundBuffer.failAll(client, e);
+            }
+            assertEquals(1, events.size());
+            assertTrue(events.get(0).startsWith("file:file truncated"));
+            assertFalse(fileChannel.isOpen());
+            assertEquals(0, outboundBuffer.pendingBytes());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * 交替flush和读取对端，直到读到count个字节
+     *
+     * @param count
+     * @return
+     * @throws IOException
+     */
+    private byte[] flushAndRead(int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        boolean flushed = false;
+        while (out.size() < count) {
+            if (!flushed) {
+                flushed = outboundBuffer.flush(socketChannel, client);
+            }
+            readBuffer.clear();
+            int n = peerChannel.read(readBuffer);
+            out.write(readBuffer.array(), 0, Math.max(n, 0));
+        }
+        assertTrue(flushed || outboundBuffer.flush(socketChannel, client));
+        return out.toByteArray();
+    }
+
+    private onMiniTCPClientWriteListener listener(final String name) {
+        return new onMiniTCPClientWriteListener() {
+            @Override
+            public void onWriteCompleted(MiniTCPClient tcpClient, long writtenBytes) throws Exception {
+                assertSame(client, tcpClient);
+                events.add(name + ":" + writtenBytes);
+            }
+
+            @Override
+            public void onWriteFailed(MiniTCPClient tcpClient, Exception e) {
+                assertSame(client, tcpClient);
+                events.add(name + ":" + e.getMessage());
+            }
+        };
+    }
+
+    private static byte[] data(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + i / 251);
+        }
+        return bytes;
+    }
+
+    private static List<String> list(String... strings) {
+        List<String> list = new ArrayList<>();
+        for (String s : strings) {
+            list.add(s);
+        }
+        return list;
+    }
+}
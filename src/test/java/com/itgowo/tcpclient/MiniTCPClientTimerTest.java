@@ -0,0 +1,115 @@
+package com.itgowo.tcpclient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author lujianchao
+ * 时间轮定时器测试
+ */
+public class MiniTCPClientTimerTest {
+    private MiniTCPClientTimer timer;
+    private List<String> events;
+
+    @Before
+    public void setUp() {
+        timer = new MiniTCPClientTimer(10, 8);
+        events = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdown();
+    }
+
+    /**
+     * 按到期时间执行，超过一圈的任务等待剩余圈数，不会提前执行
+     */
+    @Test
+    public void testTick() throws Exception {
+        assertEquals(8, timer.getTicksPerWheel());
+        CountDownLatch latch = new CountDownLatch(3);
+        long start = System.nanoTime();
+        MiniTCPClientTimer.Timeout late = timer.newTimeout(task("late", latch), 250);
+        MiniTCPClientTimer.Timeout early = timer.newTimeout(task("early", latch), 30);
+        timer.newTimeout(task("now", latch), 0);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed " + elapsed, elapsed >= 250);
+        assertEquals(3, events.size());
+        assertEquals("now", events.get(0));
+        assertEquals("early", events.get(1));
+        assertEquals("late", events.get(2));
+        assertTrue(early.isExpired());
+        assertTrue(late.isExpired());
+        assertFalse(late.cancel());
+        assertEquals(0, timer.getPendingCount());
+        assertEquals(3, timer.getExpiredCount());
+    }
+
+    /**
+     * 取消的任务不执行，只能取消一次
+     */
+    @Test
+    public void testCancel() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        MiniTCPClientTimer.Timeout cancelled = timer.newTimeout(task("cancelled", null), 50);
+        MiniTCPClientTimer.Timeout cancelledLate = timer.newTimeout(task("cancelledLate", null), 200);
+        timer.newTimeout(task("kept", latch), 100);
+        assertEquals(3, timer.getPendingCount());
+        assertTrue(cancelled.cancel());
+        assertTrue(cancelledLate.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, timer.getPendingCount());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(1, events.size());
+        assertEquals("kept", events.get(0));
+        assertEquals(1, timer.getExpiredCount());
+        assertFalse(cancelledLate.isExpired());
+    }
+
+    /**
+     * 停止后不能再添加任务，默认定时器不能停止
+     */
+    @Test
+    public void testShutdown() {
+        timer.shutdown();
+        assertTrue(timer.isShutdown());
+        try {
+            timer.newTimeout(task("after", null), 10);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        try {
+            MiniTCPClientTimer.DEFAULT.shutdown();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    private Runnable task(final String name, final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                events.add(name);
+                if (latch != null) {
+                    latch.countDown();
+                }
+            }
+        };
+    }
+}